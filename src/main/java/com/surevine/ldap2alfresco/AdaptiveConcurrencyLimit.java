@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Limits how many calls to Alfresco are in progress at once, adapting the
+ * limit to how Alfresco copes: each call which completes without an error
+ * and without a rise in latency raises the limit a little (by one for
+ * each limit's worth of calls), and an error or a call taking much longer
+ * than the quickest call of the same operation seen recently halves it or
+ * cuts it by a tenth respectively. The limit only falls once per round
+ * trip, so that a burst of slow calls counts as a single sign of overload.
+ * 
+ * A thread which already holds a call may make further calls without
+ * waiting, e.g. a connector call which is made up of other connector calls,
+ * so that it can never wait for itself; only the outermost call is counted.
+ */
+class AdaptiveConcurrencyLimit {
+
+    /**
+     * Number of calls after which the quickest latency seen is forgotten,
+     * so the limit can follow Alfresco if it becomes slower for good.
+     */
+    private static final int BASELINE_SAMPLES = 500;
+
+    /**
+     * Factor the limit is multiplied by after an error.
+     */
+    private static final double ERROR_BACKOFF = 0.5;
+
+    /**
+     * Factor the limit is multiplied by after a rise in latency.
+     */
+    private static final double LATENCY_BACKOFF = 0.9;
+
+    /**
+     * Logging instance.
+     */
+    private static final Logger LOGGER = Logger.getLogger(AdaptiveConcurrencyLimit.class);
+
+    /**
+     * Highest the limit can be, e.g. the number of connectors.
+     */
+    private final int maxLimit;
+
+    /**
+     * Multiple of the quickest latency seen beyond which a call counts as
+     * a rise in latency.
+     */
+    private final double tolerance;
+
+    /**
+     * Current limit, of which the whole part is used.
+     */
+    private double limit;
+
+    /**
+     * Calls in progress.
+     */
+    private int inFlight;
+
+    /**
+     * Quickest latency seen recently for each operation, as nanoseconds and
+     * calls completed since it was last forgotten.
+     */
+    private final Map<String, long[]> baselines = new HashMap<String, long[]>();
+
+    /**
+     * Number of calls each thread holds, counting calls made within calls.
+     */
+    private final ThreadLocal<int[]> held = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    /**
+     * When the limit was last lowered, from System.nanoTime().
+     */
+    private long lastDecrease;
+
+    /**
+     * Number of times the limit has been lowered.
+     */
+    private int decreases;
+
+    /**
+     * @param maxLimit Highest the limit can be
+     * @param tolerance Multiple of the quickest latency seen beyond which a call counts as a rise in latency
+     */
+    AdaptiveConcurrencyLimit(final int maxLimit, final double tolerance) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.tolerance = tolerance;
+        limit = 1;
+    }
+
+    /**
+     * Wait until another call is allowed, and count it as in progress,
+     * unless this thread already holds a call.
+     * @return When the call started, to pass to release()
+     * @throws InterruptedException If interrupted while waiting, in which
+     *         case the call isn't counted and release() mustn't be called
+     */
+    long acquire() throws InterruptedException {
+        int[] count = held.get();
+
+        if (count[0] > 0) {
+            count[0]++;
+            return System.nanoTime();
+        }
+
+        synchronized (this) {
+            while (inFlight >= (int) limit) {
+                wait();
+            }
+
+            inFlight++;
+        }
+
+        count[0]++;
+        return System.nanoTime();
+    }
+
+    /**
+     * Count a call as finished and adjust the limit, unless it was made
+     * within another call.
+     * @param operation Name of the operation, since each has its own latency
+     * @param started Value returned by acquire()
+     * @param failed Whether the call failed
+     */
+    void release(final String operation, final long started, final boolean failed) {
+        if (--held.get()[0] > 0) {
+            return;
+        }
+
+        synchronized (this) {
+            long now = System.nanoTime();
+            long latency = now - started;
+
+            // was the limit holding calls back, rather than there being no
+            // more calls to make
+            boolean saturated = inFlight >= (int) limit;
+
+            inFlight--;
+
+            long[] baseline = baselines.get(operation);
+
+            if (baseline == null || ++baseline[1] >= BASELINE_SAMPLES) {
+                baseline = new long[2];
+                baselines.put(operation, baseline);
+            }
+
+            if (!failed && (baseline[0] == 0 || latency < baseline[0])) {
+                baseline[0] = latency;
+            }
+
+            if (failed) {
+                decrease(now, latency, ERROR_BACKOFF, "an error");
+            } else if (latency > baseline[0] * tolerance) {
+                decrease(now, latency, LATENCY_BACKOFF, "a rise in " + operation + " latency");
+            } else if (saturated && limit < maxLimit) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+
+            notifyAll();
+        }
+    }
+
+    /**
+     * Lower the limit, unless it was lowered less than a round trip ago.
+     * @param now The time, from System.nanoTime()
+     * @param latency Latency of the call which prompted this
+     * @param factor Factor to multiply the limit by
+     * @param reason Why the limit is being lowered, for logging
+     */
+    private void decrease(final long now, final long latency, final double factor, final String reason) {
+        if (decreases > 0 && now - lastDecrease < latency) {
+            return;
+        }
+
+        limit = Math.max(1, limit * factor);
+        lastDecrease = now;
+        decreases++;
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Lowered Alfresco concurrency limit to " + (int) limit + " after " + reason);
+        }
+    }
+
+    /**
+     * @return Number of calls currently allowed at once
+     */
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return Highest the limit can be
+     */
+    int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * @return Number of times the limit has been lowered
+     */
+    synchronized int getDecreases() {
+        return decreases;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.surevine.alfresco.AlfrescoConnector;
+
+/**
+ * A fixed set of Alfresco connectors shared between worker threads.
+ * 
+ * AlfrescoConnector holds an authenticated HTTP session and isn't documented
+ * as safe for concurrent use, so rather than share one connector each worker
+ * borrows a connector of its own for the duration of a unit of work, and
+ * gives it back afterwards.
+ */
+class AlfrescoConnectorPool {
+
+    /**
+     * Connectors not currently borrowed.
+     */
+    private final BlockingQueue<AlfrescoConnector> idle;
+
+    /**
+     * Number of connectors in the pool.
+     */
+    private final int size;
+
+    /**
+     * @param connectors The connectors to share, each already authenticated
+     */
+    AlfrescoConnectorPool(final Collection<AlfrescoConnector> connectors) {
+        idle = new LinkedBlockingQueue<AlfrescoConnector>(connectors);
+        size = connectors.size();
+    }
+
+    /**
+     * Take a connector, waiting for one to be released if necessary.
+     * @return A connector, which must be given back with release()
+     * @throws InterruptedException If interrupted while waiting
+     */
+    AlfrescoConnector borrow() throws InterruptedException {
+        return idle.take();
+    }
+
+    /**
+     * Give a connector back.
+     * @param connector A connector obtained from borrow()
+     */
+    void release(final AlfrescoConnector connector) {
+        idle.add(connector);
+    }
+
+    /**
+     * @return Number of connectors in the pool
+     */
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,618 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.surevine.alfresco.AlfrescoConnector;
+import com.surevine.alfresco.AlfrescoException;
+
+/**
+ * Queues changes to the membership of Alfresco sites and groups and sends
+ * them in batches, rather than making a round trip to Alfresco as each
+ * change is found.
+ * 
+ * Repeated changes to the same user's membership of the same site or group
+ * are coalesced, so only the last one is sent.  A batch is sent once it
+ * holds a set number of changes or its oldest change has waited a set time,
+ * or when flush() is called.  Alfresco has no bulk membership call, so the
+ * changes in a batch are sent at once on a pool of threads, each with its
+ * own connector.  Every addition in a batch is made before any removal, so
+ * a site is never left without the manager being added to it.
+ * 
+ * The age of the oldest change is only checked when another change is
+ * queued, so there is no background timer: a change can wait longer than
+ * the set time if nothing follows it, until the caller flushes.
+ * 
+ * Each change that fails is reported to its own FailureHandler, on the
+ * thread that sent the batch, once the whole batch has been sent.  Batches
+ * are sent one at a time, and all methods can be called from any thread.
+ * There is one queue, so a flush sends, and reports the failures of, every
+ * caller's changes: callers which must only be told about their own
+ * failures should not queue changes at the same time.
+ */
+class AlfrescoMutationBatcher {
+
+    /**
+     * Told about changes which failed.
+     */
+    interface FailureHandler {
+        /**
+         * @param mutation The change which failed
+         * @param e Why it failed
+         * @throws LdapException To stop the update, on LDAP errors
+         * @throws AlfrescoException To stop the update, on fatal Alfresco errors
+         */
+        void failed(Mutation mutation, AlfrescoException e) throws LdapException, AlfrescoException;
+    }
+
+    /**
+     * Logging instance.
+     */
+    private static final Logger LOGGER = Logger.getLogger(AlfrescoMutationBatcher.class);
+
+    /**
+     * Connectors used to send changes.
+     */
+    private final AlfrescoConnectorPool connectors;
+
+    /**
+     * Threads used to send changes, or null to send them on the flushing
+     * thread.
+     */
+    private final ExecutorService workers;
+
+    /**
+     * Number of changes which triggers a flush.
+     */
+    private final int maxBatch;
+
+    /**
+     * Age of the oldest change which triggers a flush when another change is
+     * queued, in milliseconds.
+     */
+    private final long maxDelay;
+
+    /**
+     * Changes waiting to be sent, keyed by site or group and user.
+     */
+    private Map<String, Mutation> pending = new LinkedHashMap<String, Mutation>();
+
+    /**
+     * When the oldest change in pending was queued.
+     */
+    private long oldest = 0;
+
+    /**
+     * Held while a batch is being sent.
+     */
+    private final Object flushLock = new Object();
+
+    /**
+     * Number of changes queued.
+     */
+    private long queued = 0;
+
+    /**
+     * Number of changes dropped because a later change replaced them.
+     */
+    private long coalesced = 0;
+
+    /**
+     * Number of batches sent.
+     */
+    private long batches = 0;
+
+    /**
+     * @param connectors Connectors used to send changes, one per thread
+     * @param maxBatch Number of changes which triggers a flush
+     * @param maxDelay Age of the oldest change which triggers a flush when another change is queued,
+     *        in milliseconds
+     */
+    AlfrescoMutationBatcher(final AlfrescoConnectorPool connectors, final int maxBatch, final long maxDelay) {
+        this.connectors = connectors;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxDelay = maxDelay;
+
+        if (connectors.size() > 1) {
+            workers = Executors.newFixedThreadPool(connectors.size(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(runnable, "alfresco-batch-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            workers = null;
+        }
+    }
+
+    /**
+     * Queue the addition of a user to a site.
+     * @param site The site
+     * @param user The user
+     * @param role The user's role in the site
+     * @param handler Told if the change fails
+     * @throws LdapException If this triggers a flush, from a FailureHandler
+     * @throws AlfrescoException If this triggers a flush, from a FailureHandler
+     */
+    void addMemberToSite(final String site, final String user, final AlfrescoConnector.RoleType role,
+            final FailureHandler handler) throws LdapException, AlfrescoException {
+        queue(new Mutation(Mutation.Type.ADD_SITE_MEMBER, site, user, role, handler));
+    }
+
+    /**
+     * Queue the removal of a user from a site.
+     * @param site The site
+     * @param user The user
+     * @param handler Told if the change fails
+     * @throws LdapException If this triggers a flush, from a FailureHandler
+     * @throws AlfrescoException If this triggers a flush, from a FailureHandler
+     */
+    void removeMemberFromSite(final String site, final String user, final FailureHandler handler)
+            throws LdapException, AlfrescoException {
+        queue(new Mutation(Mutation.Type.REMOVE_SITE_MEMBER, site, user, null, handler));
+    }
+
+    /**
+     * Queue the removal of a user from a site, if they are a member.
+     * @param site The site
+     * @param user The user
+     * @param handler Told if the change fails
+     * @throws LdapException If this triggers a flush, from a FailureHandler
+     * @throws AlfrescoException If this triggers a flush, from a FailureHandler
+     */
+    void removeMemberFromSiteIfPresent(final String site, final String user, final FailureHandler handler)
+            throws LdapException, AlfrescoException {
+        queue(new Mutation(Mutation.Type.REMOVE_SITE_MEMBER_IF_PRESENT, site, user, null, handler));
+    }
+
+    /**
+     * Queue the addition of a user to a group.
+     * @param user The user
+     * @param group The group
+     * @param handler Told if the change fails
+     * @throws LdapException If this triggers a flush, from a FailureHandler
+     * @throws AlfrescoException If this triggers a flush, from a FailureHandler
+     */
+    void addMemberToGroup(final String user, final String group, final FailureHandler handler)
+            throws LdapException, AlfrescoException {
+        queue(new Mutation(Mutation.Type.ADD_GROUP_MEMBER, group, user, null, handler));
+    }
+
+    /**
+     * Queue the removal of a user from a group, if they are a member.
+     * @param user The user
+     * @param group The group
+     * @param handler Told if the change fails
+     * @throws LdapException If this triggers a flush, from a FailureHandler
+     * @throws AlfrescoException If this triggers a flush, from a FailureHandler
+     */
+    void removeMemberFromGroupIfPresent(final String user, final String group, final FailureHandler handler)
+            throws LdapException, AlfrescoException {
+        queue(new Mutation(Mutation.Type.REMOVE_GROUP_MEMBER_IF_PRESENT, group, user, null, handler));
+    }
+
+    /**
+     * Send every queued change, and wait for them to finish.
+     * @throws LdapException From a FailureHandler, or if interrupted
+     * @throws AlfrescoException From a FailureHandler
+     */
+    void flush() throws LdapException, AlfrescoException {
+        synchronized (flushLock) {
+            Collection<Mutation> batch;
+
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+
+                batch = pending.values();
+                pending = new LinkedHashMap<String, Mutation>();
+                batches++;
+            }
+
+            // additions first, then removals
+            List<Mutation> additions = new ArrayList<Mutation>();
+            List<Mutation> removals = new ArrayList<Mutation>();
+            Iterator<Mutation> iter = batch.iterator();
+
+            while (iter.hasNext()) {
+                Mutation mutation = iter.next();
+
+                if (mutation.isAddition()) {
+                    additions.add(mutation);
+                } else {
+                    removals.add(mutation);
+                }
+            }
+
+            LOGGER.debug("Sending " + additions.size() + " additions and " + removals.size() + " removals");
+
+            Map<Mutation, AlfrescoException> failures = new LinkedHashMap<Mutation, AlfrescoException>();
+            send(additions, failures);
+            send(removals, failures);
+
+            reportFailures(failures);
+        }
+    }
+
+    /**
+     * Throw away every queued change without sending it, e.g. after an update
+     * has failed.
+     */
+    synchronized void discard() {
+        pending.clear();
+    }
+
+    /**
+     * Stop the threads used to send changes.  Any changes still queued are
+     * discarded.
+     */
+    void shutdown() {
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * @return Number of changes queued
+     */
+    synchronized long getQueued() {
+        return queued;
+    }
+
+    /**
+     * @return Number of changes dropped because a later change replaced them
+     */
+    synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * @return Number of batches sent
+     */
+    synchronized long getBatches() {
+        return batches;
+    }
+
+    /**
+     * @return Number of connectors changes are sent on
+     */
+    int getConnectorCount() {
+        return connectors.size();
+    }
+
+    /**
+     * Queue a change, replacing any earlier change to the same membership,
+     * and flush if the batch is full or old enough.
+     * @param mutation The change
+     * @throws LdapException If a flush is triggered, from a FailureHandler
+     * @throws AlfrescoException If a flush is triggered, from a FailureHandler
+     */
+    private void queue(final Mutation mutation) throws LdapException, AlfrescoException {
+        boolean full;
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+
+            if (pending.isEmpty()) {
+                oldest = now;
+            }
+
+            if (pending.remove(mutation.getKey()) != null) {
+                coalesced++;
+            }
+
+            pending.put(mutation.getKey(), mutation);
+            queued++;
+
+            full = pending.size() >= maxBatch || now - oldest >= maxDelay;
+        }
+
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Send some changes and wait for them to finish.
+     * @param mutations The changes
+     * @param failures Where to record the changes which fail
+     * @throws LdapException If interrupted
+     */
+    private void send(final List<Mutation> mutations, final Map<Mutation, AlfrescoException> failures)
+            throws LdapException {
+        if (mutations.isEmpty()) {
+            return;
+        }
+
+        try {
+            if (workers == null) {
+                AlfrescoConnector connector = connectors.borrow();
+
+                try {
+                    Iterator<Mutation> iter = mutations.iterator();
+
+                    while (iter.hasNext()) {
+                        Mutation mutation = iter.next();
+                        AlfrescoException failure = apply(mutation, connector);
+
+                        if (failure != null) {
+                            failures.put(mutation, failure);
+                        }
+                    }
+                } finally {
+                    connectors.release(connector);
+                }
+
+                return;
+            }
+
+            List<Future<AlfrescoException>> results = new ArrayList<Future<AlfrescoException>>(mutations.size());
+
+            try {
+                Iterator<Mutation> iter = mutations.iterator();
+
+                while (iter.hasNext()) {
+                    final Mutation mutation = iter.next();
+
+                    results.add(workers.submit(new Callable<AlfrescoException>() {
+                        public AlfrescoException call() throws InterruptedException {
+                            AlfrescoConnector connector = connectors.borrow();
+
+                            try {
+                                return apply(mutation, connector);
+                            } finally {
+                                connectors.release(connector);
+                            }
+                        }
+                    }));
+                }
+
+                for (int x = 0; x < mutations.size(); x++) {
+                    AlfrescoException failure = results.get(x).get();
+
+                    if (failure != null) {
+                        failures.put(mutations.get(x), failure);
+                    }
+                }
+            } finally {
+                Iterator<Future<AlfrescoException>> resultIter = results.iterator();
+
+                while (resultIter.hasNext()) {
+                    resultIter.next().cancel(true);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LdapException("Interrupted sending changes to Alfresco", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new LdapException("Cannot send changes to Alfresco", cause);
+        }
+    }
+
+    /**
+     * Make one change.  Overridden by tests to record the changes rather
+     * than send them.
+     * @param mutation The change
+     * @param connector Connector to the Alfresco server
+     * @return Why the change failed, or null if it succeeded
+     */
+    AlfrescoException apply(final Mutation mutation, final AlfrescoConnector connector) {
+        return mutation.applyTo(connector);
+    }
+
+    /**
+     * Tell the handler of each failed change about it.  Every handler is
+     * told, even if an earlier one throws.
+     * @param failures The changes which failed
+     * @throws LdapException The first LDAP error thrown by a handler
+     * @throws AlfrescoException The first Alfresco error thrown by a handler
+     */
+    private void reportFailures(final Map<Mutation, AlfrescoException> failures)
+            throws LdapException, AlfrescoException {
+        LdapException ldapFailure = null;
+        AlfrescoException alfrescoFailure = null;
+
+        Iterator<Map.Entry<Mutation, AlfrescoException>> iter = failures.entrySet().iterator();
+
+        while (iter.hasNext()) {
+            Map.Entry<Mutation, AlfrescoException> failure = iter.next();
+
+            try {
+                failure.getKey().handler.failed(failure.getKey(), failure.getValue());
+            } catch (LdapException e) {
+                if (ldapFailure == null && alfrescoFailure == null) {
+                    ldapFailure = e;
+                }
+            } catch (AlfrescoException e) {
+                if (ldapFailure == null && alfrescoFailure == null) {
+                    alfrescoFailure = e;
+                }
+            }
+        }
+
+        if (ldapFailure != null) {
+            throw ldapFailure;
+        } else if (alfrescoFailure != null) {
+            throw alfrescoFailure;
+        }
+    }
+
+    /**
+     * A queued change to the membership of a site or group.
+     */
+    static final class Mutation {
+
+        /**
+         * The kinds of change.
+         */
+        enum Type {
+            ADD_SITE_MEMBER, REMOVE_SITE_MEMBER, REMOVE_SITE_MEMBER_IF_PRESENT,
+            ADD_GROUP_MEMBER, REMOVE_GROUP_MEMBER_IF_PRESENT
+        }
+
+        /**
+         * The kind of change.
+         */
+        private final Type type;
+
+        /**
+         * The site or group.
+         */
+        private final String target;
+
+        /**
+         * The user.
+         */
+        private final String user;
+
+        /**
+         * The user's role in a site, or null.
+         */
+        private final AlfrescoConnector.RoleType role;
+
+        /**
+         * Told if the change fails.
+         */
+        private final FailureHandler handler;
+
+        /**
+         * @param type The kind of change
+         * @param target The site or group
+         * @param user The user
+         * @param role The user's role in a site, or null
+         * @param handler Told if the change fails
+         */
+        Mutation(final Type type, final String target, final String user, final AlfrescoConnector.RoleType role,
+                final FailureHandler handler) {
+            this.type = type;
+            this.target = target;
+            this.user = user;
+            this.role = role;
+            this.handler = handler;
+        }
+
+        /**
+         * @return The kind of change
+         */
+        Type getType() {
+            return type;
+        }
+
+        /**
+         * @return The site or group
+         */
+        String getTarget() {
+            return target;
+        }
+
+        /**
+         * @return The user
+         */
+        String getUser() {
+            return user;
+        }
+
+        /**
+         * @return True if the change adds a user
+         */
+        boolean isAddition() {
+            return type == Type.ADD_SITE_MEMBER || type == Type.ADD_GROUP_MEMBER;
+        }
+
+        /**
+         * @return Identifies the membership being changed, so later changes
+         * to it replace earlier ones
+         */
+        private String getKey() {
+            boolean site = type == Type.ADD_SITE_MEMBER || type == Type.REMOVE_SITE_MEMBER
+                    || type == Type.REMOVE_SITE_MEMBER_IF_PRESENT;
+
+            return (site ? "site:" : "group:") + target + "\u0000" + user;
+        }
+
+        /**
+         * Make the change.
+         * @param alf Connector to the Alfresco server
+         * @return Why the change failed, or null if it succeeded
+         */
+        private AlfrescoException applyTo(final AlfrescoConnector alf) {
+            try {
+                switch (type) {
+                case ADD_SITE_MEMBER:
+                    alf.addMemberToSite(target, user, role);
+                    break;
+                case REMOVE_SITE_MEMBER:
+                    alf.removeMemberFromSite(target, user);
+                    break;
+                case REMOVE_SITE_MEMBER_IF_PRESENT:
+                    alf.removeMemberFromSiteIfPresent(target, user);
+                    break;
+                case ADD_GROUP_MEMBER:
+                    alf.addMemberToGroup(user, target);
+                    break;
+                case REMOVE_GROUP_MEMBER_IF_PRESENT:
+                    alf.removeMemberFromGroupIfPresent(user, target);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown change " + type);
+                }
+                return null;
+            } catch (AlfrescoException e) {
+                return e;
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return type + " " + user + " " + target + (role == null ? "" : " as " + role);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchResult;
+
+/**
+ * Runs LdapConnector searches on a small pool of threads, returning a Future
+ * for each, so that callers can keep several directory requests in flight
+ * while they get on with other work such as calls to Alfresco.
+ * 
+ * The wrapped connector is used from several threads at once, so it must be
+ * safe for concurrent use, i.e. a {@link LongLivedLdapConnector} whose
+ * connection pool is at least twice the size of the thread pool.
+ */
+public class AsyncLdapConnector {
+
+    /**
+     * The connector which does the work.
+     */
+    private final LdapConnector ldap;
+
+    /**
+     * Threads which run the searches.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * @param ldap The connector which does the work, which must be thread safe
+     * @param threads Number of searches to run at once
+     */
+    public AsyncLdapConnector(final LdapConnector ldap, final int threads) {
+        this.ldap = ldap;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(runnable, "ldap-async-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Wait for the result of a search, unwrapping any LdapException it threw.
+     * @param <T> Type of the result
+     * @param future The search
+     * @return The result
+     * @throws LdapException If the search failed or the wait was interrupted
+     */
+    public static <T> T await(final Future<T> future) throws LdapException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LdapException("Interrupted waiting for LDAP", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof LdapException) {
+                throw (LdapException) e.getCause();
+            }
+            throw new LdapException("LDAP search failed", e.getCause());
+        }
+    }
+
+    /**
+     * @see LdapConnector#getGroupMembers(String, LdapConnector.GroupType)
+     * @param groupName Name of the group
+     * @param gt Type of the group
+     * @return The members, when available
+     */
+    public Future<Collection<String>> getGroupMembers(final String groupName, final LdapConnector.GroupType gt) {
+        return executor.submit(new Callable<Collection<String>>() {
+            public Collection<String> call() throws LdapException {
+                return ldap.getGroupMembers(groupName, gt);
+            }
+        });
+    }
+
+    /**
+     * @see LdapConnector#getGroupMembers(Collection, LdapConnector.GroupType)
+     * @param groupNames Names of the groups
+     * @param gt Type of the groups
+     * @return Map from each group name to its members, when available
+     */
+    public Future<Map<String, Collection<String>>> getGroupMembers(final Collection<String> groupNames,
+            final LdapConnector.GroupType gt) {
+        return executor.submit(new Callable<Map<String, Collection<String>>>() {
+            public Map<String, Collection<String>> call() throws LdapException {
+                return ldap.getGroupMembers(groupNames, gt);
+            }
+        });
+    }
+
+    /**
+     * Stream the members of a group to a handler on one of the pool's threads.
+     * @see LdapConnector#forEachGroupMember(String, LdapConnector.GroupType, LdapResultHandler)
+     * @param groupName Name of the group
+     * @param gt Type of the group
+     * @param handler Receives each username in turn, on a pool thread
+     * @return Completes when every member has been handled
+     */
+    public Future<Void> forEachGroupMember(final String groupName, final LdapConnector.GroupType gt,
+            final LdapResultHandler<String> handler) {
+        return executor.submit(new Callable<Void>() {
+            public Void call() throws LdapException {
+                ldap.forEachGroupMember(groupName, gt, handler);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see LdapConnector#getAllGroups(LdapConnector.GroupType)
+     * @param gt The type of groups
+     * @return List of group names, when available
+     */
+    public Future<Collection<String>> getAllGroups(final LdapConnector.GroupType gt) {
+        return executor.submit(new Callable<Collection<String>>() {
+            public Collection<String> call() throws LdapException {
+                return ldap.getAllGroups(gt);
+            }
+        });
+    }
+
+    /**
+     * @see LdapConnector#getModifiedGroups(LdapConnector.GroupType, String)
+     * @param gt The type of groups
+     * @param timestamp The time to compare with
+     * @return List of group names, when available
+     */
+    public Future<Collection<String>> getModifiedGroups(final LdapConnector.GroupType gt, final String timestamp) {
+        return executor.submit(new Callable<Collection<String>>() {
+            public Collection<String> call() throws LdapException {
+                return ldap.getModifiedGroups(gt, timestamp);
+            }
+        });
+    }
+
+    /**
+     * Stream the attributes of every user to a handler on one of the pool's threads.
+     * @see LdapConnector#forEachUser(String[], LdapResultHandler)
+     * @param returningAttributes Attributes to return, or null for all of them
+     * @param handler Receives the attributes of each user in turn, on a pool thread
+     * @return Completes when every user has been handled
+     */
+    public Future<Void> forEachUser(final String[] returningAttributes, final LdapResultHandler<Attributes> handler) {
+        return executor.submit(new Callable<Void>() {
+            public Void call() throws LdapException {
+                ldap.forEachUser(returningAttributes, handler);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Stream the attributes of every modified user to a handler on one of the pool's threads.
+     * @see LdapConnector#forEachModifiedUser(String, String[], LdapResultHandler)
+     * @param timestamp The time to compare with
+     * @param returningAttributes Attributes to return, or null for all of them
+     * @param handler Receives the attributes of each user in turn, on a pool thread
+     * @return Completes when every user has been handled
+     */
+    public Future<Void> forEachModifiedUser(final String timestamp, final String[] returningAttributes,
+            final LdapResultHandler<Attributes> handler) {
+        return executor.submit(new Callable<Void>() {
+            public Void call() throws LdapException {
+                ldap.forEachModifiedUser(timestamp, returningAttributes, handler);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see LdapConnector#getAllUsers()
+     * @return List of user attributes, when available
+     */
+    public Future<Collection<Attributes>> getAllUsers() {
+        return executor.submit(new Callable<Collection<Attributes>>() {
+            public Collection<Attributes> call() throws LdapException {
+                return ldap.getAllUsers();
+            }
+        });
+    }
+
+    /**
+     * @see LdapConnector#getModifiedUsers(String)
+     * @param timestamp The time to compare with
+     * @return List of user attributes, when available
+     */
+    public Future<Collection<Attributes>> getModifiedUsers(final String timestamp) {
+        return executor.submit(new Callable<Collection<Attributes>>() {
+            public Collection<Attributes> call() throws LdapException {
+                return ldap.getModifiedUsers(timestamp);
+            }
+        });
+    }
+
+    /**
+     * @see LdapConnector#getFullDnForUser(String)
+     * @param username The user
+     * @return The user's full DN, when available
+     */
+    public Future<String> getFullDnForUser(final String username) {
+        return executor.submit(new Callable<String>() {
+            public String call() throws LdapException {
+                return ldap.getFullDnForUser(username);
+            }
+        });
+    }
+
+    /**
+     * @see LdapConnector#getSingleSearchResultObjectforUser(String)
+     * @param username The user
+     * @return The user's entry, when available
+     */
+    public Future<SearchResult> getSingleSearchResultObjectforUser(final String username) {
+        return executor.submit(new Callable<SearchResult>() {
+            public SearchResult call() throws LdapException {
+                return ldap.getSingleSearchResultObjectforUser(username);
+            }
+        });
+    }
+
+    /**
+     * @see LdapConnector#getSiteMemberships(String)
+     * @param username The user
+     * @return Names of the user's sites, when available
+     */
+    public Future<Collection<String>> getSiteMemberships(final String username) {
+        return executor.submit(new Callable<Collection<String>>() {
+            public Collection<String> call() throws LdapException {
+                return ldap.getSiteMemberships(username);
+            }
+        });
+    }
+
+    /**
+     * Stop accepting searches.  Searches already submitted still run.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
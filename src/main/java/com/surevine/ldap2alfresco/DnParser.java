@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Extracts attribute values from the string form of LDAP distinguished
+ * names (RFC 4514) without splitting the whole name into parts.
+ * 
+ * Values may contain escaped special characters, e.g. "cn=Smith\, John" or
+ * "cn=Smith\2C John", and old-style quoted values, e.g. "cn=\"Smith, John\"".
+ */
+final class DnParser {
+
+    /**
+     * Not instantiable.
+     */
+    private DnParser() {
+    }
+
+    /**
+     * Find the value of the first RDN of a given type in a DN, and return the
+     * canonical copy of it from a table of names.  When the value contains
+     * no escapes no string is allocated unless the name is new to the table.
+     * @param dn The DN, e.g. "cn=bob,ou=people,dc=example,dc=com"
+     * @param type The attribute type to look for, e.g. "cn" (matched without
+     * regard to case)
+     * @param names Table of canonical names
+     * @return The value, e.g. "bob", or null if there is no RDN of that type
+     */
+    static String getFirstValue(final String dn, final String type, final UsernameTable names) {
+        int length = dn.length();
+        int pos = 0;
+
+        while (pos < length) {
+            // skip spaces before the attribute type
+            while (pos < length && dn.charAt(pos) == ' ') {
+                pos++;
+            }
+
+            int typeStart = pos;
+
+            while (pos < length && dn.charAt(pos) != '=') {
+                pos++;
+            }
+
+            if (pos >= length) {
+                return null;
+            }
+
+            int typeEnd = pos;
+
+            // trim spaces between the type and '='
+            while (typeEnd > typeStart && dn.charAt(typeEnd - 1) == ' ') {
+                typeEnd--;
+            }
+
+            // skip '=' and spaces before the value
+            pos++;
+
+            while (pos < length && dn.charAt(pos) == ' ') {
+                pos++;
+            }
+
+            int valueStart = pos;
+            boolean escaped = false;
+            boolean quoted = false;
+
+            if (pos < length && dn.charAt(pos) == '"') {
+                quoted = true;
+                pos++;
+
+                while (pos < length && dn.charAt(pos) != '"') {
+                    if (dn.charAt(pos) == '\\') {
+                        escaped = true;
+                        pos++;
+                    }
+                    pos++;
+                }
+
+                pos++;
+            } else {
+                while (pos < length && !isSeparator(dn.charAt(pos))) {
+                    if (dn.charAt(pos) == '\\') {
+                        escaped = true;
+                        pos++;
+                    }
+                    pos++;
+                }
+            }
+
+            int valueEnd = Math.min(pos, length);
+
+            if (typeEnd - typeStart == type.length() && dn.regionMatches(true, typeStart, type, 0, type.length())) {
+                if (quoted) {
+                    return names.intern(unescape(dn, valueStart + 1, Math.max(valueStart + 1, valueEnd - 1)));
+                }
+
+                // trailing spaces are only part of the value if escaped
+                while (valueEnd > valueStart && dn.charAt(valueEnd - 1) == ' '
+                        && !(valueEnd - 2 >= valueStart && dn.charAt(valueEnd - 2) == '\\')) {
+                    valueEnd--;
+                }
+
+                if (escaped) {
+                    return names.intern(unescape(dn, valueStart, valueEnd));
+                }
+
+                return names.intern(dn, valueStart, valueEnd);
+            }
+
+            // move past the separator to the next attribute
+            while (pos < length && !isSeparator(dn.charAt(pos))) {
+                pos++;
+            }
+            pos++;
+        }
+
+        return null;
+    }
+
+    /**
+     * Is a character an unescaped separator between RDNs or between the
+     * attributes of a multi-valued RDN?
+     * @param c The character
+     * @return True if it is a separator
+     */
+    private static boolean isSeparator(final char c) {
+        return c == ',' || c == ';' || c == '+';
+    }
+
+    /**
+     * Remove escapes from part of a DN.  Escaped characters are copied as
+     * they are, and escaped hex pairs are decoded as UTF-8 bytes.
+     * @param dn The DN
+     * @param start Index of the first character of the value
+     * @param end Index after the last character of the value
+     * @return The unescaped value
+     */
+    private static String unescape(final String dn, final int start, final int end) {
+        StringBuilder value = new StringBuilder(end - start);
+        ByteArrayOutputStream bytes = null;
+        int pos = start;
+
+        while (pos < end) {
+            char c = dn.charAt(pos);
+
+            if (c == '\\' && pos + 2 < end && isHex(dn.charAt(pos + 1)) && isHex(dn.charAt(pos + 2))) {
+                if (bytes == null) {
+                    bytes = new ByteArrayOutputStream();
+                }
+                bytes.write(Integer.parseInt(dn.substring(pos + 1, pos + 3), 16));
+                pos += 3;
+                continue;
+            }
+
+            flush(bytes, value);
+
+            if (c == '\\' && pos + 1 < end) {
+                value.append(dn.charAt(pos + 1));
+                pos += 2;
+            } else {
+                value.append(c);
+                pos++;
+            }
+        }
+
+        flush(bytes, value);
+
+        return value.toString();
+    }
+
+    /**
+     * Decode any pending escaped bytes as UTF-8 onto the end of a value.
+     * @param bytes Pending bytes, or null if there are none
+     * @param value Where to put the decoded characters
+     */
+    private static void flush(final ByteArrayOutputStream bytes, final StringBuilder value) {
+        if (bytes != null && bytes.size() > 0) {
+            try {
+                value.append(bytes.toString("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                // every JVM supports UTF-8
+                throw new IllegalStateException(e);
+            }
+            bytes.reset();
+        }
+    }
+
+    /**
+     * @param c A character
+     * @return True if it is a hex digit
+     */
+    private static boolean isHex(final char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Hashes of what was last sent to Alfresco for each of a set of keys, such
+ * as the member list of each security group, kept in a text file between
+ * runs so that anything which hasn't changed isn't sent again.  Each line
+ * holds a key and its hash, separated by a tab.
+ *
+ * A hash should only be recorded once it has been sent successfully, and
+ * forgotten if sending fails, so that a matching hash means Alfresco
+ * already has it.
+ */
+class HashStore {
+
+    /**
+     * Character set of the file, and of strings when hashing.
+     */
+    private static final String CHARSET = "UTF-8";
+
+    /**
+     * Separates the fields of each line.
+     */
+    private static final char SEPARATOR = '\t';
+
+    /**
+     * Logging instance.
+     */
+    private static final Logger LOGGER = Logger.getLogger(HashStore.class);
+
+    /**
+     * Where the hashes are kept.
+     */
+    private final File file;
+
+    /**
+     * Hash of each key.
+     */
+    private final Map<String, Long> hashes = new HashMap<String, Long>();
+
+    /**
+     * Whether the hashes have changed since they were loaded or saved.
+     */
+    private boolean modified;
+
+    /**
+     * Number of keys found unchanged.
+     */
+    private long skipped;
+
+    /**
+     * @param file Where the hashes are kept
+     */
+    HashStore(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Read the hashes saved by an earlier run, if there are any.
+     */
+    synchronized void load() {
+        hashes.clear();
+        modified = false;
+
+        BufferedReader in = null;
+
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+
+            String line;
+
+            while ((line = in.readLine()) != null) {
+                int split = line.lastIndexOf(SEPARATOR);
+
+                if (split > 0) {
+                    // written unsigned, so negative hashes don't fit Long.parseLong
+                    long hash = new BigInteger(line.substring(split + 1), 16).longValue();
+                    hashes.put(line.substring(0, split), Long.valueOf(hash));
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // no hashes yet
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read " + file + ", ignoring it", e);
+            hashes.clear();
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Cannot read " + file + ", ignoring it", e);
+            hashes.clear();
+        } finally {
+            StateDirectory.close(in);
+        }
+    }
+
+    /**
+     * Save the hashes if they have changed, as described by
+     * {@link StateDirectory#write}.
+     */
+    synchronized void save() {
+        if (!modified) {
+            return;
+        }
+
+        try {
+            StateDirectory.write(file, new StateDirectory.Contents() {
+                public void writeTo(final OutputStream stream) throws IOException {
+                    Writer out = new OutputStreamWriter(stream, CHARSET);
+                    Iterator<Map.Entry<String, Long>> iter = hashes.entrySet().iterator();
+
+                    while (iter.hasNext()) {
+                        Map.Entry<String, Long> entry = iter.next();
+                        out.write(entry.getKey());
+                        out.write(SEPARATOR);
+                        out.write(Long.toHexString(entry.getValue().longValue()));
+                        out.write('\n');
+                    }
+
+                    out.flush();
+                }
+            });
+
+            modified = false;
+        } catch (IOException e) {
+            LOGGER.error("Cannot write " + file, e);
+        }
+    }
+
+    /**
+     * Whether a hash is the same as the one last sent for a key, which
+     * counts it as skipped if so.
+     * @param key The key, which mustn't contain line breaks
+     * @param hash The hash, from one of the hash() methods
+     * @return True if it doesn't need to be sent
+     */
+    synchronized boolean isUnchanged(final String key, final long hash) {
+        Long previous = hashes.get(key);
+
+        if (previous != null && previous.longValue() == hash) {
+            skipped++;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Record the hash sent for a key.
+     * @param key The key, which mustn't contain line breaks
+     * @param hash The hash, from one of the hash() methods
+     */
+    synchronized void put(final String key, final long hash) {
+        Long previous = hashes.put(key, Long.valueOf(hash));
+
+        if (previous == null || previous.longValue() != hash) {
+            modified = true;
+        }
+    }
+
+    /**
+     * Forget the hash sent for a key, e.g. because sending a new one failed
+     * part way.
+     * @param key The key
+     */
+    synchronized void remove(final String key) {
+        if (hashes.remove(key) != null) {
+            modified = true;
+        }
+    }
+
+    /**
+     * @return Number of keys found unchanged by isUnchanged()
+     */
+    synchronized long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Hash a member list, regardless of its order or of duplicates.
+     * @param members The members
+     * @return The first 64 bits of the SHA-1 digest of the sorted members
+     */
+    static long hash(final Collection<String> members) {
+        MessageDigest digest = newDigest();
+
+        try {
+            Iterator<String> iter = new TreeSet<String>(members).iterator();
+
+            while (iter.hasNext()) {
+                digest.update(iter.next().getBytes(CHARSET));
+                digest.update((byte) '\n');
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(CHARSET + " is not available", e);
+        }
+
+        return toLong(digest.digest());
+    }
+
+    /**
+     * Hash a string.
+     * @param value The string
+     * @return The first 64 bits of the SHA-1 digest of the string
+     */
+    static long hash(final String value) {
+        MessageDigest digest = newDigest();
+
+        try {
+            digest.update(value.getBytes(CHARSET));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(CHARSET + " is not available", e);
+        }
+
+        return toLong(digest.digest());
+    }
+
+    /**
+     * @return A new SHA-1 digest
+     */
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    /**
+     * @param bytes A digest
+     * @return Its first 64 bits
+     */
+    private static long toLong(final byte[] bytes) {
+        long hash = 0;
+
+        for (int x = 0; x < 8; x++) {
+            hash = (hash << 8) | (bytes[x] & 0xff);
+        }
+
+        return hash;
+    }
+}
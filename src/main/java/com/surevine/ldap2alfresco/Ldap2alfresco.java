@@ -21,12 +21,23 @@
 */
 package com.surevine.ldap2alfresco;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.channels.FileLock;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -53,11 +64,61 @@ public class Ldap2alfresco {
 	 */
 	private LdapConnector ldap;
 
+	/**
+	 * Runs LDAP searches in the background, or null if disabled.
+	 */
+	private AsyncLdapConnector asyncLdap = null;
+
 	/**
 	 * Connector to the Alfresco server.
 	 */
 	private AlfrescoConnector alfresco;
 
+	/**
+	 * Connectors to the Alfresco server shared by the site workers,
+	 * including the main connector.
+	 */
+	private AlfrescoConnectorPool alfrescoPool;
+
+	/**
+	 * Number of sites to update at once.
+	 */
+	private int siteThreads;
+
+	/**
+	 * Capacity of each queue in the site update pipeline, or 0 if sites
+	 * are not updated through a pipeline.
+	 */
+	private int pipelineQueueSize;
+
+	/**
+	 * Number of update phases to run at once.
+	 */
+	private int phaseThreads;
+
+	/**
+	 * Members of each site after it was last synchronised, or null if sites
+	 * are always read from Alfresco.
+	 */
+	private SiteSnapshot siteSnapshot = null;
+
+	/**
+	 * Usernames and group memberships held as integer IDs and bitmaps, used
+	 * to work out changes to groups and to hold the site snapshot.
+	 */
+	private final MembershipStore memberships = new MembershipStore();
+
+	/**
+	 * The members of the admins group at the end of the last run.
+	 */
+	private UserListFile adminsFile;
+
+	/**
+	 * How often the site snapshot is verified against Alfresco, in
+	 * milliseconds.
+	 */
+	private long snapshotVerifyInterval;
+
 	/**
 	 * To update profile fields.
 	 */
@@ -95,6 +156,102 @@ public class Ldap2alfresco {
 	 */
 	private String deletersRoleName;
 
+	/**
+	 * Queues changes to Alfresco memberships and sends them in batches, or
+	 * null if changes are made straight away.
+	 */
+	private AlfrescoMutationBatcher mutations = null;
+
+	/**
+	 * Recovers from a failed change to a site sent in a batch, in the same
+	 * way as when the change is made straight away.
+	 */
+	private final AlfrescoMutationBatcher.FailureHandler siteFailureHandler = new AlfrescoMutationBatcher.FailureHandler() {
+		public void failed(final AlfrescoMutationBatcher.Mutation mutation, final AlfrescoException e) throws LdapException {
+			siteJournal.failed(mutation.getTarget());
+			if (siteSnapshot != null) {
+				siteSnapshot.remove(mutation.getTarget());
+			}
+			recoverFromException(e, mutation.getTarget(), LdapConnector.GroupType.SITE);
+		}
+	};
+
+	/**
+	 * Treats a failed change sent in a batch as fatal, as when the change is
+	 * made straight away.
+	 */
+	private static final AlfrescoMutationBatcher.FailureHandler RETHROW_FAILURE = new AlfrescoMutationBatcher.FailureHandler() {
+		public void failed(final AlfrescoMutationBatcher.Mutation mutation, final AlfrescoException e) throws AlfrescoException {
+			throw e;
+		}
+	};
+
+	/**
+	 * How long to wait after an LDAP change before applying it, so a burst
+	 * of changes is applied together, in milliseconds.
+	 */
+	private long feedQuietPeriod;
+
+	/**
+	 * How long to wait before re-opening a lost LDAP change feed, in
+	 * milliseconds.
+	 */
+	private long feedRetryDelay;
+
+	/**
+	 * Hashes of the member lists last sent for each security group, keyed by
+	 * markings constraint and group, or null to send every member list.
+	 */
+	private HashStore constraintHashes;
+
+	/**
+	 * The members added to and removed from each site during the current
+	 * update, so that deleters' access to the site's deleted items can be
+	 * kept in step.
+	 */
+	private final Map<String, MembershipDiff> siteDiffs = new ConcurrentHashMap<String, MembershipDiff>();
+
+	/**
+	 * Journals the sites whose changes have been made, and their deleters.
+	 */
+	private SiteJournal siteJournal;
+
+	/**
+	 * Adaptive limit on the number of calls made to Alfresco at once, or null
+	 * to make as many calls as there are connectors.
+	 */
+	private AdaptiveConcurrencyLimit alfrescoLimit;
+
+	/**
+	 * Progress of the current update, so that it can be resumed if it
+	 * doesn't complete.
+	 */
+	private RunJournal journal;
+
+	/**
+	 * File locked during each update, so that only one copy of the tool
+	 * using the same state runs at a time.
+	 */
+	private File instanceLockFile;
+
+	/**
+	 * How long to wait between the starts of updates when running as a
+	 * daemon, in milliseconds.
+	 */
+	private long daemonInterval;
+
+	/**
+	 * Whether the lock entry in LDAP was created by this instance and has not
+	 * been deleted, because the last update did not complete.
+	 */
+	private volatile boolean locked;
+
+	/**
+	 * Whether changes from the change feed were skipped because the lock was
+	 * held by someone else, so an incremental update must pick them up.
+	 */
+	private boolean pollPending;
+
 	/**
 	 * Logging instance.
 	 */
@@ -108,13 +265,30 @@ public class Ldap2alfresco {
 	 */
 	public static void main(final String[] args) {
 		boolean force = false;
+		boolean watch = false;
+		boolean daemon = false;
 
 		if (args.length > 0 && args[0].equalsIgnoreCase("force")) {
 			force = true;
+		} else if (args.length > 0 && args[0].equalsIgnoreCase("watch")) {
+			watch = true;
+		} else if (args.length > 0 && args[0].equalsIgnoreCase("daemon")) {
+			daemon = true;
 		}
 
-		Ldap2alfresco ldap2alf = new Ldap2alfresco(PROPERTIES_FILENAME);
-		ldap2alf.update(force);
+		Ldap2alfresco ldap2alf = new Ldap2alfresco(PROPERTIES_FILENAME, watch || daemon);
+
+		try {
+			if (watch) {
+				ldap2alf.watch();
+			} else if (daemon) {
+				ldap2alf.runDaemon();
+			} else {
+				ldap2alf.update(force);
+			}
+		} finally {
+			ldap2alf.shutdown();
+		}
 
 		// This could be uncommented to test inserting data into LDAP
 		// TestRichProfiles.testUpdateToLdap(PROPERTIES_FILENAME);
@@ -125,6 +299,18 @@ public class Ldap2alfresco {
 	 *            Name of properties file to configure the application
 	 */
 	public Ldap2alfresco(final String propertiesFilename) {
+		this(propertiesFilename, false);
+	}
+
+	/**
+	 * @param propertiesFilename
+	 *            Name of properties file to configure the application
+	 * @param longLived
+	 *            Set to true if this instance will run several updates, so
+	 *            that it uses an LDAP connector which recovers from lost
+	 *            connections
+	 */
+	public Ldap2alfresco(final String propertiesFilename, final boolean longLived) {
 		PropertyWrapper properties;
 
 		try {
@@ -142,12 +328,115 @@ public class Ldap2alfresco {
 
 			alfrescoMarkingsClosed = properties.getProperty("alfresco.markings.closed");
 
-			profileUpdater = new ProfileUpdater(properties);
+			StateDirectory stateDirectory = new StateDirectory(properties, propertiesFilename);
+
+			// optionally remember what was sent for each user's profile, so
+			// that unchanged profiles aren't sent again
+			if (PropertyUtils.getBoolean(properties, "alfresco.profile.hashes", false)) {
+				HashStore profileHashes = new HashStore(stateDirectory.getFile(propertiesFilename + "-profiles.txt"));
+				profileHashes.load();
+				profileUpdater = new ProfileUpdater(properties, profileHashes);
+			} else {
+				profileUpdater = new ProfileUpdater(properties);
+			}
+
+			// settings for watching LDAP for changes
+			feedQuietPeriod = PropertyUtils.getInt(properties, "ldap.feed.quiet.period", 2) * 1000L;
+			feedRetryDelay = PropertyUtils.getInt(properties, "ldap.feed.retry.delay", 30) * 1000L;
+
+			// settings for running as a daemon
+			daemonInterval = Math.max(1, PropertyUtils.getInt(properties, "update.daemon.interval", 300)) * 1000L;
+
+			// remember the admins between runs, to work out whose roles
+			// have changed when the admin group changes
+			adminsFile = new UserListFile(stateDirectory.getFile(propertiesFilename + "-admins.txt"));
+
+			// record the progress of each update so that one which doesn't
+			// complete can be resumed
+			journal = new RunJournal(stateDirectory.getFile(propertiesFilename + "-journal.txt"));
+			siteJournal = new SiteJournal(journal, memberships);
+			instanceLockFile = stateDirectory.getFile(propertiesFilename + ".lock");
+
+			// optionally remember what was sent for each security group, so
+			// that unchanged member lists aren't sent again
+			if (PropertyUtils.getBoolean(properties, "alfresco.constraint.hashes", false)) {
+				constraintHashes = new HashStore(stateDirectory.getFile(propertiesFilename + "-constraints.txt"));
+				constraintHashes.load();
+			}
+
+			// optionally diff LDAP against a snapshot of the sites kept
+			// next to the properties file, rather than reading Alfresco
+			if (PropertyUtils.getBoolean(properties, "alfresco.site.snapshot", false)) {
+				siteSnapshot = new SiteSnapshot(stateDirectory.getFile(propertiesFilename + "-sites.snapshot"), memberships);
+				siteSnapshot.load();
+				snapshotVerifyInterval = PropertyUtils.getInt(properties, "alfresco.site.snapshot.verify.hours", 24) * 3600000L;
+			}
+
+			// optionally keep LDAP searches in flight while Alfresco is
+			// being updated, and update several sites at once, both of
+			// which need a thread safe LDAP connector
+			int asyncThreads = PropertyUtils.getInt(properties, "ldap.async.threads", 0);
+
+			siteThreads = Math.max(1, PropertyUtils.getInt(properties, "alfresco.site.threads", 1));
+
+			pipelineQueueSize = Math.max(0, PropertyUtils.getInt(properties, "alfresco.pipeline.queue.size", 0));
+
+			// optionally run independent phases of the update at once
+			phaseThreads = Math.max(1, PropertyUtils.getInt(properties, "update.phase.threads", 1));
 
-			ldap = new LdapConnector(properties);
+			if (longLived || asyncThreads > 0 || siteThreads > 1 || pipelineQueueSize > 0 || phaseThreads > 1) {
+				ldap = new LongLivedLdapConnector(properties, getLdapThreadCount(asyncThreads));
+			} else {
+				ldap = new LdapConnector(properties);
+			}
+
+			if (asyncThreads > 0) {
+				asyncLdap = new AsyncLdapConnector(ldap, asyncThreads);
+			}
+
+			// each site worker and each other phase running alongside the
+			// sites gets its own authenticated connector
+			int connectorCount = siteThreads + phaseThreads - 1;
+
+			// optionally queue membership changes and send them in batches,
+			// on connectors of their own
+			int batchSize = PropertyUtils.getInt(properties, "alfresco.batch.size", 0);
+			int batchThreads = 0;
+
+			if (batchSize > 0) {
+				batchThreads = Math.max(1, PropertyUtils.getInt(properties, "alfresco.batch.threads", 4));
+			}
+
+			// optionally adapt the number of calls made to Alfresco at once,
+			// up to one per connector, to how well Alfresco is coping
+			if (PropertyUtils.getBoolean(properties, "alfresco.adaptive.concurrency", false)) {
+				int latencyPercent = PropertyUtils.getInt(properties, "alfresco.adaptive.latency.percent", 200);
+				alfrescoLimit = new AdaptiveConcurrencyLimit(connectorCount + batchThreads, latencyPercent / 100.0);
+			}
 
 			Authenticator auth = new CasAuthenticator(properties);
-			alfresco = new AlfrescoConnector(properties, auth);
+			alfresco = newAlfrescoConnector(properties, auth);
+
+			Collection<AlfrescoConnector> connectors = new ArrayList<AlfrescoConnector>(connectorCount);
+			connectors.add(alfresco);
+
+			for (int x = 1; x < connectorCount; x++) {
+				connectors.add(newAlfrescoConnector(properties, new CasAuthenticator(properties)));
+			}
+
+			alfrescoPool = new AlfrescoConnectorPool(connectors);
+
+			if (batchSize > 0) {
+				long batchDelay = PropertyUtils.getInt(properties, "alfresco.batch.max.delay", 5) * 1000L;
+
+				Collection<AlfrescoConnector> batchConnectors = new ArrayList<AlfrescoConnector>(batchThreads);
+
+				for (int x = 0; x < batchThreads; x++) {
+					batchConnectors.add(newAlfrescoConnector(properties, new CasAuthenticator(properties)));
+				}
+
+				mutations = new AlfrescoMutationBatcher(new AlfrescoConnectorPool(batchConnectors), batchSize, batchDelay);
+			}
 
 		} catch (AlfrescoException e) {
 			// any exception in constructing the object is fatal
@@ -165,55 +454,219 @@ public class Ldap2alfresco {
 	}
 
 	/**
-	 * Update Alfresco from LDAP.
+	 * Count the threads which may use LDAP at once, which is how many
+	 * connections the LDAP pool needs, as none of them holds more than one:
+	 * the site workers (both pipeline stages and the thread feeding them if
+	 * pipelined), the other phases running alongside the sites and the
+	 * background searches.
+	 * 
+	 * @param asyncThreads
+	 *            Number of threads running background LDAP searches
+	 * @return The number of threads
+	 */
+	private int getLdapThreadCount(final int asyncThreads) {
+		int siteWorkers = pipelineQueueSize > 0 ? 2 * siteThreads + 1 : siteThreads;
+		return siteWorkers + phaseThreads - 1 + Math.max(0, asyncThreads);
+	}
+
+	/**
+	 * Create a connector to Alfresco, which obeys the adaptive concurrency
+	 * limit if there is one.
+	 * 
+	 * @param properties
+	 *            Properties to configure the connector
+	 * @param auth
+	 *            To authenticate with Alfresco
+	 * @return The connector
+	 * @throws AlfrescoException
+	 *             If the connection cannot be established
+	 * @throws PropertyException
+	 *             If the properties are incomplete
+	 */
+	private AlfrescoConnector newAlfrescoConnector(final PropertyWrapper properties, final Authenticator auth) throws AlfrescoException, PropertyException {
+		if (alfrescoLimit != null) {
+			return new LimitedAlfrescoConnector(properties, auth, alfrescoLimit);
+		}
+		return new AlfrescoConnector(properties, auth);
+	}
+
+	/**
+	 * @return Number of calls currently allowed to Alfresco at once, which
+	 *         only changes if the adaptive concurrency limit is enabled
+	 */
+	public int getAlfrescoConcurrencyLimit() {
+		if (alfrescoLimit != null) {
+			return alfrescoLimit.getLimit();
+		}
+		return alfrescoPool.size() + (mutations != null ? mutations.getConnectorCount() : 0);
+	}
+
+	/**
+	 * Stop the threads used to send batched changes to Alfresco. Call this
+	 * once no more updates will be run.
+	 */
+	public void shutdown() {
+		if (mutations != null) {
+			mutations.shutdown();
+		}
+	}
+
+	/**
+	 * Update Alfresco from LDAP. If the previous update did not complete,
+	 * this resumes it from where it got to, if its journal is available.
 	 * 
 	 * @param force
 	 *            Set to true to update all records, not just records changed
 	 *            since the last run
 	 */
 	public void update(final boolean force) {
-		boolean forceGroupUpdate = force;
+		final boolean forceUpdate;
+		final boolean forceGroupUpdate;
+		final String lastRun;
+		FileLock instanceLock = null;
 
 		try {
-			// check for lock
+			boolean resume = false;
+			boolean exclusive = false;
+
+			// make sure no other copy is running, as far as we can tell
+			try {
+				instanceLock = StateDirectory.tryLock(instanceLockFile);
+
+				if (instanceLock == null) {
+					LOGGER.fatal("Another copy of the tool is running an update using " + instanceLockFile);
+					return;
+				}
+				exclusive = true;
+			} catch (IOException e) {
+				LOGGER.warn("Cannot lock " + instanceLockFile + ", so an incomplete run will not be resumed", e);
+			}
+
+			// check for lock, which only belongs to an incomplete run we can
+			// resume if no other copy is running
 			if (!force && ldap.lockExists()) {
-				LOGGER.fatal("LDAP contains a lock entry - previous run did not complete successfully." + "Re-run with 'force' argument to force a full update");
-				return;
+				if (exclusive && journal.resume()) {
+					LOGGER.warn("LDAP contains a lock entry - resuming the previous run, which did not complete");
+					resume = true;
+				} else {
+					LOGGER.fatal("LDAP contains a lock entry - previous run did not complete successfully. " + "Re-run with 'force' argument to force a full update");
+					return;
+				}
 			}
 
 			// make lock
 			ldap.createLock();
+			locked = true;
+
+			if (resume) {
+				// carry on from the same timestamp as the previous run, and
+				// leave the one in LDAP as when that run started so that the
+				// next run picks up anything changed since
+				lastRun = journal.getLastRun();
+				forceUpdate = journal.isForced();
+			} else {
+				// get timestamp of last run and update it
+				lastRun = ldap.updateTimestamp();
+				forceUpdate = force;
+				journal.begin(force, lastRun);
+			}
 
-			// get timestamp of last run and update it
-			String lastRun = ldap.updateTimestamp();
+			final Collection<String> admins = ldap.getAdmins();
+			final Collection<String> previousAdmins = adminsFile.read();
+
+			// if admin group timestamp has changed then some of the users
+			// have changed roles. If we know who the admins were last time
+			// we only update the roles of those who have been promoted or
+			// demoted, otherwise we must force all users to be re-added to
+			// their groups to set their roles correctly
+			boolean recalculateRoles = false;
 
-			// if admin group timestamp has changed then any of the users
-			// could have changed roles, so we must force all users to be
-			// re-added to their groups to set their roles correctly
 			if (ldap.haveAdminsChanged(lastRun)) {
-				LOGGER.info("Admin group has been modified, forcing a full update of groups");
-				forceGroupUpdate = true;
+				if (previousAdmins != null && !forceUpdate) {
+					LOGGER.info("Admin group has been modified, updating the roles of changed admins");
+					recalculateRoles = true;
+					forceGroupUpdate = false;
+				} else {
+					LOGGER.info("Admin group has been modified, forcing a full update of groups");
+					forceGroupUpdate = true;
+				}
+			} else {
+				forceGroupUpdate = forceUpdate;
 			}
 
+			PhaseScheduler phases = new PhaseScheduler();
+
 			// update sites
-			updateSites(forceGroupUpdate, lastRun);
+			phases.add("sites", new CheckpointPhase("sites") {
+				void runPhase() throws Exception {
+					updateSites(forceGroupUpdate, lastRun);
+				}
+			});
 
 			// update security groups
-			updateSecurityGroups(forceGroupUpdate, lastRun, LdapConnector.GroupType.OPEN);
-			updateSecurityGroups(forceGroupUpdate, lastRun, LdapConnector.GroupType.CLOSED);
-			updateSecurityGroups(forceGroupUpdate, lastRun, LdapConnector.GroupType.ORG);
+			phases.add("open", new SecurityGroupsPhase("open", forceGroupUpdate, lastRun, LdapConnector.GroupType.OPEN));
+			phases.add("closed", new SecurityGroupsPhase("closed", forceGroupUpdate, lastRun, LdapConnector.GroupType.CLOSED));
+			phases.add("org", new SecurityGroupsPhase("org", forceGroupUpdate, lastRun, LdapConnector.GroupType.ORG));
 
 			// Update 'Deleters' statuses
 			// As there's only one deleters group and it's behaviour is
-			// dependant upon what _other_ groups users are in,
-			// we refresh the whole deleters piece each time
-			updateDeleters();
+			// dependant upon what _other_ groups users are in, this
+			// follows the changes made to the sites
+			phases.add("deleters", new AlfrescoPhase("deleters") {
+				void run(final AlfrescoConnector alf) throws Exception {
+					updateDeleters(alf, forceUpdate, lastRun);
+				}
+			}, "sites");
+
+			// update the roles of promoted and demoted admins, in every site
+			// they are in once the sites are up to date. This also waits for
+			// the deleters, as both queue changes in the one batcher and a
+			// phase must only flush, and be told about the failure of, its
+			// own changes
+			if (recalculateRoles) {
+				phases.add("roles", new AlfrescoPhase("roles") {
+					void run(final AlfrescoConnector alf) throws Exception {
+						updateAdminRoles(alf, previousAdmins, admins);
+					}
+				}, "sites", "deleters");
+			}
 
 			// update profile fields
-			profileUpdater.updateFromLdapToAlfresco(ldap, alfresco, force, lastRun);
+			phases.add("profiles", new AlfrescoPhase("profiles") {
+				void run(final AlfrescoConnector alf) throws Exception {
+					profileUpdater.updateFromLdapToAlfresco(ldap, alf, forceUpdate, lastRun, journal);
+				}
+			});
+
+			try {
+				phases.run(phaseThreads);
+			} catch (ExecutionException e) {
+				rethrow(e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new LdapException("Interrupted waiting for update phases", e);
+			}
+
+			adminsFile.write(admins);
+
+			LOGGER.info("User DN cache: " + ldap.getUserDnCacheHits() + " hits, " + ldap.getUserDnCacheMisses() + " misses");
+
+			if (mutations != null) {
+				LOGGER.info("Alfresco changes: " + mutations.getQueued() + " queued, " + mutations.getCoalesced() + " coalesced, " + mutations.getBatches() + " batches sent");
+			}
+
+			if (constraintHashes != null) {
+				LOGGER.info("Security groups: " + constraintHashes.getSkipped() + " unchanged member lists not sent");
+			}
+
+			if (alfrescoLimit != null) {
+				LOGGER.info("Alfresco concurrency limit: " + alfrescoLimit.getLimit() + " of " + alfrescoLimit.getMaxLimit() + ", lowered " + alfrescoLimit.getDecreases() + " times");
+			}
 
 			// got to here so safe to delete lock
 			ldap.deleteLock();
+			locked = false;
+			journal.finish();
 
 			// don't delete lock if we get an exception as we haven't finished
 			// the update so the synchronisation is in a bad state and we need
@@ -222,161 +675,1176 @@ public class Ldap2alfresco {
 			logException(Level.FATAL, e);
 		} catch (AlfrescoException e) {
 			logException(Level.FATAL, e);
+		} finally {
+			// changes left over from a failed run are made again next time
+			if (mutations != null) {
+				mutations.discard();
+			}
+			siteDiffs.clear();
+			siteJournal.clear();
+			if (siteSnapshot != null) {
+				siteSnapshot.forgetUnsaved();
+				siteSnapshot.compact();
+			}
+			journal.close();
+			ldap.clearRunState();
+			StateDirectory.release(instanceLockFile, instanceLock);
 		}
 	}
 
 	/**
-	 * Parse out a comma-separated string of users into a list.
-	 * 
-	 * @param extraUsersProperty
-	 *            Comma-separated list of users
-	 * @return List of users
+	 * Keep Alfresco up to date with LDAP until the process is stopped. This
+	 * subscribes to changes in LDAP, runs an incremental update to catch up
+	 * with changes made before the subscription, and then applies each batch
+	 * of changes as it arrives. Changes to the admins or deleters groups, and
+	 * lost connections to LDAP, cause an incremental update instead, as does
+	 * the end of each update.daemon.interval, which picks up deletions and
+	 * entries touched to have failed changes tried again.
 	 */
-	private Collection<String> getExtraUsers(final String extraUsersProperty) {
-		// parse list of users
-		Collection<String> users = new HashSet<String>();
+	public void watch() {
+		LdapChangeFeed feed = new LdapChangeFeed(ldap, profileUpdater.getLdapAttributeNames(), feedRetryDelay);
+		feed.start();
 
-		if (extraUsersProperty != null) {
-			String extraUsersPropertyTrimmed = extraUsersProperty.trim();
+		try {
+			long lastPoll = System.currentTimeMillis();
 
-			if (extraUsersPropertyTrimmed.length() > 0) {
-				String[] userArray = extraUsersPropertyTrimmed.split(",");
-				for (int x = 0; x < userArray.length; x++) {
-					users.add(userArray[x]);
-				}
+			try {
+				update(false);
+			} catch (RuntimeException e) {
+				// don't let one bad update stop watching
+				LOGGER.error("Update failed", e);
 			}
-		}
-
-		return users;
-	}
 
-	private void updateDeleters() throws LdapException, AlfrescoException {
+			while (true) {
+				long pollAt = lastPoll + daemonInterval;
 
-		// First off get from ldap and alfresco their understanding of deleters
-		Collection<String> currentLdapDeletersGroup = ldap.getDeleters();
-		Collection<String> currentAlfrescoDeletersGroup = alfresco.getMembershipOfGroup(deletersRoleName);		
-
-		// Now identify new deleters from ldap.
-		Collection<String> addToDeleters = new ArrayList<String>(currentLdapDeletersGroup);
-		addToDeleters.removeAll(currentAlfrescoDeletersGroup);
-		
-		// Now identify old deleters from alfresco
-		Collection<String> removeFromDeleters = new ArrayList<String>(currentAlfrescoDeletersGroup);
-		removeFromDeleters.removeAll(currentLdapDeletersGroup);
+				// changes were skipped because of someone else's lock, so
+				// try again soon
+				if (pollPending) {
+					pollAt = Math.min(pollAt, System.currentTimeMillis() + feedRetryDelay);
+				}
 
-		
-		// Do the additions first.
-		for (String newDeleterUsername : addToDeleters) {
-			
-			LOGGER.info("Adding " + newDeleterUsername + " to " + deletersRoleName);
+				LdapChangeFeed.Changes changes = feed.take(feedQuietPeriod, pollAt);
 
-			alfresco.addMemberToGroup(newDeleterUsername, deletersRoleName);
-			Iterator<String> siteMemberships = ldap.getSiteMemberships(newDeleterUsername).iterator();
-			while (siteMemberships.hasNext()) {
-				String siteName = siteMemberships.next();
-				alfresco.addMemberToSite(siteName + deletedItemsPostfix, newDeleterUsername, AlfrescoConnector.RoleType.MANAGER);
+				try {
+					// if applying the last changes failed, the lock is still
+					// ours, so run a full update to put things right
+					if (changes.isPollNeeded() || locked || pollPending) {
+						pollPending = false;
+						lastPoll = System.currentTimeMillis();
+						update(locked && !journal.exists());
+					} else {
+						update(changes);
+					}
+				} catch (RuntimeException e) {
+					// don't let one bad update stop watching, and catch up
+					// with any changes it didn't apply soon
+					LOGGER.error("Update failed", e);
+					pollPending = true;
+				}
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			feed.stop();
 		}
-		
-		// Now do the removal
-		for (String oldDeleterUsername : removeFromDeleters) {
-			LOGGER.info("Removing " + oldDeleterUsername + " from " + deletersRoleName);
+	}
 
-			Iterator<String> siteMemberships = ldap.getSiteMemberships(oldDeleterUsername).iterator();
+	/**
+	 * Update Alfresco from LDAP every update.daemon.interval seconds until the
+	 * process is stopped. The connectors, caches and membership state are kept
+	 * between updates. If an update fails, leaving the lock entry created by
+	 * this process in LDAP, the next update resumes it, or is a full one if it
+	 * can't be resumed.
+	 */
+	public void runDaemon() {
+		LOGGER.info("Running as a daemon, updating every " + (daemonInterval / 1000) + " seconds");
 
-			while (siteMemberships.hasNext()) {
-				String siteName = siteMemberships.next();
-				alfresco.removeMemberFromSiteIfPresent(siteName + deletedItemsPostfix, oldDeleterUsername);
+		try {
+			while (true) {
+				long started = System.currentTimeMillis();
+
+				try {
+					update(locked && !journal.exists());
+				} catch (RuntimeException e) {
+					// don't let one bad update stop the daemon
+					LOGGER.error("Update failed", e);
+				}
+
+				long wait = started + daemonInterval - System.currentTimeMillis();
+
+				if (wait > 0) {
+					Thread.sleep(wait);
+				}
 			}
-			
-			alfresco.removeMemberFromGroupIfPresent(oldDeleterUsername, deletersRoleName);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
 	/**
-	 * Update Alfresco sites from LDAP groups. If any users cannot be updated
-	 * they are logged and skipped.
+	 * Update Alfresco with groups and users reported as changed by the LDAP
+	 * change feed. The lock is used in the same way as a full update.
 	 * 
-	 * @param force
-	 *            Set to true to update all records, not just records changed
-	 *            since the last run
-	 * @param lastRun
-	 *            Timestamp of the last run (string representation as returned
-	 *            by LDAP server)
-	 * @throws LdapException
-	 *             On any LDAP errors
-	 * @throws AlfrescoException
-	 *             On any fatal Alfresco errors
+	 * @param changes
+	 *            The changes
 	 */
-	private void updateSites(final boolean force, final String lastRun) throws LdapException, AlfrescoException {
-		// get list of admins
-		Collection<String> admins = ldap.getAdmins();
-
-		// get groups
-		Collection<String> groups = null;
-
-		if (force) {
-			groups = ldap.getAllGroups(LdapConnector.GroupType.SITE);
-		} else {
-			groups = ldap.getModifiedGroups(LdapConnector.GroupType.SITE, lastRun);
-		}
+	void update(final LdapChangeFeed.Changes changes) {
+		FileLock instanceLock = null;
 
-		Iterator<String> groupIter = groups.iterator();
+		try {
+			try {
+				instanceLock = StateDirectory.tryLock(instanceLockFile);
 
-		while (groupIter.hasNext()) {
-			// get the group
-			String group = groupIter.next();
+				if (instanceLock == null) {
+					LOGGER.fatal("Another copy of the tool is running an update using " + instanceLockFile);
+					pollPending = true;
+					return;
+				}
+			} catch (IOException e) {
+				LOGGER.warn("Cannot lock " + instanceLockFile, e);
+			}
 
-			// get the member lists for the group from LDAP and Alfresco
-			Collection<String> ldapMembers = ldap.getGroupMembers(group, LdapConnector.GroupType.SITE);
-			Collection<String> alfMembers = alfresco.getSiteMemberList(group);
+			// check for lock
+			if (ldap.lockExists()) {
+				LOGGER.warn("LDAP contains a lock entry - waiting for the lock to clear before applying changes");
+				pollPending = true;
+				return;
+			}
 
-			// add in extra users
-			ldapMembers.addAll(extraUsers);
+			// make lock
+			ldap.createLock();
+			locked = true;
 
-			// work out who needs to be deleted from Alfresco
-			Collection<String> toDelete = new HashSet<String>(alfMembers);
-			toDelete.removeAll(ldapMembers);
+			Collection<String> sites = changes.getGroups(LdapConnector.GroupType.SITE);
 
-			// work out who needs to be added to Alfresco
-			Collection<String> toAdd = new HashSet<String>(ldapMembers);
-			if (!force) {
-				toAdd.removeAll(alfMembers);
+			if (!sites.isEmpty()) {
+				updateSites(new ArrayList<String>(sites), false, false, 0);
 			}
 
-			// do the additions first (in case the deletions delete
-			// the last admin from the site)
-			Iterator<String> addIter = toAdd.iterator();
-			while (addIter.hasNext()) {
-				String member = addIter.next();
-
-				AlfrescoConnector.RoleType role = AlfrescoConnector.RoleType.COLLABORATOR;
+			AlfrescoConnector connector = borrowConnector();
 
-				if (admins.contains(member)) {
-					role = AlfrescoConnector.RoleType.MANAGER;
+			try {
+				// give deleters added to or removed from sites access to
+				// their deleted items
+				if (!siteDiffs.isEmpty()) {
+					updateDeletedItemsSites(connector, memberships.toBitmap(ldap.getDeleters()));
+
+					if (mutations != null) {
+						mutations.flush();
+					}
 				}
 
-				LOGGER.info("Adding " + member + " to " + group + " as " + role);
+				updateSecurityGroups(connector, changes.getGroups(LdapConnector.GroupType.OPEN), LdapConnector.GroupType.OPEN);
+				updateSecurityGroups(connector, changes.getGroups(LdapConnector.GroupType.CLOSED), LdapConnector.GroupType.CLOSED);
+				updateSecurityGroups(connector, changes.getGroups(LdapConnector.GroupType.ORG), LdapConnector.GroupType.ORG);
 
-				try {
-					alfresco.addMemberToSite(group, member, role);
-				} catch (AlfrescoException e) {
-					recoverFromException(e, group, LdapConnector.GroupType.SITE);
+				profileUpdater.updateUsers(ldap, connector, changes.getUsers());
+			} finally {
+				alfrescoPool.release(connector);
+			}
+
+			// got to here so safe to delete lock
+			ldap.deleteLock();
+			locked = false;
+		} catch (LdapException e) {
+			logException(Level.FATAL, e);
+		} catch (AlfrescoException e) {
+			logException(Level.FATAL, e);
+		} finally {
+			if (mutations != null) {
+				mutations.discard();
+			}
+			siteDiffs.clear();
+			siteJournal.clear();
+			if (siteSnapshot != null) {
+				siteSnapshot.forgetUnsaved();
+				siteSnapshot.compact();
+			}
+			ldap.clearRunState();
+			StateDirectory.release(instanceLockFile, instanceLock);
+		}
+	}
+
+	/**
+	 * Parse out a comma-separated string of users into a list.
+	 * 
+	 * @param extraUsersProperty
+	 *            Comma-separated list of users
+	 * @return List of users
+	 */
+	private Collection<String> getExtraUsers(final String extraUsersProperty) {
+		// parse list of users
+		Collection<String> users = new HashSet<String>();
+
+		if (extraUsersProperty != null) {
+			String extraUsersPropertyTrimmed = extraUsersProperty.trim();
+
+			if (extraUsersPropertyTrimmed.length() > 0) {
+				String[] userArray = extraUsersPropertyTrimmed.split(",");
+				for (int x = 0; x < userArray.length; x++) {
+					users.add(userArray[x]);
+				}
+			}
+		}
+
+		return users;
+	}
+
+	/**
+	 * Bring the Alfresco deleters group, and deleters' access to the deleted
+	 * items of their sites, into line with LDAP. The whole deleters group is
+	 * only compared with Alfresco if it may have changed since the last run;
+	 * otherwise only the deleted items of sites whose members have changed
+	 * during this run are updated.
+	 * 
+	 * @param alf
+	 *            Connector to the Alfresco server
+	 * @param force
+	 *            Set to true to compare the whole deleters group
+	 * @param lastRun
+	 *            Timestamp of the last run (string representation as returned
+	 *            by LDAP server)
+	 * @throws LdapException
+	 *             On any LDAP errors
+	 * @throws AlfrescoException
+	 *             On any Alfresco errors
+	 */
+	private void updateDeleters(final AlfrescoConnector alf, final boolean force, final String lastRun) throws LdapException, AlfrescoException {
+		Collection<String> ldapDeleters = ldap.getDeleters();
+		MemberBitmap reconciled = MemberBitmap.EMPTY;
+
+		if (force || lastRun == null || ldap.haveDeletersChanged(lastRun)) {
+			reconciled = reconcileDeleters(alf, ldapDeleters);
+		} else {
+			LOGGER.info("Deleters group has not been modified, updating deleted items of changed sites only");
+		}
+
+		// deleters who have just been added or removed have already had
+		// every site they are in updated
+		updateDeletedItemsSites(alf, memberships.toBitmap(ldapDeleters).andNot(reconciled));
+
+		if (mutations != null) {
+			mutations.flush();
+		}
+	}
+
+	/**
+	 * Compare the whole Alfresco deleters group with LDAP, adding and
+	 * removing deleters, and giving them or taking away access to the deleted
+	 * items of every site they are a member of.
+	 * 
+	 * @param alf
+	 *            Connector to the Alfresco server
+	 * @param currentLdapDeletersGroup
+	 *            Members of the LDAP deleters group
+	 * @return The deleters added and removed
+	 * @throws LdapException
+	 *             On any LDAP errors
+	 * @throws AlfrescoException
+	 *             On any Alfresco errors
+	 */
+	private MemberBitmap reconcileDeleters(final AlfrescoConnector alf, final Collection<String> currentLdapDeletersGroup) throws LdapException, AlfrescoException {
+
+		// First off get from alfresco its understanding of deleters
+		Collection<String> currentAlfrescoDeletersGroup = alf.getMembershipOfGroup(deletersRoleName);		
+
+		MembershipDiff diff = new MembershipDiff(memberships.toBitmap(currentLdapDeletersGroup), memberships.toBitmap(currentAlfrescoDeletersGroup));
+
+		// Now identify new deleters from ldap.
+		Collection<String> addToDeleters = memberships.toNames(diff.getAdded());
+		
+		// Now identify old deleters from alfresco
+		Collection<String> removeFromDeleters = memberships.toNames(diff.getRemoved());
+
+		// look up everyone's site memberships in one pass rather than
+		// searching LDAP for each changed deleter
+		if (!addToDeleters.isEmpty() || !removeFromDeleters.isEmpty()) {
+			ldap.buildSiteMembershipIndex();
+		}
+		
+		// Do the additions first.
+		for (String newDeleterUsername : addToDeleters) {
+			
+			LOGGER.info("Adding " + newDeleterUsername + " to " + deletersRoleName);
+
+			if (mutations != null) {
+				mutations.addMemberToGroup(newDeleterUsername, deletersRoleName, RETHROW_FAILURE);
+			} else {
+				alf.addMemberToGroup(newDeleterUsername, deletersRoleName);
+			}
+			Iterator<String> siteMemberships = ldap.getSiteMemberships(newDeleterUsername).iterator();
+			while (siteMemberships.hasNext()) {
+				String siteName = siteMemberships.next();
+				if (mutations != null) {
+					mutations.addMemberToSite(siteName + deletedItemsPostfix, newDeleterUsername, AlfrescoConnector.RoleType.MANAGER, RETHROW_FAILURE);
+				} else {
+					alf.addMemberToSite(siteName + deletedItemsPostfix, newDeleterUsername, AlfrescoConnector.RoleType.MANAGER);
+				}
+			}
+		}
+		
+		// Now do the removal
+		for (String oldDeleterUsername : removeFromDeleters) {
+			LOGGER.info("Removing " + oldDeleterUsername + " from " + deletersRoleName);
+
+			Iterator<String> siteMemberships = ldap.getSiteMemberships(oldDeleterUsername).iterator();
+
+			while (siteMemberships.hasNext()) {
+				String siteName = siteMemberships.next();
+				if (mutations != null) {
+					mutations.removeMemberFromSiteIfPresent(siteName + deletedItemsPostfix, oldDeleterUsername, RETHROW_FAILURE);
+				} else {
+					alf.removeMemberFromSiteIfPresent(siteName + deletedItemsPostfix, oldDeleterUsername);
+				}
+			}
+			
+			if (mutations != null) {
+				mutations.removeMemberFromGroupIfPresent(oldDeleterUsername, deletersRoleName, RETHROW_FAILURE);
+			} else {
+				alf.removeMemberFromGroupIfPresent(oldDeleterUsername, deletersRoleName);
+			}
+		}
+
+		return diff.getAdded().or(diff.getRemoved());
+	}
+
+	/**
+	 * Give deleters who have been added to sites during this run, or the run
+	 * it resumes, access to the sites' deleted items, and take it away from
+	 * those who have been removed.
+	 * 
+	 * @param alf
+	 *            Connector to the Alfresco server
+	 * @param deleters
+	 *            The deleters to consider
+	 * @throws LdapException
+	 *             On any LDAP errors
+	 * @throws AlfrescoException
+	 *             On any Alfresco errors
+	 */
+	private void updateDeletedItemsSites(final AlfrescoConnector alf, final MemberBitmap deleters) throws LdapException, AlfrescoException {
+		if (deleters.cardinality() == 0) {
+			return;
+		}
+
+		// whether each deleter joined or left each site, from the journal
+		// of the run being resumed and then from this run, so that the
+		// latest change wins
+		Map<String, Map<String, Boolean>> changes = new LinkedHashMap<String, Map<String, Boolean>>();
+
+		for (String entry : journal.getNames(RunJournal.DELETER)) {
+			int tab = entry.lastIndexOf('\t');
+			putDeleterChange(changes, entry.substring(0, tab), entry.substring(tab + 2), entry.charAt(tab + 1) == '+');
+		}
+
+		Iterator<Map.Entry<String, MembershipDiff>> siteIter = siteDiffs.entrySet().iterator();
+
+		while (siteIter.hasNext()) {
+			Map.Entry<String, MembershipDiff> site = siteIter.next();
+
+			for (String deleter : memberships.toNames(site.getValue().getAdded().and(deleters))) {
+				putDeleterChange(changes, site.getKey(), deleter, true);
+			}
+			for (String deleter : memberships.toNames(site.getValue().getRemoved().and(deleters))) {
+				putDeleterChange(changes, site.getKey(), deleter, false);
+			}
+		}
+
+		Collection<String> deleterNames = new HashSet<String>(memberships.toNames(deleters));
+		Iterator<Map.Entry<String, Map<String, Boolean>>> changeIter = changes.entrySet().iterator();
+
+		while (changeIter.hasNext()) {
+			Map.Entry<String, Map<String, Boolean>> site = changeIter.next();
+			String deletedItems = site.getKey() + deletedItemsPostfix;
+			Iterator<Map.Entry<String, Boolean>> deleterIter = site.getValue().entrySet().iterator();
+
+			while (deleterIter.hasNext()) {
+				Map.Entry<String, Boolean> change = deleterIter.next();
+				String deleter = change.getKey();
+
+				if (!deleterNames.contains(deleter)) {
+					continue;
+				}
+
+				if (change.getValue().booleanValue()) {
+					LOGGER.info("Adding deleter " + deleter + " to " + deletedItems);
+
+					if (mutations != null) {
+						mutations.addMemberToSite(deletedItems, deleter, AlfrescoConnector.RoleType.MANAGER, RETHROW_FAILURE);
+					} else {
+						alf.addMemberToSite(deletedItems, deleter, AlfrescoConnector.RoleType.MANAGER);
+					}
+				} else {
+					LOGGER.info("Removing deleter " + deleter + " from " + deletedItems);
+
+					if (mutations != null) {
+						mutations.removeMemberFromSiteIfPresent(deletedItems, deleter, RETHROW_FAILURE);
+					} else {
+						alf.removeMemberFromSiteIfPresent(deletedItems, deleter);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Record that a deleter joined or left a site, replacing any earlier
+	 * record for the same site and deleter.
+	 * 
+	 * @param changes
+	 *            Whether each deleter joined or left each site
+	 * @param site
+	 *            The site
+	 * @param deleter
+	 *            The deleter
+	 * @param added
+	 *            True if they joined the site, false if they left it
+	 */
+	private static void putDeleterChange(final Map<String, Map<String, Boolean>> changes, final String site, final String deleter, final boolean added) {
+		Map<String, Boolean> siteChanges = changes.get(site);
+
+		if (siteChanges == null) {
+			siteChanges = new LinkedHashMap<String, Boolean>();
+			changes.put(site, siteChanges);
+		}
+
+		siteChanges.put(deleter, Boolean.valueOf(added));
+	}
+
+	/**
+	 * Update the roles of users who have been added to or removed from the
+	 * admins group, in every site they are a member of. The phase is
+	 * journalled as a whole once every role has been set, so a resumed run
+	 * skips it if it completed. The admins file is only written once every
+	 * phase has succeeded, so if the run fails before this phase completes
+	 * a resumed run compares the same two lists of admins and sets all their
+	 * roles again.
+	 * 
+	 * @param alf
+	 *            Connector to the Alfresco server
+	 * @param previousAdmins
+	 *            Members of the LDAP admins group at the end of the last run
+	 * @param admins
+	 *            Members of the LDAP admins group now
+	 * @throws LdapException
+	 *             On any LDAP errors
+	 * @throws AlfrescoException
+	 *             On any Alfresco errors
+	 */
+	private void updateAdminRoles(final AlfrescoConnector alf, final Collection<String> previousAdmins, final Collection<String> admins) throws LdapException, AlfrescoException {
+		MembershipDiff diff = new MembershipDiff(memberships.toBitmap(admins), memberships.toBitmap(previousAdmins));
+
+		Collection<String> promoted = memberships.toNames(diff.getAdded());
+		Collection<String> demoted = memberships.toNames(diff.getRemoved());
+
+		LOGGER.info(promoted.size() + " users promoted to admin, " + demoted.size() + " demoted");
+
+		if (promoted.isEmpty() && demoted.isEmpty()) {
+			return;
+		}
+
+		// look up everyone's site memberships in one pass
+		ldap.buildSiteMembershipIndex();
+
+		updateRoles(alf, promoted, AlfrescoConnector.RoleType.MANAGER);
+		updateRoles(alf, demoted, AlfrescoConnector.RoleType.COLLABORATOR);
+
+		if (mutations != null) {
+			mutations.flush();
+		}
+	}
+
+	/**
+	 * Set the role of some users in every site they are a member of.
+	 * 
+	 * @param alf
+	 *            Connector to the Alfresco server
+	 * @param users
+	 *            The users
+	 * @param role
+	 *            Their new role
+	 * @throws LdapException
+	 *             On any LDAP errors
+	 * @throws AlfrescoException
+	 *             On any Alfresco errors
+	 */
+	private void updateRoles(final AlfrescoConnector alf, final Collection<String> users, final AlfrescoConnector.RoleType role) throws LdapException, AlfrescoException {
+		Collection<String> allSites = null;
+
+		Iterator<String> userIter = users.iterator();
+
+		while (userIter.hasNext()) {
+			String user = userIter.next();
+			Collection<String> sites;
+
+			// extra users are in every site
+			if (extraUsers.contains(user)) {
+				if (allSites == null) {
+					allSites = ldap.getAllGroups(LdapConnector.GroupType.SITE);
 				}
+				sites = allSites;
+			} else {
+				sites = ldap.getSiteMemberships(user);
+			}
+
+			Iterator<String> siteIter = sites.iterator();
+
+			while (siteIter.hasNext()) {
+				String site = siteIter.next();
+
+				LOGGER.info("Changing role of " + user + " in " + site + " to " + role);
+
+				if (mutations != null) {
+					mutations.addMemberToSite(site, user, role, RETHROW_FAILURE);
+				} else {
+					alf.addMemberToSite(site, user, role);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Update Alfresco sites from LDAP groups. If any users cannot be updated
+	 * they are logged and skipped.
+	 * 
+	 * @param force
+	 *            Set to true to update all records, not just records changed
+	 *            since the last run
+	 * @param lastRun
+	 *            Timestamp of the last run (string representation as returned
+	 *            by LDAP server)
+	 * @throws LdapException
+	 *             On any LDAP errors
+	 * @throws AlfrescoException
+	 *             On any fatal Alfresco errors
+	 */
+	private void updateSites(final boolean force, final String lastRun) throws LdapException, AlfrescoException {
+		// decide whether to trust the site snapshot, or refresh it by
+		// reading every site from Alfresco
+		long started = System.currentTimeMillis();
+		boolean verify = false;
+
+		if (siteSnapshot != null) {
+			verify = force || started - siteSnapshot.getLastVerified() >= snapshotVerifyInterval;
+
+			if (verify) {
+				LOGGER.info("Verifying site snapshot against Alfresco");
+				siteSnapshot.clear();
+			}
+		}
+
+		// get groups
+		Collection<String> groups = null;
+
+		if (force || verify) {
+			groups = ldap.getAllGroups(LdapConnector.GroupType.SITE);
+		} else {
+			groups = ldap.getModifiedGroups(LdapConnector.GroupType.SITE, lastRun);
+		}
+
+		updateSites(groups, force, verify, verify ? started : 0);
+	}
+
+	/**
+	 * Update some Alfresco sites from their LDAP groups. If any users cannot
+	 * be updated they are logged and skipped.
+	 * 
+	 * @param groups
+	 *            The LDAP groups (without prefix), which are also the site names
+	 * @param force
+	 *            Set to true to set the role of every member, not just of
+	 *            new members
+	 * @param verify
+	 *            Set to true to read the current members of each site from
+	 *            Alfresco rather than the site snapshot
+	 * @param verifiedAt
+	 *            When a verification pass over every site started, or 0 if
+	 *            this isn't one
+	 * @throws LdapException
+	 *             On any LDAP errors
+	 * @throws AlfrescoException
+	 *             On any fatal Alfresco errors
+	 */
+	private void updateSites(final Collection<String> groups, final boolean force, final boolean verify, final long verifiedAt) throws LdapException, AlfrescoException {
+		// admins are managers of their sites. Unless forced, assume the roles
+		// in Alfresco are already right, as any change to the admins is
+		// dealt with separately. A forced update sets everyone's role, to
+		// repair any roles changed outside this tool
+		MemberBitmap managers = memberships.toBitmap(ldap.getAdmins());
+		MemberBitmap currentManagers = force ? null : managers;
+
+		SiteRoles roles = new SiteRoles(managers, currentManagers, memberships.toBitmap(ldap.getDeleters()));
+
+		// skip sites completed by the run being resumed. The snapshot wasn't
+		// saved by that run, so its copy of those sites may be out of date
+		Collection<String> remaining = journal.getRemaining(LdapConnector.GroupType.SITE.toString(), groups);
+
+		if (siteSnapshot != null && remaining.size() < groups.size()) {
+			Iterator<String> groupIter = groups.iterator();
+			while (groupIter.hasNext()) {
+				String group = groupIter.next();
+				if (journal.isDone(LdapConnector.GroupType.SITE.toString(), group)) {
+					siteSnapshot.remove(group);
+				}
+			}
+		}
+
+		// fetch the members of several groups in each LDAP search
+		GroupMemberBatches batches = new GroupMemberBatches(remaining, LdapConnector.GroupType.SITE);
+
+		if (pipelineQueueSize > 0) {
+			updateSitesPipelined(verify, batches, roles);
+		} else {
+			updateSitesInBatches(verify, batches, roles);
+		}
+
+		// send any changes still queued before saving the snapshot
+		if (mutations != null) {
+			mutations.flush();
+
+			// the sites' changes have now been made, so journal them
+			siteJournal.sent();
+		}
+
+		if (siteSnapshot != null) {
+			if (verifiedAt > 0) {
+				siteSnapshot.setLastVerified(verifiedAt);
+			}
+			siteSnapshot.save();
+		}
+	}
+
+	/**
+	 * Update Alfresco sites a batch at a time, either on this thread or with
+	 * each site of a batch on its own worker thread.
+	 * 
+	 * @param verify
+	 *            Set to true to read the current members of each site from
+	 *            Alfresco rather than the site snapshot
+	 * @param batches
+	 *            The LDAP groups (without prefix), which are also the site names
+	 * @param roles
+	 *            The roles members should have, and have now
+	 * @throws LdapException
+	 *             On any LDAP errors
+	 * @throws AlfrescoException
+	 *             On any fatal Alfresco errors
+	 */
+	private void updateSitesInBatches(final boolean verify, final GroupMemberBatches batches, final SiteRoles roles) throws LdapException, AlfrescoException {
+		ExecutorService workers = null;
+
+		if (siteThreads > 1) {
+			workers = Executors.newFixedThreadPool(siteThreads);
+		}
+
+		try {
+			while (batches.hasNext()) {
+				Collection<String> batch = batches.next();
+
+				Map<String, Collection<String>> batchMembers = batches.getMembers();
+
+				if (workers == null) {
+					Iterator<String> groupIter = batch.iterator();
+
+					AlfrescoConnector connector = borrowConnector();
+					try {
+						while (groupIter.hasNext()) {
+							String group = groupIter.next();
+							updateSite(connector, verify, group, batchMembers.get(group), roles);
+						}
+					} finally {
+						alfrescoPool.release(connector);
+					}
+				} else {
+					updateSitesConcurrently(workers, verify, batch, batchMembers, roles);
+				}
+			}
+		} finally {
+			if (workers != null) {
+				workers.shutdownNow();
 			}
+		}
+	}
+
+	/**
+	 * Update a batch of Alfresco sites at the same time, each on a worker
+	 * thread with its own Alfresco connector, and wait for them all to
+	 * finish. Each site is still updated in the usual order, additions before
+	 * deletions, and failures for individual users are still recovered from
+	 * by touching the group.
+	 * 
+	 * @param workers
+	 *            Threads to update the sites on
+	 * @param verify
+	 *            Set to true to read the current members of each site from
+	 *            Alfresco rather than the site snapshot
+	 * @param batch
+	 *            The LDAP groups (without prefix), which are also the site names
+	 * @param batchMembers
+	 *            Map from each group to its LDAP members
+	 * @param roles
+	 *            The roles members should have, and have now
+	 * @throws LdapException
+	 *             On any LDAP errors
+	 * @throws AlfrescoException
+	 *             On any fatal Alfresco errors
+	 */
+	private void updateSitesConcurrently(final ExecutorService workers, final boolean verify, final Collection<String> batch, final Map<String, Collection<String>> batchMembers, final SiteRoles roles) throws LdapException, AlfrescoException {
+		Collection<Future<Void>> results = new ArrayList<Future<Void>>(batch.size());
+
+		Iterator<String> groupIter = batch.iterator();
+
+		while (groupIter.hasNext()) {
+			final String group = groupIter.next();
+
+			results.add(workers.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					AlfrescoConnector connector = alfrescoPool.borrow();
+					try {
+						updateSite(connector, verify, group, batchMembers.get(group), roles);
+					} finally {
+						alfrescoPool.release(connector);
+					}
+					return null;
+				}
+			}));
+		}
 
-			// do the deletions
-			Iterator<String> delIter = toDelete.iterator();
-			while (delIter.hasNext()) {
-				String member = delIter.next();
-				LOGGER.info("Deleting " + member + " from " + group);
+		awaitAll(results);
+	}
 
+	/**
+	 * Update Alfresco sites through a pipeline: this thread streams groups
+	 * and their members out of LDAP, one set of workers reads each site's
+	 * members from Alfresco and works out what has to change, and another
+	 * set applies the changes. The bounded queues between them keep memory
+	 * use bounded while both servers are kept busy. Each site's changes are
+	 * applied together, additions before deletions.
+	 * 
+	 * @param verify
+	 *            Set to true to read the current members of each site from
+	 *            Alfresco rather than the site snapshot
+	 * @param batches
+	 *            The LDAP groups (without prefix), which are also the site names
+	 * @param roles
+	 *            The roles members should have, and have now
+	 * @throws LdapException
+	 *             On any LDAP errors
+	 * @throws AlfrescoException
+	 *             On any fatal Alfresco errors
+	 */
+	private void updateSitesPipelined(final boolean verify, final GroupMemberBatches batches, final SiteRoles roles) throws LdapException, AlfrescoException {
+		SyncPipeline<SiteMembers, SiteChanges> pipeline = new SyncPipeline<SiteMembers, SiteChanges>("sites", siteThreads, siteThreads, pipelineQueueSize, new SyncPipeline.Transform<SiteMembers, SiteChanges>() {
+			public SiteChanges process(final SiteMembers site) throws Exception {
+				AlfrescoConnector connector = alfrescoPool.borrow();
 				try {
-					alfresco.removeMemberFromSite(group, member);
-				} catch (AlfrescoException e) {
-					recoverFromException(e, group, LdapConnector.GroupType.SITE);
+					return getSiteChanges(connector, verify, site.group, site.members, roles);
+				} finally {
+					alfrescoPool.release(connector);
+				}
+			}
+		}, new SyncPipeline.Sink<SiteChanges>() {
+			public void process(final SiteChanges changes) throws Exception {
+				AlfrescoConnector connector = alfrescoPool.borrow();
+				try {
+					applySiteChanges(connector, changes);
+				} finally {
+					alfrescoPool.release(connector);
+				}
+			}
+		});
+
+		boolean finished = false;
+
+		try {
+			while (batches.hasNext()) {
+				Iterator<String> groupIter = batches.next().iterator();
+
+				Map<String, Collection<String>> batchMembers = batches.getMembers();
+
+				while (groupIter.hasNext()) {
+					String group = groupIter.next();
+					pipeline.put(new SiteMembers(group, batchMembers.get(group)));
 				}
 			}
+
+			pipeline.finish();
+			finished = true;
+		} catch (SyncPipeline.PipelineException e) {
+			rethrow(e.getCause());
+		} finally {
+			if (!finished) {
+				pipeline.abort();
+			}
+		}
+	}
+
+	/**
+	 * Wait for a set of tasks to finish. If any of them fails, the rest are
+	 * cancelled and the failure is rethrown.
+	 * 
+	 * @param results
+	 *            The tasks
+	 * @throws LdapException
+	 *             If a task failed with an LDAP error
+	 * @throws AlfrescoException
+	 *             If a task failed with a fatal Alfresco error
+	 */
+	private void awaitAll(final Collection<Future<Void>> results) throws LdapException, AlfrescoException {
+		try {
+			Iterator<Future<Void>> resultIter = results.iterator();
+
+			while (resultIter.hasNext()) {
+				resultIter.next().get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new LdapException("Interrupted waiting for site updates", e);
+		} catch (ExecutionException e) {
+			rethrow(e.getCause());
+		} finally {
+			Iterator<Future<Void>> resultIter = results.iterator();
+
+			while (resultIter.hasNext()) {
+				resultIter.next().cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Rethrow the failure of an update made on another thread.
+	 * 
+	 * @param cause
+	 *            What the update threw
+	 * @throws LdapException
+	 *             If the update failed with an LDAP error, or anything else
+	 *             checked
+	 * @throws AlfrescoException
+	 *             If the update failed with a fatal Alfresco error
+	 */
+	private static void rethrow(final Throwable cause) throws LdapException, AlfrescoException {
+		if (cause instanceof LdapException) {
+			throw (LdapException) cause;
+		} else if (cause instanceof AlfrescoException) {
+			throw (AlfrescoException) cause;
+		} else if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		} else if (cause instanceof Error) {
+			throw (Error) cause;
+		} else if (cause instanceof InterruptedException) {
+			Thread.currentThread().interrupt();
+			throw new LdapException("Interrupted waiting for updates", cause);
+		}
+		throw new LdapException("Update failed", cause);
+	}
+
+	/**
+	 * Update a single Alfresco site from the members of its LDAP group. If
+	 * any users cannot be updated they are logged and skipped.
+	 * 
+	 * @param alf
+	 *            Connector to the Alfresco server
+	 * @param verify
+	 *            Set to true to read the current members of each site from
+	 *            Alfresco rather than the site snapshot
+	 * @param group
+	 *            The LDAP group (without prefix), which is also the site name
+	 * @param ldapMembers
+	 *            Members of the LDAP group
+	 * @param roles
+	 *            The roles members should have, and have now
+	 * @throws LdapException
+	 *             On any LDAP errors
+	 * @throws AlfrescoException
+	 *             On any fatal Alfresco errors
+	 */
+	private void updateSite(final AlfrescoConnector alf, final boolean verify, final String group, final Collection<String> ldapMembers, final SiteRoles roles) throws LdapException, AlfrescoException {
+		applySiteChanges(alf, getSiteChanges(alf, verify, group, ldapMembers, roles));
+	}
+
+	/**
+	 * Work out the changes needed to bring an Alfresco site into line with
+	 * the members of its LDAP group.
+	 * 
+	 * @param alf
+	 *            Connector to the Alfresco server
+	 * @param verify
+	 *            Set to true to read the current members of each site from
+	 *            Alfresco rather than the site snapshot
+	 * @param group
+	 *            The LDAP group (without prefix), which is also the site name
+	 * @param ldapMembers
+	 *            Members of the LDAP group
+	 * @param roles
+	 *            The roles members should have, and have now
+	 * @return The changes to make to the site
+	 * @throws AlfrescoException
+	 *             On any fatal Alfresco errors
+	 */
+	private SiteChanges getSiteChanges(final AlfrescoConnector alf, final boolean verify, final String group, final Collection<String> ldapMembers, final SiteRoles roles) throws AlfrescoException {
+		MemberBitmap alfMembers = null;
+
+		// use the members the site had after it was last synchronised, if
+		// we know them
+		if (siteSnapshot != null && !verify) {
+			alfMembers = siteSnapshot.getMembers(group);
+		}
+
+		// otherwise get the member list for the site from Alfresco
+		if (alfMembers == null) {
+			alfMembers = memberships.toBitmap(alf.getSiteMemberList(group));
+		}
+
+		// add in extra users
+		ldapMembers.addAll(extraUsers);
+
+		MemberBitmap ldapBitmap = memberships.toBitmap(ldapMembers);
+		MembershipDiff diff = new MembershipDiff(ldapBitmap, alfMembers, roles.managers, roles.currentManagers);
+
+		// remember who is joining or leaving the site, for the deleters
+		if (diff.getAdded().cardinality() > 0 || diff.getRemoved().cardinality() > 0) {
+			siteDiffs.put(group, diff);
+		}
+
+		SiteChanges changes = new SiteChanges(group, ldapBitmap, diff.getAdded().and(roles.deleters), diff.getRemoved().and(roles.deleters));
+
+		// work out who needs to be deleted from Alfresco
+		changes.deletions.addAll(memberships.toNames(diff.getRemoved()));
+
+		// work out who needs to be added to Alfresco, or re-added to
+		// change their role
+		changes.additions.putAll(diff.getAdditions(memberships, AlfrescoConnector.RoleType.COLLABORATOR, AlfrescoConnector.RoleType.MANAGER));
+
+		return changes;
+	}
+
+	/**
+	 * Apply changes to an Alfresco site. If any users cannot be updated they
+	 * are logged and skipped.
+	 * 
+	 * @param alf
+	 *            Connector to the Alfresco server
+	 * @param changes
+	 *            The changes to make to the site
+	 * @throws LdapException
+	 *             On any LDAP errors
+	 * @throws AlfrescoException
+	 *             On any fatal Alfresco errors, if changes are sent in batches
+	 */
+	private void applySiteChanges(final AlfrescoConnector alf, final SiteChanges changes) throws LdapException, AlfrescoException {
+		if (mutations != null) {
+			queueSiteChanges(changes);
+			return;
+		}
+
+		String group = changes.group;
+		boolean failed = false;
+
+		// do the additions first (in case the deletions delete
+		// the last admin from the site)
+		Iterator<Map.Entry<String, AlfrescoConnector.RoleType>> addIter = changes.additions.entrySet().iterator();
+		while (addIter.hasNext()) {
+			Map.Entry<String, AlfrescoConnector.RoleType> addition = addIter.next();
+			String member = addition.getKey();
+			AlfrescoConnector.RoleType role = addition.getValue();
+
+			LOGGER.info("Adding " + member + " to " + group + " as " + role);
+
+			try {
+				alf.addMemberToSite(group, member, role);
+			} catch (AlfrescoException e) {
+				failed = true;
+				recoverFromException(e, group, LdapConnector.GroupType.SITE);
+			}
+		}
+
+		// do the deletions
+		Iterator<String> delIter = changes.deletions.iterator();
+		while (delIter.hasNext()) {
+			String member = delIter.next();
+			LOGGER.info("Deleting " + member + " from " + group);
+
+			try {
+				alf.removeMemberFromSite(group, member);
+			} catch (AlfrescoException e) {
+				failed = true;
+				recoverFromException(e, group, LdapConnector.GroupType.SITE);
+			}
+		}
+
+		// remember the site's members, unless we're not sure of them
+		if (siteSnapshot != null) {
+			if (failed) {
+				siteSnapshot.remove(group);
+			} else {
+				siteSnapshot.setMembers(group, changes.members);
+			}
+		}
+
+		if (!failed) {
+			siteJournal.done(group, changes.addedDeleters, changes.removedDeleters);
+		}
+	}
+
+	/**
+	 * Queue changes to an Alfresco site to be sent in batches. Failures are
+	 * recovered from when the batch is sent, in the same way as when the
+	 * changes are made straight away.
+	 * 
+	 * @param changes
+	 *            The changes to make to the site
+	 * @throws LdapException
+	 *             On any LDAP errors, if this sends a batch
+	 * @throws AlfrescoException
+	 *             On any fatal Alfresco errors, if this sends a batch
+	 */
+	private void queueSiteChanges(final SiteChanges changes) throws LdapException, AlfrescoException {
+		String group = changes.group;
+
+		// remember the site's members now, as the site is forgotten again
+		// if any of the changes fail
+		if (siteSnapshot != null) {
+			siteSnapshot.setMembers(group, changes.members);
+		}
+
+		// journal the site once its changes have been sent
+		siteJournal.queued(group, changes.addedDeleters, changes.removedDeleters);
+
+		Iterator<Map.Entry<String, AlfrescoConnector.RoleType>> addIter = changes.additions.entrySet().iterator();
+		while (addIter.hasNext()) {
+			Map.Entry<String, AlfrescoConnector.RoleType> addition = addIter.next();
+
+			LOGGER.info("Adding " + addition.getKey() + " to " + group + " as " + addition.getValue());
+
+			mutations.addMemberToSite(group, addition.getKey(), addition.getValue(), siteFailureHandler);
+		}
+
+		Iterator<String> delIter = changes.deletions.iterator();
+		while (delIter.hasNext()) {
+			String member = delIter.next();
+			LOGGER.info("Deleting " + member + " from " + group);
+
+			mutations.removeMemberFromSite(group, member, siteFailureHandler);
+		}
+	}
+
+	/**
+	 * The LDAP members of a site, passed from the first stage of the site
+	 * update pipeline to the second.
+	 */
+	private static class SiteMembers {
+
+		/**
+		 * The LDAP group (without prefix), which is also the site name.
+		 */
+		private final String group;
+
+		/**
+		 * Members of the LDAP group.
+		 */
+		private final Collection<String> members;
+
+		/**
+		 * @param group
+		 *            The LDAP group (without prefix)
+		 * @param members
+		 *            Members of the LDAP group
+		 */
+		SiteMembers(final String group, final Collection<String> members) {
+			this.group = group;
+			this.members = members;
+		}
+	}
+
+	/**
+	 * Changes to make to an Alfresco site.
+	 */
+	private static class SiteChanges {
+
+		/**
+		 * The site name.
+		 */
+		private final String group;
+
+		/**
+		 * Members the site should have once the changes are made.
+		 */
+		private final MemberBitmap members;
+
+		/**
+		 * Users to add to the site, with their roles.
+		 */
+		private final Map<String, AlfrescoConnector.RoleType> additions = new LinkedHashMap<String, AlfrescoConnector.RoleType>();
+
+		/**
+		 * Users to delete from the site.
+		 */
+		private final Collection<String> deletions = new ArrayList<String>();
+
+		/**
+		 * Deleters joining the site.
+		 */
+		private final MemberBitmap addedDeleters;
+
+		/**
+		 * Deleters leaving the site.
+		 */
+		private final MemberBitmap removedDeleters;
+
+		/**
+		 * @param group
+		 *            The site name
+		 * @param members
+		 *            Members the site should have once the changes are made
+		 * @param addedDeleters
+		 *            Deleters joining the site
+		 * @param removedDeleters
+		 *            Deleters leaving the site
+		 */
+		SiteChanges(final String group, final MemberBitmap members, final MemberBitmap addedDeleters, final MemberBitmap removedDeleters) {
+			this.group = group;
+			this.members = members;
+			this.addedDeleters = addedDeleters;
+			this.removedDeleters = removedDeleters;
+		}
+	}
+
+	/**
+	 * The roles members of sites should have, and have now.
+	 */
+	private static class SiteRoles {
+
+		/**
+		 * Users who should be managers of the sites they are in.
+		 */
+		private final MemberBitmap managers;
+
+		/**
+		 * Users who are managers of the sites they are in now, or null if not
+		 * known.
+		 */
+		private final MemberBitmap currentManagers;
+
+		/**
+		 * Users who are deleters, whose access to deleted items follows the
+		 * sites they are in.
+		 */
+		private final MemberBitmap deleters;
+
+		/**
+		 * @param managers
+		 *            Users who should be managers of the sites they are in
+		 * @param currentManagers
+		 *            Users who are managers of the sites they are in now, or
+		 *            null if not known
+		 * @param deleters
+		 *            Users who are deleters
+		 */
+		SiteRoles(final MemberBitmap managers, final MemberBitmap currentManagers, final MemberBitmap deleters) {
+			this.managers = managers;
+			this.currentManagers = currentManagers;
+			this.deleters = deleters;
 		}
 	}
 
@@ -392,10 +1860,12 @@ public class Ldap2alfresco {
 	 *            by LDAP server)
 	 * @param gt
 	 *            The type of security group to update
+	 * @param alf
+	 *            Connector to the Alfresco server
 	 * @throws LdapException
 	 *             On any LDAP errors
 	 */
-	private void updateSecurityGroups(final boolean force, final String lastRun, final LdapConnector.GroupType gt) throws LdapException {
+	private void updateSecurityGroups(final AlfrescoConnector alf, final boolean force, final String lastRun, final LdapConnector.GroupType gt) throws LdapException {
 		Collection<String> groups = null;
 
 		if (force) {
@@ -404,34 +1874,374 @@ public class Ldap2alfresco {
 			groups = ldap.getModifiedGroups(gt, lastRun);
 		}
 
-		Iterator<String> groupIter = groups.iterator();
+		updateSecurityGroups(alf, groups, gt);
+	}
 
-		while (groupIter.hasNext()) {
-			// get the group
-			String group = groupIter.next();
+	/**
+	 * Update some Alfresco security groups from their LDAP groups. If any
+	 * users cannot be updated they are logged and skipped.
+	 * 
+	 * @param alf
+	 *            Connector to the Alfresco server
+	 * @param groups
+	 *            The LDAP groups (without prefix)
+	 * @param gt
+	 *            The type of security group to update
+	 * @throws LdapException
+	 *             On any LDAP errors
+	 */
+	private void updateSecurityGroups(final AlfrescoConnector alf, final Collection<String> groups, final LdapConnector.GroupType gt) throws LdapException {
+		// fetch the members of several groups in each LDAP search, skipping
+		// those completed by the run being resumed
+		GroupMemberBatches batches = new GroupMemberBatches(journal.getRemaining(gt.toString(), groups), gt);
+
+		try {
+			while (batches.hasNext()) {
+				Collection<String> batch = batches.next();
+
+				Map<String, Collection<String>> batchMembers;
+
+				try {
+					batchMembers = batches.getMembers();
+				} catch (LdapException e) {
+					// mark the whole batch to be tried again next time round
+					Iterator<String> groupIter = batch.iterator();
+					while (groupIter.hasNext()) {
+						recoverFromException(e, groupIter.next(), gt);
+					}
+					continue;
+				}
+
+				Iterator<String> groupIter = batch.iterator();
+
+				while (groupIter.hasNext()) {
+					String group = groupIter.next();
+					updateSecurityGroup(alf, group, batchMembers.get(group), gt);
+				}
+			}
+		} finally {
+			// the hashes only ever describe what Alfresco has, so they are
+			// saved even if the update fails
+			if (constraintHashes != null) {
+				constraintHashes.save();
+			}
+		}
+	}
+
+	/**
+	 * Update a single Alfresco security group from the members of its LDAP
+	 * group. If it cannot be updated it is logged and skipped.
+	 * 
+	 * @param alf
+	 *            Connector to the Alfresco server
+	 * @param group
+	 *            The LDAP group (without prefix)
+	 * @param members
+	 *            Members of the LDAP group
+	 * @param gt
+	 *            The type of security group to update
+	 * @throws LdapException
+	 *             On any LDAP errors
+	 */
+	private void updateSecurityGroup(final AlfrescoConnector alf, final String group, final Collection<String> members, final LdapConnector.GroupType gt) throws LdapException {
+		String constraint;
+
+		if (gt == LdapConnector.GroupType.OPEN) {
+			constraint = alfrescoMarkingsOpen;
+		} else if (gt == LdapConnector.GroupType.CLOSED) {
+			constraint = alfrescoMarkingsClosed;
+		} else if (gt == LdapConnector.GroupType.ORG) {
+			constraint = alfrescoMarkingsOrg;
+		} else {
+			LOGGER.error("Incorrect security group type");
+			return;
+		}
+
+		// add in extra users
+		members.addAll(extraUsers);
+
+		// don't send the same member list again
+		String hashKey = constraint + '\t' + group;
+		long hash = 0;
+
+		if (constraintHashes != null) {
+			hash = HashStore.hash(members);
+
+			if (constraintHashes.isUnchanged(hashKey, hash)) {
+				LOGGER.info("Security group " + group + " is unchanged");
+				journal.done(gt.toString(), group);
+				return;
+			}
+		}
 
+		try {
+			LOGGER.info("Setting security group: " + group + " to: " + members.toString());
+
+			alf.updateRmConstraint(constraint, group, members);
+
+			if (constraintHashes != null) {
+				constraintHashes.put(hashKey, hash);
+			}
+
+			journal.done(gt.toString(), group);
+		} catch (AlfrescoException e) {
+			// Alfresco may have some of the new members
+			if (constraintHashes != null) {
+				constraintHashes.remove(hashKey);
+			}
+			recoverFromException(e, group, gt);
+		}
+	}
+
+	/**
+	 * Take a connector from the pool, waiting if they are all in use.
+	 * 
+	 * @return The connector, to be released when finished with
+	 * @throws LdapException
+	 *             If interrupted while waiting
+	 */
+	private AlfrescoConnector borrowConnector() throws LdapException {
+		try {
+			return alfrescoPool.borrow();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new LdapException("Interrupted waiting for an Alfresco connector", e);
+		}
+	}
+
+	/**
+	 * A phase of the update which is recorded in the journal when it
+	 * completes, and skipped if it was completed by the run being resumed.
+	 */
+	private abstract class CheckpointPhase implements PhaseScheduler.Phase {
+
+		/**
+		 * Name of the phase in the journal.
+		 */
+		private final String name;
+
+		/**
+		 * @param name
+		 *            Name of the phase in the journal
+		 */
+		CheckpointPhase(final String name) {
+			this.name = name;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public void run() throws Exception {
+			if (journal.isDone(RunJournal.PHASE, name)) {
+				LOGGER.info("Phase " + name + " was completed by the previous run, skipping");
+				return;
+			}
+
+			runPhase();
+
+			journal.done(RunJournal.PHASE, name);
+		}
+
+		/**
+		 * Run the phase.
+		 * 
+		 * @throws Exception
+		 *             On any failure, which stops the update
+		 */
+		abstract void runPhase() throws Exception;
+	}
+
+	/**
+	 * A phase of the update which uses a single Alfresco connector, taken
+	 * from the pool for as long as the phase runs.
+	 */
+	private abstract class AlfrescoPhase extends CheckpointPhase {
+
+		/**
+		 * @param name
+		 *            Name of the phase in the journal
+		 */
+		AlfrescoPhase(final String name) {
+			super(name);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		void runPhase() throws Exception {
+			AlfrescoConnector connector = borrowConnector();
 			try {
-				// get the member lists for the group from LDAP
-				Collection<String> members = ldap.getGroupMembers(group, gt);
+				run(connector);
+			} finally {
+				alfrescoPool.release(connector);
+			}
+		}
 
-				// add in extra users
-				members.addAll(extraUsers);
+		/**
+		 * Run the phase.
+		 * 
+		 * @param alf
+		 *            Connector to the Alfresco server
+		 * @throws Exception
+		 *             On any failure, which stops the update
+		 */
+		abstract void run(AlfrescoConnector alf) throws Exception;
+	}
 
-				LOGGER.info("Setting security group: " + group + " to: " + members.toString());
+	/**
+	 * The phase of the update for one type of security group.
+	 */
+	private class SecurityGroupsPhase extends AlfrescoPhase {
+
+		/**
+		 * Set to true to update all records, not just records changed since
+		 * the last run.
+		 */
+		private final boolean force;
+
+		/**
+		 * Timestamp of the last run.
+		 */
+		private final String lastRun;
+
+		/**
+		 * The type of security group to update.
+		 */
+		private final LdapConnector.GroupType groupType;
+
+		/**
+		 * @param name
+		 *            Name of the phase in the journal
+		 * @param force
+		 *            Set to true to update all records
+		 * @param lastRun
+		 *            Timestamp of the last run
+		 * @param gt
+		 *            The type of security group to update
+		 */
+		SecurityGroupsPhase(final String name, final boolean force, final String lastRun, final LdapConnector.GroupType gt) {
+			super(name);
+			this.force = force;
+			this.lastRun = lastRun;
+			this.groupType = gt;
+		}
 
-				if (gt == LdapConnector.GroupType.OPEN) {
-					alfresco.updateRmConstraint(alfrescoMarkingsOpen, group, members);
-				} else if (gt == LdapConnector.GroupType.CLOSED) {
-					alfresco.updateRmConstraint(alfrescoMarkingsClosed, group, members);
-				} else if (gt == LdapConnector.GroupType.ORG) {
-					alfresco.updateRmConstraint(alfrescoMarkingsOrg, group, members);
-				} else {
-					LOGGER.error("Incorrect security group type");
+		/**
+		 * {@inheritDoc}
+		 */
+		void run(final AlfrescoConnector alf) throws LdapException {
+			updateSecurityGroups(alf, force, lastRun, groupType);
+		}
+	}
+
+	/**
+	 * Walks a list of groups in batches whose members are fetched from LDAP
+	 * in a single search. If background LDAP searches are enabled, the
+	 * members of the next batch are fetched while the current batch is being
+	 * applied to Alfresco.
+	 */
+	private class GroupMemberBatches {
+
+		/**
+		 * The type of the groups.
+		 */
+		private final LdapConnector.GroupType groupType;
+
+		/**
+		 * Batches not yet returned by next().
+		 */
+		private final Iterator<Collection<String>> batchIter;
+
+		/**
+		 * The batch last returned by next().
+		 */
+		private Collection<String> current = null;
+
+		/**
+		 * Fetch of the members of the batch after current, or null.
+		 */
+		private Future<Map<String, Collection<String>>> prefetch = null;
+
+		/**
+		 * Batch being fetched by prefetch.
+		 */
+		private Collection<String> prefetchBatch = null;
+
+		/**
+		 * @param groups
+		 *            The groups
+		 * @param gt
+		 *            The type of the groups
+		 */
+		GroupMemberBatches(final Collection<String> groups, final LdapConnector.GroupType gt) {
+			groupType = gt;
+
+			int batchSize = ldap.getGroupBatchSize();
+			Collection<Collection<String>> batches = new ArrayList<Collection<String>>();
+			Collection<String> batch = null;
+
+			Iterator<String> groupIter = groups.iterator();
+
+			while (groupIter.hasNext()) {
+				if (batch == null || batch.size() >= batchSize) {
+					batch = new ArrayList<String>(batchSize);
+					batches.add(batch);
 				}
-			} catch (LdapException e) {
-				recoverFromException(e, group, gt);
-			} catch (AlfrescoException e) {
-				recoverFromException(e, group, gt);
+				batch.add(groupIter.next());
+			}
+
+			batchIter = batches.iterator();
+			startPrefetch();
+		}
+
+		/**
+		 * @return True if there are more batches
+		 */
+		boolean hasNext() {
+			return prefetchBatch != null || batchIter.hasNext();
+		}
+
+		/**
+		 * @return The next batch of group names
+		 */
+		Collection<String> next() {
+			if (prefetchBatch != null) {
+				current = prefetchBatch;
+			} else {
+				current = batchIter.next();
+			}
+			return current;
+		}
+
+		/**
+		 * Get the members of the groups in the current batch, and start
+		 * fetching the members of the next batch in the background.
+		 * 
+		 * @return Map from each group name to its members
+		 * @throws LdapException
+		 *             On any LDAP error
+		 */
+		Map<String, Collection<String>> getMembers() throws LdapException {
+			if (prefetch == null || prefetchBatch != current) {
+				return ldap.getGroupMembers(current, groupType);
+			}
+
+			Future<Map<String, Collection<String>>> fetch = prefetch;
+			prefetch = null;
+			prefetchBatch = null;
+			startPrefetch();
+
+			return AsyncLdapConnector.await(fetch);
+		}
+
+		/**
+		 * Start fetching the members of the next batch, if background
+		 * searches are enabled and there is another batch.
+		 */
+		private void startPrefetch() {
+			if (asyncLdap != null && batchIter.hasNext()) {
+				prefetchBatch = batchIter.next();
+				prefetch = asyncLdap.getGroupMembers(prefetchBatch, groupType);
 			}
 		}
 	}
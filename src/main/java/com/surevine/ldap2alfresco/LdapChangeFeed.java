@@ -0,0 +1,506 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Subscribes to changes to LDAP groups and users as they happen, so they can
+ * be pushed to Alfresco within seconds instead of waiting for the next
+ * modifyTimestamp search.
+ * 
+ * This uses the persistent search control (draft-ietf-ldapext-psearch),
+ * which is supported by OpenLDAP, 389 Directory Server and others and works
+ * with ordinary JNDI searches.  Content synchronisation (RFC 4533) would also
+ * report deletions, but relies on intermediate responses which JNDI cannot
+ * receive.  Only additions, modifications and renames are reported, as
+ * the rest of the application doesn't handle deleted groups either.
+ * 
+ * Each subscription runs on its own thread with its own connection.  If a
+ * connection is lost it is re-opened after a delay, and since changes may
+ * have been missed in between the next batch of changes asks for a full
+ * incremental update.
+ * 
+ * Groups and users touched by the connector, to have a failed change tried
+ * again by the next incremental update, are not reported, so that a change
+ * which keeps failing isn't retried as fast as the feed reports it.
+ */
+class LdapChangeFeed {
+
+    /**
+     * OID of the persistent search control.
+     */
+    static final String PERSISTENT_SEARCH_OID = "2.16.840.1.113730.3.4.3";
+
+    /**
+     * Persistent search change types: add (1), modify (4) and modDN (8).
+     */
+    private static final int CHANGE_TYPES = 1 | 4 | 8;
+
+    /**
+     * Logging instance.
+     */
+    private static final Logger LOGGER = Logger.getLogger(LdapChangeFeed.class);
+
+    /**
+     * Returning attributes for groups.
+     */
+    private static final String[] GROUP_ATTRIBUTES = {"cn"};
+
+    /**
+     * The connector whose groups and users are watched.
+     */
+    private final LdapConnector ldap;
+
+    /**
+     * Attributes returned for each changed user.
+     */
+    private final String[] userAttributes;
+
+    /**
+     * How long to wait before re-opening a lost connection, in milliseconds.
+     */
+    private final long retryDelay;
+
+    /**
+     * Threads running the subscriptions.
+     */
+    private final Collection<Watcher> watchers = new HashSet<Watcher>();
+
+    /**
+     * Changes received since the last call to take().
+     */
+    private Changes pending = new Changes();
+
+    /**
+     * When the last change was received, in milliseconds since the epoch.
+     */
+    private long lastChange = 0;
+
+    /**
+     * False once stop() has been called.
+     */
+    private volatile boolean running = true;
+
+    /**
+     * @param ldap The connector whose groups and users are watched
+     * @param userAttributes Attributes returned for each changed user
+     * @param retryDelay How long to wait before re-opening a lost connection, in milliseconds
+     */
+    LdapChangeFeed(final LdapConnector ldap, final String[] userAttributes, final long retryDelay) {
+        this.ldap = ldap;
+        this.userAttributes = userAttributes.clone();
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Subscribe to changes.  Changes made before this is called are not
+     * reported, so the caller should run an incremental update afterwards.
+     */
+    synchronized void start() {
+        ldap.setRecordTouches(true);
+
+        watchers.add(new Watcher("groups", ldap.getGroupsContext(), "cn=*", GROUP_ATTRIBUTES) {
+            void changed(final SearchResult sr) throws NamingException {
+                Attribute cn = sr.getAttributes().get("cn");
+
+                if (cn != null && cn.get() != null) {
+                    groupChanged(cn.get().toString());
+                }
+            }
+        });
+
+        watchers.add(new Watcher("users", ldap.getUsersContext(), ldap.getUserFilter(), userAttributes) {
+            void changed(final SearchResult sr) throws NamingException {
+                Attributes attributes = sr.getAttributes();
+                Attribute cn = attributes.get("cn");
+
+                if (cn != null && cn.get() != null) {
+                    userChanged(cn.get().toString(), attributes);
+                }
+            }
+        });
+
+        for (Watcher watcher : watchers) {
+            watcher.start();
+        }
+    }
+
+    /**
+     * Unsubscribe and close the connections.
+     */
+    void stop() {
+        running = false;
+        ldap.setRecordTouches(false);
+
+        synchronized (this) {
+            for (Watcher watcher : watchers) {
+                watcher.close();
+            }
+
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait for changes, and return them once no more have arrived for a
+     * while, so that a burst of changes is handled together.
+     * @param quietPeriod How long to wait after the last change, in milliseconds
+     * @param pollAt When to stop waiting and ask for a full incremental
+     *        update instead, in milliseconds since the epoch
+     * @return The changes received since the last call
+     * @throws InterruptedException If interrupted while waiting, or stopped
+     */
+    synchronized Changes take(final long quietPeriod, final long pollAt) throws InterruptedException {
+        while (running) {
+            long now = System.currentTimeMillis();
+
+            if (now >= pollAt) {
+                pending.pollNeeded = true;
+            }
+
+            if (pending.isEmpty()) {
+                wait(pollAt - now);
+            } else {
+                long quiet = now - lastChange;
+
+                if (quiet >= quietPeriod || pending.pollNeeded) {
+                    Changes changes = pending;
+                    pending = new Changes();
+                    return changes;
+                }
+
+                wait(Math.min(quietPeriod - quiet, pollAt - now));
+            }
+        }
+
+        throw new InterruptedException("Change feed stopped");
+    }
+
+    /**
+     * Record a changed group.
+     * @param cn Name of the group (with prefix)
+     */
+    synchronized void groupChanged(final String cn) {
+        if (ldap.wasGroupTouched(cn)) {
+            return;
+        }
+
+        if (ldap.isSpecialGroup(cn)) {
+            // changes to admins or deleters can affect every site
+            LOGGER.info("Group " + cn + " changed");
+            pending.pollNeeded = true;
+        } else {
+            LdapConnector.GroupType gt = ldap.getGroupType(cn);
+
+            if (gt == null) {
+                return;
+            }
+
+            LOGGER.info("Group " + cn + " changed");
+            pending.groups.get(gt).add(ldap.removePrefix(cn, gt));
+        }
+
+        received();
+    }
+
+    /**
+     * Record a changed user.
+     * @param username The user
+     * @param attributes The user's attributes
+     */
+    synchronized void userChanged(final String username, final Attributes attributes) {
+        if (ldap.wasUserTouched(username)) {
+            return;
+        }
+
+        LOGGER.info("User " + username + " changed");
+        pending.users.put(username, attributes);
+        received();
+    }
+
+    /**
+     * Record that changes may have been missed.
+     */
+    synchronized void changesMissed() {
+        pending.pollNeeded = true;
+        received();
+    }
+
+    /**
+     * Wake up take() after a change.
+     */
+    private void received() {
+        lastChange = System.currentTimeMillis();
+        notifyAll();
+    }
+
+    /**
+     * Changes received from LDAP.
+     */
+    static class Changes {
+
+        /**
+         * Names (without prefix) of the changed groups of each type.
+         */
+        private final Map<LdapConnector.GroupType, Collection<String>> groups =
+                new EnumMap<LdapConnector.GroupType, Collection<String>>(LdapConnector.GroupType.class);
+
+        /**
+         * Attributes of the changed users, by username.
+         */
+        private final Map<String, Attributes> users = new HashMap<String, Attributes>();
+
+        /**
+         * True if changes may have been missed, or changed in a way that
+         * needs a full incremental update.
+         */
+        private boolean pollNeeded = false;
+
+        /**
+         * Create an empty set of changes.
+         */
+        Changes() {
+            LdapConnector.GroupType[] types = LdapConnector.GroupType.values();
+
+            for (int x = 0; x < types.length; x++) {
+                groups.put(types[x], new HashSet<String>());
+            }
+        }
+
+        /**
+         * @param gt A type of group
+         * @return Names (without prefix) of the changed groups of that type
+         */
+        Collection<String> getGroups(final LdapConnector.GroupType gt) {
+            return Collections.unmodifiableCollection(groups.get(gt));
+        }
+
+        /**
+         * @return Attributes of the changed users
+         */
+        Collection<Attributes> getUsers() {
+            return Collections.unmodifiableCollection(users.values());
+        }
+
+        /**
+         * @return True if changes may have been missed, or changed in a way
+         * that needs a full incremental update
+         */
+        boolean isPollNeeded() {
+            return pollNeeded;
+        }
+
+        /**
+         * @return True if nothing has changed
+         */
+        boolean isEmpty() {
+            if (pollNeeded || !users.isEmpty()) {
+                return false;
+            }
+
+            for (Collection<String> names : groups.values()) {
+                if (!names.isEmpty()) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Runs a persistent search on its own thread, re-opening it whenever
+     * the connection is lost.
+     */
+    private abstract class Watcher extends Thread {
+
+        /**
+         * Where to search from.
+         */
+        private final String base;
+
+        /**
+         * LDAP search filter (see RFC2254).
+         */
+        private final String filter;
+
+        /**
+         * Attributes to return.
+         */
+        private final String[] attributes;
+
+        /**
+         * The open connection, or null.
+         */
+        private LdapContext ctx = null;
+
+        /**
+         * @param name Name of what is watched, for the thread name
+         * @param base Where to search from
+         * @param filter LDAP search filter (see RFC2254)
+         * @param attributes Attributes to return
+         */
+        Watcher(final String name, final String base, final String filter, final String[] attributes) {
+            super("ldap-change-feed-" + name);
+            this.base = base;
+            this.filter = filter;
+            this.attributes = attributes;
+            setDaemon(true);
+        }
+
+        /**
+         * Handle a changed entry.
+         * @param sr The entry
+         * @throws NamingException If the entry can't be read
+         */
+        abstract void changed(SearchResult sr) throws NamingException;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            boolean first = true;
+
+            while (running) {
+                if (!first) {
+                    // anything changed while we were disconnected is lost
+                    changesMissed();
+                }
+                first = false;
+
+                try {
+                    watch();
+                } catch (NamingException e) {
+                    if (running) {
+                        LOGGER.warn("Lost LDAP change feed for " + base + ", reconnecting", e);
+                    }
+                }
+
+                close();
+
+                try {
+                    if (running) {
+                        Thread.sleep(retryDelay);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Open a connection and report changes until it fails or is closed.
+         * @throws NamingException On any LDAP error
+         */
+        private void watch() throws NamingException {
+            Properties env = new Properties();
+            env.putAll(ldap.getEnvironment());
+
+            // hand each change over as soon as it arrives
+            env.put(Context.BATCHSIZE, "1");
+
+            LdapContext context = new InitialLdapContext(env, null);
+
+            synchronized (this) {
+                if (!running) {
+                    context.close();
+                    return;
+                }
+                ctx = context;
+            }
+
+            context.setRequestControls(new Control[] {new PersistentSearchControl()});
+
+            SearchControls controls = new SearchControls();
+            controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+            controls.setReturningAttributes(attributes);
+
+            NamingEnumeration<SearchResult> results = context.search(base, filter, controls);
+
+            LOGGER.info("Watching " + base + " for changes");
+
+            while (results.hasMore()) {
+                changed(results.next());
+            }
+        }
+
+        /**
+         * Close the connection, which ends a search in progress.
+         */
+        synchronized void close() {
+            if (ctx != null) {
+                try {
+                    ctx.close();
+                } catch (NamingException e) {
+                    // nothing more to do
+                }
+                ctx = null;
+            }
+        }
+    }
+
+    /**
+     * The persistent search request control: a BER sequence of the change
+     * types to report, changesOnly and returnECs.
+     */
+    private static class PersistentSearchControl extends BasicControl {
+
+        /**
+         * Required for serialisable classes.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Request changes only, without entry change notifications.
+         */
+        PersistentSearchControl() {
+            super(PERSISTENT_SEARCH_OID, true, new byte[] {
+                0x30, 0x09,                         // SEQUENCE, 9 bytes
+                0x02, 0x01, (byte) CHANGE_TYPES,    // changeTypes INTEGER
+                0x01, 0x01, (byte) 0xFF,            // changesOnly BOOLEAN TRUE
+                0x01, 0x01, 0x00                    // returnECs BOOLEAN FALSE
+            });
+        }
+    }
+}
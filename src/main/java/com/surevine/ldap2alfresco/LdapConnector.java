@@ -21,14 +21,21 @@
 */
 package com.surevine.ldap2alfresco;
 
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.naming.Context;
 import javax.naming.NameNotFoundException;
@@ -39,16 +46,30 @@ import javax.naming.directory.Attributes;
 import javax.naming.directory.BasicAttribute;
 import javax.naming.directory.BasicAttributes;
 import javax.naming.directory.DirContext;
-import javax.naming.directory.InitialDirContext;
 import javax.naming.directory.ModificationItem;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+import org.apache.log4j.Logger;
 
 import com.surevine.alfresco.PropertyException;
 import com.surevine.alfresco.PropertyWrapper;
 
 /**
  * Connect to an LDAP server.
+ * 
+ * This class shares a single connection between all operations, which suits
+ * single-threaded batch runs.  A JNDI context must not be used by several threads
+ * at once, so callers which use a connector from more than one thread should use
+ * {@link LongLivedLdapConnector}, which gives every operation its own pooled
+ * connection.  All other state (configuration, the user DN cache, the site
+ * membership index and the security model timestamp) is safe to share.
  */
 public class LdapConnector {
     /**
@@ -79,10 +100,67 @@ public class LdapConnector {
      */
     private static final int HASH_SIZE = 128;
 
+    /**
+     * Logging instance.
+     */
+    private static final Logger LOGGER = Logger.getLogger(LdapConnector.class);
+
+    /**
+     * Default number of entries requested per page of search results.
+     */
+    private static final int DEFAULT_PAGE_SIZE = 500;
+
+    /**
+     * Default number of groups whose members are fetched in one search.
+     */
+    private static final int DEFAULT_GROUP_BATCH_SIZE = 50;
+
+    /**
+     * Default maximum number of user DNs to cache.
+     */
+    private static final int DEFAULT_DN_CACHE_SIZE = 10000;
+
+    /**
+     * Default time to cache a user DN for, in seconds.
+     */
+    private static final int DEFAULT_DN_CACHE_TTL = 600;
+
+    /**
+     * Number of milliseconds in a second.
+     */
+    private static final long MILLISECONDS = 1000L;
+
+    /**
+     * Attribute list asking the server to return no attributes at all
+     * (RFC 4511), for searches which only need the DN or a match.
+     */
+    private static final String[] NO_ATTRIBUTES = {"1.1"};
+
+    /**
+     * Attribute list for searches which only need group names.
+     */
+    private static final String[] GROUP_NAME_ATTRIBUTES = {"cn"};
+
+    /**
+     * Name of the attribute holding the members of a group.
+     */
+    private static final String MEMBER_ATTRIBUTE = "member";
+
+    /**
+     * Start of the name of an attribute holding a range of group members
+     * (e.g. "member;range=0-1499").
+     */
+    private static final String MEMBER_RANGE_PREFIX = MEMBER_ATTRIBUTE + ";range=";
+
+    /**
+     * Attribute list for checking whether a user has a rich profile.
+     */
+    private static final String[] OBJECT_CLASS_ATTRIBUTES = {"objectClass"};
+
     /**
      * Object which connections to LDAP and allows searching.
      */
-    private DirContext       ldapDirectoryContext = null;
+    private LdapContext      ldapDirectoryContext = null;
 
     /**
      * Location of groups in LDAP.
@@ -154,29 +232,76 @@ public class LdapConnector {
      * Do we return a 304 if the security model is not modified?
      */
     private boolean securityModel304;
-    
+
     /**
-     * Set of properties describing how to connect to LDAP
+     * Number of entries requested per page of search results (RFC 2696),
+     * or zero to issue unpaged searches.
      */
-    protected Properties 		 ldapEnv;
+    private int              pageSize;
+
+    /**
+     * Number of group members to request per range ("member;range=..."),
+     * or zero to request the whole member attribute and only follow
+     * ranges if the server chooses to return one.
+     */
+    private int              memberRangeSize;
+
+    /**
+     * Number of groups whose members are fetched in one search.
+     */
+    private int              groupBatchSize;
+
+    /**
+     * Cache of user DNs, to save a subtree search for every operation
+     * on a user.
+     */
+    private UserDnCache      userDnCache;
+
+    /**
+     * Groups and users touched whose change hasn't been seen by the change
+     * feed yet, as keys from touchKey().
+     */
+    private final Set<String> touched = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * Whether touched groups and users are recorded for the change feed.
+     */
+    private volatile boolean recordTouches = false;
+
+    /**
+     * Index from username to the sites they are a member of, or null if
+     * it hasn't been built this run.
+     */
+    private volatile Map<String, Collection<String>> siteMembershipIndex = null;
+
+    /**
+     * Canonical copies of the usernames seen in group members this run.
+     */
+    private final UsernameTable usernames = new UsernameTable();
     
     /**
-     * Last updated date for the security model.
+     * Set of properties describing how to connect to LDAP
      */
-    private static Date SECURITY_MODEL_LAST_UPDATED;
+    protected Properties 		 ldapEnv;
     
     /**
-     * Date formats for LDAP.
+     * Last updated date for the security model, shared by every connector
+     * and updated atomically.
      */
-    private static final SimpleDateFormat LDAP_DATE_FORMAT;
+    private static final AtomicReference<Date> SECURITY_MODEL_LAST_UPDATED = new AtomicReference<Date>();
     
     /**
-     * Static initializer.
+     * Date formats for LDAP.  SimpleDateFormat is not thread safe, so each
+     * thread gets its own.
      */
-    static {
-    	LDAP_DATE_FORMAT = new SimpleDateFormat("yyyyMMddHHmmss'Z'");
-    	LDAP_DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
-    }
+    private static final ThreadLocal<SimpleDateFormat> LDAP_DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+    	@Override
+    	protected SimpleDateFormat initialValue() {
+    		SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss'Z'");
+    		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    		return format;
+    	}
+    };
 
     /**
      * @param properties Contains configuration for the LDAP server to connect to
@@ -212,6 +337,21 @@ public class LdapConnector {
             
             // do we 304 the security if not modified?
             securityModel304 = !properties.getProperty("alfresco.securitymodel.304notmodified").equalsIgnoreCase("false");
+
+            // optional page size for large searches
+            pageSize = PropertyUtils.getInt(properties, "ldap.page.size", DEFAULT_PAGE_SIZE);
+
+            // optional range size for very large groups
+            memberRangeSize = PropertyUtils.getInt(properties, "ldap.member.range.size", 0);
+
+            // optional number of groups to fetch members for at once
+            groupBatchSize = Math.max(1,
+                    PropertyUtils.getInt(properties, "ldap.group.batch.size", DEFAULT_GROUP_BATCH_SIZE));
+
+            // optional limits on the user DN cache
+            userDnCache = new UserDnCache(
+                    PropertyUtils.getInt(properties, "ldap.dn.cache.size", DEFAULT_DN_CACHE_SIZE),
+                    PropertyUtils.getInt(properties, "ldap.dn.cache.ttl", DEFAULT_DN_CACHE_TTL) * MILLISECONDS);
         } catch (PropertyException e) {
             throw new LdapException("Cannot find a required property", e);
         }
@@ -226,14 +366,14 @@ public class LdapConnector {
         ldapEnv.put(Context.SECURITY_CREDENTIALS, ldapRootPassword);    
     }
     
-    protected DirContext getDirectoryContext() throws LdapException
+    protected synchronized LdapContext getDirectoryContext() throws LdapException
     {
-    	//This class is intended for batch operation so we don't need to manage loads of synchronised blocks here
+    	//This class is intended for batch operation so we only synchronise creating the shared connection
     	if (ldapDirectoryContext==null)
     	{
     		// obtain initial directory context using the environment
     		try {
-    			ldapDirectoryContext = new InitialDirContext(ldapEnv);
+    			ldapDirectoryContext = new InitialLdapContext(ldapEnv, null);
     		} catch (NamingException e) {
     			throw new LdapException("Cannot connect to LDAP server", e);
     		}
@@ -246,6 +386,36 @@ public class LdapConnector {
     	//This class re-uses the connection so we just do nothing here
     }
 
+    /**
+     * Note that an operation on a context from getDirectoryContext() failed,
+     * so that a subclass can tell when the context is given back whether its
+     * connection is still usable.  Every operation which catches a
+     * NamingException while holding a context calls this before giving it back.
+     * @param ctx The context
+     * @param e The failure
+     */
+    protected void contextFailed(final DirContext ctx, final NamingException e)
+    {
+    	//The shared connection is kept whatever the failure
+    }
+
+
+    /**
+     * Close the connection to LDAP.  A later call will reconnect.
+     */
+    public synchronized void close()
+    {
+    	if (ldapDirectoryContext!=null)
+    	{
+    		try {
+    			ldapDirectoryContext.close();
+    		} catch (NamingException e) {
+    			//If we get a problem closing the connection there's nothing we can do, so silently ignore
+    		}
+    		ldapDirectoryContext = null;
+    	}
+    }
+
     /**
      * Get a list of members from an LDAP group with a prefix
      * determined by the group type.
@@ -261,6 +431,165 @@ public class LdapConnector {
         return getGroupMembersFromFilter(filter, SearchControls.SUBTREE_SCOPE);
     }
 
+    /**
+     * Pass each member of an LDAP group with a prefix determined by the
+     * group type to a handler, without building a list of members.
+     * @param groupName Name of the group
+     * @param gt Type of the group
+     * @param handler Receives each username in turn
+     * @throws LdapException On any LDAP error, or if the handler aborts
+     */
+    public void forEachGroupMember(final String groupName, final GroupType gt,
+            final LdapResultHandler<String> handler) throws LdapException {
+        String filter = "cn=" + getPrefix(gt) + groupName;
+        // allow groups not in the top of the tree
+        getGroupMembersFromFilter(filter, SearchControls.SUBTREE_SCOPE, handler);
+    }
+
+    /**
+     * Get the members of several LDAP groups of the same type, fetching
+     * the members of up to getGroupBatchSize() groups in each search.
+     * @param groupNames Names of the groups
+     * @param gt Type of the groups
+     * @return Map from each requested group name to its members (an empty
+     * collection, with a warning logged, if no entry matches the group)
+     * @throws LdapException On any LDAP error
+     */
+    public Map<String, Collection<String>> getGroupMembers(final Collection<String> groupNames, final GroupType gt)
+            throws LdapException {
+        Map<String, Collection<String>> members = new HashMap<String, Collection<String>>();
+
+        // LDAP matches names regardless of case, so do the same when
+        // matching results back to the requested names
+        Map<String, String> requested = new HashMap<String, String>();
+        Collection<String> found = new HashSet<String>();
+
+        Collection<String> batch = new ArrayList<String>(groupBatchSize);
+        Iterator<String> nameIter = groupNames.iterator();
+
+        while (nameIter.hasNext()) {
+            String groupName = nameIter.next();
+
+            members.put(groupName, new HashSet<String>(HASH_SIZE));
+            requested.put(groupName.toLowerCase(), groupName);
+            batch.add(groupName);
+
+            if (batch.size() >= groupBatchSize || !nameIter.hasNext()) {
+                getGroupMembersInBatch(batch, getPrefix(gt), requested, members, found);
+                batch.clear();
+            }
+        }
+
+        // an empty group looks the same as one which wasn't found, so say
+        // which is which
+        Iterator<String> requestedIter = requested.values().iterator();
+
+        while (requestedIter.hasNext()) {
+            String groupName = requestedIter.next();
+
+            if (!found.contains(groupName)) {
+                LOGGER.warn("No LDAP entry found for " + gt + " group " + getPrefix(gt) + groupName + ", treating it as empty");
+            }
+        }
+
+        return members;
+    }
+
+    /**
+     * @return Number of groups whose members are fetched in one search by
+     * getGroupMembers(Collection, GroupType)
+     */
+    public int getGroupBatchSize() {
+        return groupBatchSize;
+    }
+
+    /**
+     * Fetch the members of a batch of groups with a single search.
+     * @param batch Names of the groups (without the prefix)
+     * @param prefix Prefix of the groups
+     * @param requested Map from the lower case name of every requested
+     * group to the name as requested
+     * @param members Map from the requested group names to the member
+     * collections to fill
+     * @param found Receives the requested names of the groups found
+     * @throws LdapException On any LDAP error
+     */
+    private void getGroupMembersInBatch(final Collection<String> batch, final String prefix,
+            final Map<String, String> requested, final Map<String, Collection<String>> members,
+            final Collection<String> found) throws LdapException {
+        StringBuilder filter = new StringBuilder("(|");
+
+        Iterator<String> nameIter = batch.iterator();
+
+        while (nameIter.hasNext()) {
+            filter.append("(cn=").append(prefix).append(nameIter.next()).append(')');
+        }
+
+        filter.append(')');
+
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningAttributes(new String[] {"cn", getFirstMemberRange()});
+
+        final LdapContext ctx = getDirectoryContext();
+
+        try {
+            search(ctx, ldapGroups, filter.toString(), controls, new SearchResultVisitor() {
+                public void visit(final SearchResult sr) throws NamingException, LdapException {
+                    String groupName = getRequestedGroup(sr.getAttributes().get("cn"), prefix, requested);
+
+                    if (groupName != null) {
+                        found.add(groupName);
+                        forEachMember(ctx, sr, new CollectingHandler<String>(members.get(groupName)));
+                    }
+                }
+            });
+        } catch (NamingException e) {
+            contextFailed(ctx, e);
+            throw new LdapException("Failed to retrieve group members from LDAP", e);
+        } finally {
+            releaseContext(ctx);
+        }
+    }
+
+    /**
+     * Find which requested group an entry is.  An entry may have several
+     * names, so each is tried, and only those with the prefix can match.
+     * @param cn The names of the entry, or null
+     * @param prefix Prefix of the groups
+     * @param requested Map from the lower case name of every requested
+     * group to the name as requested
+     * @return The name of the group as requested, or null if the entry isn't
+     * one of the requested groups
+     * @throws NamingException On any LDAP error
+     */
+    private static String getRequestedGroup(final Attribute cn, final String prefix,
+            final Map<String, String> requested) throws NamingException {
+        if (cn == null) {
+            return null;
+        }
+
+        for (int x = 0; x < cn.size(); x++) {
+            Object value = cn.get(x);
+
+            if (value == null) {
+                continue;
+            }
+
+            String name = value.toString();
+
+            if (name.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                String groupName = requested.get(name.substring(prefix.length()).toLowerCase());
+
+                if (groupName != null) {
+                    return groupName;
+                }
+            }
+        }
+
+        return null;
+    }
+
     /**
      * "Touch" a group, i.e. change its modification date without
      * actually modifying the contents of the group.
@@ -281,15 +610,21 @@ public class LdapConnector {
         attributes.put(attr);
 
         String fullname = "cn=" + prefixedGroupName + "," + ldapGroups;
+        String key = touchKey("group", prefixedGroupName);
 
         DirContext ctx = getDirectoryContext();
         try 
         {
+            if (recordTouches) {
+                touched.add(key);
+            }
         	ctx.modifyAttributes(fullname,
                     DirContext.REPLACE_ATTRIBUTE, attributes);
         } 
         catch (NamingException e) 
         {
+            contextFailed(ctx, e);
+            touched.remove(key);
             throw new LdapException("Cannot change LDAP modification date on "
                     + prefixedGroupName, e);
         }
@@ -318,14 +653,23 @@ public class LdapConnector {
         attributes.put(attr);
 
         String fullname = getModifiableDN(username);
+        String key = touchKey("user", username);
 
         DirContext ctx = getDirectoryContext();
         try {
+            if (recordTouches) {
+                touched.add(key);
+            }
         	ctx.modifyAttributes(fullname,
                     DirContext.REPLACE_ATTRIBUTE, attributes);
         } 
         catch (NamingException e) 
         {
+            contextFailed(ctx, e);
+            touched.remove(key);
+            if (e instanceof NameNotFoundException) {
+                userDnCache.invalidate(username);
+            }
             throw new LdapException("Cannot change LDAP modification date on " + username, e);
         }
         finally
@@ -348,7 +692,7 @@ public class LdapConnector {
         try {
             // first we need to make sure the user has the correct objectClass
             // for Rich Profiles
-            addRichProfileToUser(username);
+            addRichProfileToUser(ctx, fullname);
 
             // now do the updates
             ctx.modifyAttributes(fullname,
@@ -356,6 +700,10 @@ public class LdapConnector {
         } 
         catch (NamingException e) 
         {
+            contextFailed(ctx, e);
+            if (e instanceof NameNotFoundException) {
+                userDnCache.invalidate(username);
+            }
             throw new LdapException("Cannot update LDAP attributes on user: "
                     + username, e);
         }
@@ -367,44 +715,33 @@ public class LdapConnector {
 
     /**
      * Add a rich profile to a user if they don't already have one.
-     * @param username User to modify
+     * @param ctx Context to modify the user with
+     * @param ouName Modifiable DN of the user, as from getModifiableDN()
      * @throws NamingException on any errors
      */
-    private void addRichProfileToUser(final String username) throws NamingException, LdapException {
-
-        if (!userHasRichProfile(username)) {
+    private void addRichProfileToUser(final DirContext ctx, final String ouName) throws NamingException {
 
-            String ouName = getModifiableDN(username);
+        if (!userHasRichProfile(ctx, ouName)) {
 
             final ModificationItem[] classModification = new ModificationItem[1];
 
             classModification[0] = new ModificationItem(DirContext.ADD_ATTRIBUTE,
                         new BasicAttribute("objectclass", ldapProfileObjectClass));
 
-            DirContext ctx = getDirectoryContext();
-            try 
-            {
-            	ctx.modifyAttributes(ouName, classModification);
-            }
-            finally
-            {
-            	releaseContext(ctx);
-            }
-            
+            ctx.modifyAttributes(ouName, classModification);
         }
     }
 
     /**
      * Does the user already have a rich profile?
-     * @param username User to check
+     * @param ctx Context to read the user with
+     * @param ouName Modifiable DN of the user, as from getModifiableDN()
      * @return Does the user already have a rich profile?
      * @throws NamingException on any errors
      */
-    private boolean userHasRichProfile(final String username) throws NamingException, LdapException {
-
-        SearchResult result = getSingleSearchResultObjectforUser(username);
+    private boolean userHasRichProfile(final DirContext ctx, final String ouName) throws NamingException {
 
-        Attributes attr = result.getAttributes();
+        Attributes attr = ctx.getAttributes(ouName, OBJECT_CLASS_ATTRIBUTES);
 		
 		Attribute attribute = attr.get("objectClass");
 		
@@ -434,16 +771,26 @@ public class LdapConnector {
     }
     
     /**
-     * Get the list of sites a user is a member of
+     * Get the list of sites a user is a member of.  If a site membership
+     * index has been built this run it is answered from the index,
+     * otherwise the directory is searched.
      * @param principalName Name of a user in LDAP
      * @return Collection of Strings representing the names of sites the input user is a member of
      * @throws LdapException 
      */
     public Collection<String> getSiteMemberships(String userName) throws LdapException {
+    	Map<String, Collection<String>> index = siteMembershipIndex;
+
+    	if (index != null) {
+    		Collection<String> sites = index.get(userName);
+    		return (sites == null) ? new ArrayList<String>(2) : new ArrayList<String>(sites);
+    	}
+
     	String filter = "(&(cn="+ldapGroupPrefix+"*)(member="+getFullDnForUser(userName)+")) ";
     	
     	SearchControls controls = new SearchControls();
     	controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+    	controls.setReturningAttributes(NO_ATTRIBUTES);
     	
     	Enumeration<SearchResult> objects; //Yeah, an Enumeration.  It's like we're from History
     	DirContext ctx = getDirectoryContext();
@@ -459,6 +806,7 @@ public class LdapConnector {
     		return rVal;
     	}
     	catch (NamingException e) {
+    		contextFailed(ctx, e);
     		throw new LdapException("Cannot retrieve groups for "+userName+" from Ldap", e);
     	}
     	finally {
@@ -466,41 +814,82 @@ public class LdapConnector {
     	}
     }
     
+    /**
+     * Build an index from each username to the sites they are a member of,
+     * with a single scan of the site groups, so that subsequent calls to
+     * getSiteMemberships don't each need a DN lookup and a subtree search.
+     * The index is a snapshot: it is used until the next call to this
+     * method or to clearRunState().
+     * @throws LdapException On any LDAP error
+     */
+    public void buildSiteMembershipIndex() throws LdapException {
+        final Map<String, Collection<String>> index = new HashMap<String, Collection<String>>();
+
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningAttributes(new String[] {"cn", getFirstMemberRange()});
+
+        final LdapContext ctx = getDirectoryContext();
+
+        try {
+            search(ctx, ldapGroups, "cn=" + ldapGroupPrefix + "*", controls, new SearchResultVisitor() {
+                public void visit(final SearchResult sr) throws NamingException, LdapException {
+                    Attribute cn = sr.getAttributes().get("cn");
+
+                    if (cn == null || cn.get() == null) {
+                        return;
+                    }
+
+                    final String siteName = cn.get().toString().substring(ldapGroupPrefix.length());
+
+                    forEachMember(ctx, sr, new LdapResultHandler<String>() {
+                        public void handle(final String username) {
+                            Collection<String> sites = index.get(username);
+
+                            if (sites == null) {
+                                sites = new ArrayList<String>(2);
+                                index.put(username, sites);
+                            }
+
+                            sites.add(siteName);
+                        }
+                    });
+                }
+            });
+        } catch (NamingException e) {
+            contextFailed(ctx, e);
+            throw new LdapException("Failed to build site membership index from LDAP", e);
+        } finally {
+            releaseContext(ctx);
+        }
+
+        siteMembershipIndex = index;
+    }
+
+    /**
+     * Discard state which is only valid for the duration of a single run,
+     * such as the site membership index and the table of usernames.
+     */
+    public void clearRunState() {
+        siteMembershipIndex = null;
+        usernames.clear();
+    }
+
     /**
      * Given the full user name of a user ie. "simonw-org1" or "richardl-org2" without any ldap specific stuff,
      * look-up the full Dn of that user.  Need to use SUBTREE_SCOPE as there is a hierarchy.
+     * Answers are cached, see {@link #invalidateUserDn(String)}.
      * @param userName
      * @return
      */
     protected String getFullDnForUser(String userName) throws LdapException {
-    	
-        try {
-            String userNameFilter = "(cn=" + userName + ")";
-            SearchControls controls = new SearchControls();
-            controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-    
-            Enumeration<SearchResult> objects;
-            objects = this.getDirectoryContext().search(ldapUsers, userNameFilter, controls);
-    
-            if (!objects.hasMoreElements()) {
-                throw new LdapException("Could not find the user with sid: " + userName);
-            }
-            
-            SearchResult result = objects.nextElement();
+        String dn = userDnCache.get(userName);
 
-            if (objects.hasMoreElements()) {
-                throw new LdapException("Found multiple users with the sid: "+ userName);
-            }
-            
-            return result.getNameInNamespace();
-            
-        } catch (NameNotFoundException nnfe) {
-            String message = "User not found in LDAP";
-            throw new LdapException(message, nnfe);
-        } catch (NamingException ne) {
-            String message = "Error occurred in LDAP lookup";
-            throw new LdapException(message, ne);
+        if (dn == null) {
+            dn = searchForUser(userName, NO_ATTRIBUTES).getNameInNamespace();
         }
+
+        return dn;
     }
 
     
@@ -512,13 +901,67 @@ public class LdapConnector {
      * @throws LdapException
      */
     public SearchResult getSingleSearchResultObjectforUser(String username) throws LdapException {
+        return getSingleSearchResultObjectforUser(username, null);
+    }
+
+    /**
+     * Based on a username get access to the single result, returning only
+     * the specified attributes.  If the user's DN is cached the entry is
+     * read directly instead of searching the whole user tree, and given a
+     * name relative to the user tree, as a search would.
+     * 
+     * @param username
+     * @param returningAttributes Attributes to return, or null for all of them
+     * @return the search result with a single object for the username.
+     * @throws LdapException
+     */
+    private SearchResult getSingleSearchResultObjectforUser(String username, String[] returningAttributes)
+            throws LdapException {
+        String dn = userDnCache.get(username);
+
+        if (dn != null) {
+            LdapContext ctx = getDirectoryContext();
+            try {
+                Attributes attributes = ctx.getAttributes(getRelativeDn(dn), returningAttributes);
+                String usersDn = ldapRootContext.length() > 0 ? ldapUsers + "," + ldapRootContext : ldapUsers;
+                String name = getRelativeDn(dn, usersDn);
+                SearchResult result = new SearchResult(name, null, attributes, !name.equals(dn));
+                result.setNameInNamespace(dn);
+                return result;
+            } catch (NameNotFoundException nnfe) {
+                // the user has moved or gone, so fall back to searching
+                userDnCache.invalidate(username);
+            } catch (NamingException ne) {
+                contextFailed(ctx, ne);
+                String message = "Error occurred in LDAP lookup";
+                throw new LdapException(message, ne);
+            } finally {
+                releaseContext(ctx);
+            }
+        }
+
+        return searchForUser(username, returningAttributes);
+    }
+
+    /**
+     * Search the user tree for a single user, and cache their DN.
+     * 
+     * @param username
+     * @param returningAttributes Attributes to return, or null for all of them
+     * @return the search result with a single object for the username.
+     * @throws LdapException If there is not exactly one such user, or on any LDAP error
+     */
+    private SearchResult searchForUser(String username, String[] returningAttributes)
+            throws LdapException {
+        LdapContext ctx = getDirectoryContext();
         try {
             String filter = "(cn=" + username + ")";
             SearchControls controls = new SearchControls();
             controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+            controls.setReturningAttributes(returningAttributes);
     
             Enumeration<SearchResult> objects;
-            objects = this.getDirectoryContext().search(ldapUsers, filter, controls);
+            objects = ctx.search(ldapUsers, filter, controls);
     
             if (!objects.hasMoreElements()) {
                 throw new LdapException("Could not find the user with sid: " + username);
@@ -529,6 +972,8 @@ public class LdapConnector {
             if (objects.hasMoreElements()) {
                 throw new LdapException("Found multiple users with the sid: "+ username);
             }
+
+            userDnCache.put(username, result.getNameInNamespace());
             
             return result;
             
@@ -536,23 +981,107 @@ public class LdapConnector {
             String message = "User not found in LDAP";
             throw new LdapException(message, nnfe);
         } catch (NamingException ne) {
+            contextFailed(ctx, ne);
             String message = "Error occurred in LDAP lookup";
             throw new LdapException(message, ne);
-        }    	
+        } finally {
+            releaseContext(ctx);
+        }
+    }
+
+    /**
+     * Convert a full DN into one relative to the root context, which is
+     * what operations on the directory context expect.
+     * @param fullDn The full DN
+     * @return The DN without the root context
+     * @throws NamingException If the DN cannot be parsed
+     */
+    private String getRelativeDn(final String fullDn) throws NamingException {
+        return getRelativeDn(fullDn, ldapRootContext);
+    }
+
+    /**
+     * Convert a full DN into one relative to another DN which it is under.
+     * @param fullDn The full DN
+     * @param base The full DN to make it relative to
+     * @return The DN without the base, or the full DN if it isn't under the base
+     * @throws NamingException If either DN cannot be parsed
+     */
+    private static String getRelativeDn(final String fullDn, final String base) throws NamingException {
+        LdapName name = new LdapName(fullDn);
+        LdapName baseName = new LdapName(base);
+
+        if (baseName.size() > 0 && name.size() > baseName.size() && name.startsWith(baseName)) {
+            return name.getSuffix(baseName.size()).toString();
+        }
+
+        return fullDn;
+    }
+
+    /**
+     * Forget the cached DN of a user, e.g. after moving them in the directory.
+     * @param username The user
+     */
+    public void invalidateUserDn(final String username) {
+        userDnCache.invalidate(username);
+    }
+
+    /**
+     * Forget all cached user DNs.
+     */
+    public void clearUserDnCache() {
+        userDnCache.clear();
+    }
+
+    /**
+     * @return Number of user DN lookups answered from the cache
+     */
+    public long getUserDnCacheHits() {
+        return userDnCache.getHits();
+    }
+
+    /**
+     * @return Number of user DN lookups which had to go to the directory
+     */
+    public long getUserDnCacheMisses() {
+        return userDnCache.getMisses();
+    }
+
+    /**
+     * Has the LDAP admins group been modified since a specified time?
+     * @param timestamp The time to compare with
+     * @return True if the group has changed, otherwise false
+     * @throws LdapException On any LDAP error
+     */
+    public boolean haveAdminsChanged(final String timestamp) throws LdapException {
+        return hasGroupChanged(ldapGroupAdmins, timestamp);
+    }
+
+    /**
+     * Has the LDAP deleters group been modified since a specified time?
+     * @param timestamp The time to compare with
+     * @return True if the group has changed, otherwise false
+     * @throws LdapException On any LDAP error
+     */
+    public boolean haveDeletersChanged(final String timestamp) throws LdapException {
+        return hasGroupChanged(ldapGroupDeleters, timestamp);
     }
+
     /**
-     * Has the LDAP admins group been modified since a specified time?
+     * Has an LDAP group been modified since a specified time?
+     * @param cn The group's cn
      * @param timestamp The time to compare with
      * @return True if the group has changed, otherwise false
      * @throws LdapException On any LDAP error
      */
-    public boolean haveAdminsChanged(final String timestamp) throws LdapException {
-        String filter1 = "cn=" + ldapGroupAdmins;
+    private boolean hasGroupChanged(final String cn, final String timestamp) throws LdapException {
+        String filter1 = "cn=" + cn;
         String filter2 = "modifyTimestamp>=" + timestamp;
         String filter = "(&(" + filter1 + ")(" + filter2 + "))";
 
         SearchControls controls = new SearchControls();
         controls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+        controls.setReturningAttributes(NO_ATTRIBUTES);
 
         NamingEnumeration<SearchResult> objects;
         DirContext ctx = getDirectoryContext();
@@ -564,7 +1093,8 @@ public class LdapConnector {
         }
         catch (NamingException e) 
         {
-            throw new LdapException("Cannot read LDAP admins group", e);
+            contextFailed(ctx, e);
+            throw new LdapException("Cannot read LDAP group " + cn, e);
         }
         finally
         {
@@ -581,12 +1111,22 @@ public class LdapConnector {
     public Collection<String> getAllGroups(final GroupType gt) throws LdapException {
         return getGroups(getPrefix(gt), null);
     }
+
+    /**
+     * Pass the name of every LDAP group of a specified type to a handler.
+     * @param gt The type of groups
+     * @param handler Receives each group name in turn
+     * @throws LdapException On any LDAP error, or if the handler aborts
+     */
+    public void forEachGroup(final GroupType gt, final LdapResultHandler<String> handler) throws LdapException {
+        getGroups(getPrefix(gt), null, handler);
+    }
     
     public String getHumanName(String groupName, GroupType type) throws LdapException
     {
     	try 
     	{
-			return getAttributesOfGroup(groupName, type).get("displayName").get().toString();
+			return getAttributesOfGroup(groupName, type, "displayName").get("displayName").get().toString();
 		} 
     	catch (NamingException e) 
     	{
@@ -603,7 +1143,7 @@ public class LdapConnector {
     	try
     	{
     		//Slightly convolted accessor to handle ldap schemas that might not model this as a boolean
-    		return Boolean.valueOf(getAttributesOfGroup(groupName, type).get("deprecated").get().toString());
+    		return Boolean.valueOf(getAttributesOfGroup(groupName, type, "deprecated").get("deprecated").get().toString());
     	}
     	catch (NamingException e) 
     	{
@@ -619,7 +1159,7 @@ public class LdapConnector {
     {
     	try 
     	{
-			return getAttributesOfGroup(groupName, type).get("category").get().toString();
+			return getAttributesOfGroup(groupName, type, "category").get("category").get().toString();
 		} 
     	catch (NamingException e) 
     	{
@@ -635,7 +1175,7 @@ public class LdapConnector {
     {
     	try 
     	{
-			return getAttributesOfGroup(groupName, type).get("description").get().toString();
+			return getAttributesOfGroup(groupName, type, "description").get("description").get().toString();
 		} 
     	catch (NamingException e) 
     	{
@@ -651,7 +1191,7 @@ public class LdapConnector {
     {
     	try 
     	{
-			return getAttributesOfGroup(groupName, type).get("permissionAuthority").get().toString();
+			return getAttributesOfGroup(groupName, type, "permissionAuthority").get("permissionAuthority").get().toString();
 		} 
     	catch (NamingException e) 
     	{
@@ -663,10 +1203,11 @@ public class LdapConnector {
 		}
     }
     
-    private Attributes getAttributesOfGroup(String groupName, GroupType type) throws LdapException
+    private Attributes getAttributesOfGroup(String groupName, GroupType type, String attributeName) throws LdapException
     {
         SearchControls controls = new SearchControls();
         controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningAttributes(new String[] {attributeName});
 
         String groupPrefix = ldapGroupPrefixOpen;
         
@@ -691,6 +1232,7 @@ public class LdapConnector {
         } 
         catch (NamingException e) 
         {
+            contextFailed(ctx, e);
             throw new LdapException("Failed to retrieve details from LDAP for the group "+groupName, e);
         }
         catch (NullPointerException ex)
@@ -716,6 +1258,19 @@ public class LdapConnector {
         return getGroups(getPrefix(gt), "modifyTimestamp>=" + timestamp);
     }
 
+    /**
+     * Pass the name of every LDAP group of a specified type which has been
+     * modified since a specified time to a handler.
+     * @param gt The type of groups
+     * @param timestamp The time to compare with
+     * @param handler Receives each group name in turn
+     * @throws LdapException On any LDAP error, or if the handler aborts
+     */
+    public void forEachModifiedGroup(final GroupType gt, final String timestamp,
+            final LdapResultHandler<String> handler) throws LdapException {
+        getGroups(getPrefix(gt), "modifyTimestamp>=" + timestamp, handler);
+    }
+
     /**
      * Get a list of all LDAP users.
      * @return List of user attributes
@@ -725,6 +1280,26 @@ public class LdapConnector {
         return getUserAttributes(null);
     }
 
+    /**
+     * Pass the attributes of every LDAP user to a handler.
+     * @param handler Receives the attributes of each user in turn
+     * @throws LdapException On any LDAP error, or if the handler aborts
+     */
+    public void forEachUser(final LdapResultHandler<Attributes> handler) throws LdapException {
+        getUserAttributes(null, null, handler);
+    }
+
+    /**
+     * Pass the specified attributes of every LDAP user to a handler.
+     * @param returningAttributes Attributes to return, or null for all of them
+     * @param handler Receives the attributes of each user in turn
+     * @throws LdapException On any LDAP error, or if the handler aborts
+     */
+    public void forEachUser(final String[] returningAttributes, final LdapResultHandler<Attributes> handler)
+            throws LdapException {
+        getUserAttributes(null, returningAttributes, handler);
+    }
+
     /**
      * Get a list of all LDAP users which
      * have been modified since a specified time.
@@ -737,6 +1312,31 @@ public class LdapConnector {
         return getUserAttributes("modifyTimestamp>=" + timestamp);
     }
 
+    /**
+     * Pass the attributes of every LDAP user which has been modified since
+     * a specified time to a handler.
+     * @param timestamp The time to compare with
+     * @param handler Receives the attributes of each user in turn
+     * @throws LdapException On any LDAP error, or if the handler aborts
+     */
+    public void forEachModifiedUser(final String timestamp, final LdapResultHandler<Attributes> handler)
+            throws LdapException {
+        getUserAttributes("modifyTimestamp>=" + timestamp, null, handler);
+    }
+
+    /**
+     * Pass the specified attributes of every LDAP user which has been
+     * modified since a specified time to a handler.
+     * @param timestamp The time to compare with
+     * @param returningAttributes Attributes to return, or null for all of them
+     * @param handler Receives the attributes of each user in turn
+     * @throws LdapException On any LDAP error, or if the handler aborts
+     */
+    public void forEachModifiedUser(final String timestamp, final String[] returningAttributes,
+            final LdapResultHandler<Attributes> handler) throws LdapException {
+        getUserAttributes("modifyTimestamp>=" + timestamp, returningAttributes, handler);
+    }
+
     /**
      * Update the timestamp entry and return the time of the
      * previous timestamp (or null if it doesn't exist).
@@ -764,6 +1364,7 @@ public class LdapConnector {
 	                oldTime = (String) attribute.get();
 	            }
 	        } catch (javax.naming.NamingException e) {
+	            contextFailed(ctx, e);
 	            oldTime = null;
 	        }
 	
@@ -778,6 +1379,7 @@ public class LdapConnector {
 	        try {
 	        	ctx.rebind("cn=" + ldapTimestamp, null, attributes);
 	        } catch (NamingException e) {
+	            contextFailed(ctx, e);
 	            throw new LdapException("Cannot update timestamp in LDAP", e);
 	        }
         }
@@ -809,6 +1411,7 @@ public class LdapConnector {
         } 
         catch (NamingException e) 
         {
+            contextFailed(ctx, e);
             throw new LdapException("Cannot create lock entry in LDAP", e);
         }
         finally {
@@ -828,6 +1431,7 @@ public class LdapConnector {
         } 
         catch (NamingException e) 
         {
+            contextFailed(ctx, e);
             throw new LdapException("Cannot delete lock entry in LDAP", e);
         }
         finally
@@ -854,6 +1458,7 @@ public class LdapConnector {
         } 
         catch (javax.naming.NamingException e) 
         {
+            contextFailed(ctx, e);
             exists = false;
         }
         finally
@@ -871,7 +1476,8 @@ public class LdapConnector {
      * @throws LdapException On error connecting to LDAP.
      */
     public boolean isSecurityModelModified() throws LdapException {
-    	return SECURITY_MODEL_LAST_UPDATED == null || !securityModel304 || isGroupsModifiedSince(SECURITY_MODEL_LAST_UPDATED);
+    	Date lastUpdated = SECURITY_MODEL_LAST_UPDATED.get();
+    	return lastUpdated == null || !securityModel304 || isGroupsModifiedSince(lastUpdated);
     }
     
     /**
@@ -879,10 +1485,11 @@ public class LdapConnector {
      * @throws LdapException On error connecting to LDAP.
      */
     public boolean isGroupsModifiedSince(final Date timestamp) throws LdapException {
-        String filter = "(modifyTimestamp>=" + LDAP_DATE_FORMAT.format(timestamp) + ")";
+        String filter = "(modifyTimestamp>=" + LDAP_DATE_FORMAT.get().format(timestamp) + ")";
 
         SearchControls controls = new SearchControls();
         controls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+        controls.setReturningAttributes(NO_ATTRIBUTES);
 
         NamingEnumeration<SearchResult> objects;
         DirContext ctx = getDirectoryContext();
@@ -894,6 +1501,7 @@ public class LdapConnector {
         }
         catch (NamingException e) 
         {
+            contextFailed(ctx, e);
             throw new LdapException("Cannot read LDAP admins group", e);
         }
         finally
@@ -906,7 +1514,7 @@ public class LdapConnector {
      * Sets the date and time for when we last updated the security model.
      */
     public void setSecurityModelUpdated() {
-    	SECURITY_MODEL_LAST_UPDATED = new Date();
+    	SECURITY_MODEL_LAST_UPDATED.set(new Date());
     }
 
     /**
@@ -921,49 +1529,197 @@ public class LdapConnector {
     private Collection<String> getGroupMembersFromFilter(final String filter, final int scope) throws LdapException {
         Collection<String> memberList = new HashSet<String>(HASH_SIZE);
 
+        getGroupMembersFromFilter(filter, scope, new CollectingHandler<String>(memberList));
+
+        return memberList;
+    }
+
+    /**
+     * Pass each member of the groups matching an LDAP filter expression
+     * and scope to a handler.
+     * @param filter LDAP search filter (see RFC2254)
+     * @param scope One of SearchControls.OBJECT_SCOPE, SearchControls.ONELEVEL_SCOPE,
+     * or SearchControls.SUBTREE_SCOPE (see javax.naming.directory.SearchControls)
+     * @param handler Receives each username in turn
+     * @throws LdapException On any LDAP error, or if the handler aborts
+     */
+    private void getGroupMembersFromFilter(final String filter, final int scope,
+            final LdapResultHandler<String> handler) throws LdapException {
         SearchControls controls = new SearchControls();
         controls.setSearchScope(scope);
+        controls.setReturningAttributes(new String[] {getFirstMemberRange()});
 
-        NamingEnumeration<SearchResult> objects;
-        DirContext ctx = getDirectoryContext();
+        final LdapContext ctx = getDirectoryContext();
         
         try 
         {
-            objects = ctx.search(ldapGroups, filter, controls);
-
-            while (objects.hasMore()) {
-                SearchResult sr = (SearchResult) objects.next();
-                Attributes attributes = sr.getAttributes();
-                Attribute attribute = attributes.get("member");
-
-                if (attribute != null) {
-                    NamingEnumeration<?> valueEnum = attribute.getAll();
-
-                    while (valueEnum.hasMore()) {
-                        String value = valueEnum.next().toString();
-
-                        final String searchFor = "cn=";
-                        int start = value.indexOf(searchFor);
-                        int end = value.indexOf(',', start);
-
-                        if (start >= 0 && end >= 0) {
-                            String name = value.substring(start + searchFor.length(), end);
-                            memberList.add(name);
-                        }
-                    }
+            search(ctx, ldapGroups, filter, controls, new SearchResultVisitor() {
+                public void visit(final SearchResult sr) throws NamingException, LdapException {
+                    forEachMember(ctx, sr, handler);
                 }
-            }
+            });
         } 
         catch (NamingException e) 
         {
+            contextFailed(ctx, e);
             throw new LdapException("Failed to retrieve group members from LDAP", e);
         }
         finally
         {
         	releaseContext(ctx);
         }
+    }
 
-        return memberList;
+    /**
+     * Pass each member of a group entry to a handler.  Directories such as
+     * Active Directory return very large member attributes in ranges
+     * (e.g. "member;range=0-1499"), in which case the remaining ranges are
+     * read one at a time and streamed to the handler, so the whole
+     * attribute is never held in memory at once.
+     * @param ctx Context the entry was found with
+     * @param sr The group entry
+     * @param handler Receives each username in turn
+     * @throws NamingException On any LDAP error
+     * @throws LdapException If the handler aborts
+     */
+    private void forEachMember(final LdapContext ctx, final SearchResult sr,
+            final LdapResultHandler<String> handler) throws NamingException, LdapException {
+        String nextRange = handleMemberAttributes(sr.getAttributes(), handler);
+
+        if (nextRange == null) {
+            return;
+        }
+
+        String entryName = sr.getName();
+
+        if (sr.isRelative()) {
+            entryName = (entryName.length() == 0) ? ldapGroups : entryName + "," + ldapGroups;
+        }
+
+        // read the rest on a context without any paging controls
+        LdapContext rangeCtx = ctx.newInstance(null);
+
+        try {
+            while (nextRange != null) {
+                nextRange = handleMemberAttributes(
+                        rangeCtx.getAttributes(entryName, new String[] {nextRange}), handler);
+            }
+        } finally {
+            rangeCtx.close();
+        }
+    }
+
+    /**
+     * Pass the members in a set of group attributes to a handler.
+     * @param attributes Attributes of a group, either a complete member
+     * attribute or a single range of one
+     * @param handler Receives each username in turn
+     * @return The name of the next range to request, or null if all
+     * members have been read
+     * @throws NamingException On any LDAP error
+     * @throws LdapException If the handler aborts
+     */
+    private String handleMemberAttributes(final Attributes attributes, final LdapResultHandler<String> handler)
+            throws NamingException, LdapException {
+        String nextRange = null;
+        NamingEnumeration<? extends Attribute> attributeEnum = attributes.getAll();
+
+        while (attributeEnum.hasMore()) {
+            Attribute attribute = attributeEnum.next();
+            String id = attribute.getID();
+
+            if (id.equalsIgnoreCase(MEMBER_ATTRIBUTE)) {
+                handleMembers(attribute, handler);
+            } else if (id.toLowerCase().startsWith(MEMBER_RANGE_PREFIX)) {
+                handleMembers(attribute, handler);
+                nextRange = getNextMemberRange(id);
+            }
+        }
+
+        return nextRange;
+    }
+
+    /**
+     * Pass each value of a member attribute to a handler.
+     * @param attribute The member attribute, or a range of it
+     * @param handler Receives each username in turn
+     * @throws NamingException On any LDAP error
+     * @throws LdapException If the handler aborts
+     */
+    private void handleMembers(final Attribute attribute, final LdapResultHandler<String> handler)
+            throws NamingException, LdapException {
+        NamingEnumeration<?> valueEnum = attribute.getAll();
+
+        try {
+            while (valueEnum.hasMore()) {
+                String name = extractUsername(valueEnum.next().toString());
+
+                if (name != null) {
+                    handler.handle(name);
+                }
+            }
+        } finally {
+            valueEnum.close();
+        }
+    }
+
+    /**
+     * @return The member attribute to request when first reading a group
+     */
+    private String getFirstMemberRange() {
+        if (memberRangeSize <= 0) {
+            return MEMBER_ATTRIBUTE;
+        }
+
+        return MEMBER_RANGE_PREFIX + "0-" + (memberRangeSize - 1);
+    }
+
+    /**
+     * Work out which range of members to request after the one returned.
+     * @param id Name of the returned attribute, e.g. "member;range=0-1499"
+     * @return The next range to request, e.g. "member;range=1500-*", or
+     * null if the returned range was the last one
+     * @throws LdapException If the range cannot be parsed
+     */
+    private String getNextMemberRange(final String id) throws LdapException {
+        String range = id.substring(MEMBER_RANGE_PREFIX.length());
+        int dash = range.indexOf('-');
+
+        if (dash < 0) {
+            throw new LdapException("Unexpected member range returned from LDAP: " + id);
+        }
+
+        String high = range.substring(dash + 1);
+
+        if (high.equals("*")) {
+            return null;
+        }
+
+        int low;
+
+        try {
+            low = Integer.parseInt(high) + 1;
+        } catch (NumberFormatException e) {
+            throw new LdapException("Unexpected member range returned from LDAP: " + id, e);
+        }
+
+        if (memberRangeSize <= 0) {
+            // let the server pick the size of each range
+            return MEMBER_RANGE_PREFIX + low + "-*";
+        }
+
+        return MEMBER_RANGE_PREFIX + low + "-" + (low + memberRangeSize - 1);
+    }
+
+    /**
+     * Extract the username from the DN of a group member.  Usernames are
+     * shared through a table for the run, so each distinct username is
+     * only held once however many groups it appears in.
+     * @param value The DN, e.g. "cn=bob,ou=people"
+     * @return The username, or null if the DN has no cn
+     */
+    private String extractUsername(final String value) {
+        return DnParser.getFirstValue(value, "cn", usernames);
     }
 
     /**
@@ -978,8 +1734,24 @@ public class LdapConnector {
             throws LdapException {
         Collection<String> groupList = new HashSet<String>(HASH_SIZE);
 
+        getGroups(prefix, searchCondition, new CollectingHandler<String>(groupList));
+
+        return groupList;
+    }
+
+    /**
+     * Pass the name of each group whose name has a specified prefix
+     * and which also fulfils a search condition to a handler.
+     * @param prefix Prefix of groups to search for
+     * @param searchCondition LDAP search filter (see RFC2254)
+     * @param handler Receives each group name (without the prefix) in turn
+     * @throws LdapException On any LDAP error, or if the handler aborts
+     */
+    private void getGroups(final String prefix, final String searchCondition,
+            final LdapResultHandler<String> handler) throws LdapException {
         SearchControls controls = new SearchControls();
         controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningAttributes(GROUP_NAME_ATTRIBUTES);
 
         String filter = "cn=" + prefix + "*";
 
@@ -987,36 +1759,32 @@ public class LdapConnector {
             filter = "(&(" + searchCondition + ")(" + filter + "))";
         }
 
-        DirContext ctx = getDirectoryContext();
+        LdapContext ctx = getDirectoryContext();
         
         try {
-            NamingEnumeration<SearchResult> objects = ctx.search(ldapGroups, filter, controls);
-
-            while (objects.hasMore()) {
-                SearchResult sr = (SearchResult) objects.next();
-                Attributes attributes = sr.getAttributes();
-                Attribute attribute = attributes.get("cn");
+            search(ctx, ldapGroups, filter, controls, new SearchResultVisitor() {
+                public void visit(final SearchResult sr) throws NamingException, LdapException {
+                    Attribute attribute = sr.getAttributes().get("cn");
 
-                if (attribute != null) {
-                    String cn = (String) attribute.get();
+                    if (attribute != null) {
+                        String cn = (String) attribute.get();
 
-                    if (cn != null) {
-                        String name = cn.substring(prefix.length());
-                        groupList.add(name);
+                        if (cn != null) {
+                            handler.handle(cn.substring(prefix.length()));
+                        }
                     }
                 }
-            }
+            });
         } 
         catch (NamingException e) 
         {
+            contextFailed(ctx, e);
             throw new LdapException("Failed to retrieve group list from LDAP", e);
         }
         finally
         {
         	releaseContext(ctx);
         }
-
-        return groupList;
     }
 
     /**
@@ -1029,8 +1797,24 @@ public class LdapConnector {
             throws LdapException {
         Collection<Attributes> userList = new HashSet<Attributes>(HASH_SIZE);
 
+        getUserAttributes(searchCondition, null, new CollectingHandler<Attributes>(userList));
+
+        return userList;
+    }
+
+    /**
+     * Pass the attributes of each user which fulfils an optional search
+     * condition to a handler.
+     * @param searchCondition LDAP search filter (see RFC2254)
+     * @param returningAttributes Attributes to return, or null for all of them
+     * @param handler Receives the attributes of each user in turn
+     * @throws LdapException On any LDAP error, or if the handler aborts
+     */
+    private void getUserAttributes(final String searchCondition, final String[] returningAttributes,
+            final LdapResultHandler<Attributes> handler) throws LdapException {
         SearchControls controls = new SearchControls();
         controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningAttributes(returningAttributes);
 
         String filter = "objectClass=" + ldapProfileObjectClass;
 
@@ -1038,30 +1822,283 @@ public class LdapConnector {
             filter = "(&(" + searchCondition + ")(" + filter + "))";
         }
 
-        DirContext ctx = getDirectoryContext();
+        LdapContext ctx = getDirectoryContext();
         try 
         {
-            NamingEnumeration<SearchResult> objects = ctx.search(ldapUsers, filter, controls);
+            search(ctx, ldapUsers, filter, controls, new SearchResultVisitor() {
+                public void visit(final SearchResult sr) throws LdapException {
+                    Attributes attributes = sr.getAttributes();
 
-            while (objects.hasMore()) {
-                SearchResult sr = (SearchResult) objects.next();
-                Attributes attributes = sr.getAttributes();
-
-                if (attributes != null) {
-                    userList.add(attributes);
+                    if (attributes != null) {
+                        handler.handle(attributes);
+                    }
                 }
-            }
+            });
         } 
         catch (NamingException e) 
         {
+            contextFailed(ctx, e);
             throw new LdapException("Failed to retrieve user list from LDAP", e);
         }
         finally
         {
         	releaseContext(ctx);
         }
+    }
 
-        return userList;
+    /**
+     * Run a search, passing each result to a visitor.  If a page size is
+     * configured the search is split into pages using the RFC 2696 paged
+     * results control, so that servers with a size limit return every entry
+     * and only one page is held in memory at a time.  The control is
+     * non-critical, so servers which don't support it simply return
+     * everything in one go.  Each page is read in full before it is visited,
+     * so the search is never left open while the visitor works: memory use
+     * is only bounded by the page size if paging is configured and honoured
+     * by the server, otherwise the whole result set is held at once.
+     * @param ctx Context to search with
+     * @param base Where to search from
+     * @param filter LDAP search filter (see RFC2254)
+     * @param controls Scope and other search controls
+     * @param visitor Receives each result in turn
+     * @throws NamingException On any LDAP error
+     * @throws LdapException If the visitor aborts, or the control cannot be encoded
+     */
+    private void search(final LdapContext ctx, final String base, final String filter,
+            final SearchControls controls, final SearchResultVisitor visitor)
+            throws NamingException, LdapException {
+        if (pageSize <= 0) {
+            visitAll(ctx.search(base, filter, controls), visitor);
+            return;
+        }
+
+        // page on a context of our own so the request controls don't leak
+        // into other operations sharing the connection
+        LdapContext pagedCtx = null;
+
+        try {
+            byte[] cookie = null;
+            pagedCtx = ctx.newInstance(
+                    new Control[] {new PagedResultsControl(pageSize, Control.NONCRITICAL)});
+
+            do {
+                visitAll(pagedCtx.search(base, filter, controls), visitor);
+
+                cookie = getPagedResultsCookie(pagedCtx.getResponseControls());
+
+                if (cookie != null) {
+                    pagedCtx.setRequestControls(
+                            new Control[] {new PagedResultsControl(pageSize, cookie, Control.NONCRITICAL)});
+                }
+            } while (cookie != null);
+        } catch (IOException e) {
+            throw new LdapException("Cannot encode paged results control", e);
+        } finally {
+            if (pagedCtx != null) {
+                pagedCtx.close();
+            }
+        }
+    }
+
+    /**
+     * Read every result in an enumeration and close it, then pass each
+     * result to a visitor.
+     * @param objects The results
+     * @param visitor Receives each result in turn
+     * @throws NamingException On any LDAP error
+     * @throws LdapException If the visitor aborts
+     */
+    private void visitAll(final NamingEnumeration<SearchResult> objects, final SearchResultVisitor visitor)
+            throws NamingException, LdapException {
+        Collection<SearchResult> page = new ArrayList<SearchResult>();
+
+        try {
+            while (objects.hasMore()) {
+                page.add(objects.next());
+            }
+        } finally {
+            objects.close();
+        }
+
+        Iterator<SearchResult> iter = page.iterator();
+
+        while (iter.hasNext()) {
+            visitor.visit(iter.next());
+        }
+    }
+
+    /**
+     * Find the cookie for the next page of results.
+     * @param responseControls Controls returned with the last page
+     * @return The cookie, or null if there are no more pages
+     */
+    private byte[] getPagedResultsCookie(final Control[] responseControls) {
+        if (responseControls != null) {
+            for (int x = 0; x < responseControls.length; x++) {
+                if (responseControls[x] instanceof PagedResultsResponseControl) {
+                    byte[] cookie = ((PagedResultsResponseControl) responseControls[x]).getCookie();
+
+                    if (cookie != null && cookie.length > 0) {
+                        return cookie;
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Receives each entry returned by a search.
+     */
+    private interface SearchResultVisitor {
+        /**
+         * Process a single search result.
+         * @param sr The search result
+         * @throws NamingException On any LDAP error
+         * @throws LdapException To abort the search
+         */
+        void visit(SearchResult sr) throws NamingException, LdapException;
+    }
+
+    /**
+     * Handler which simply adds each result to a collection.
+     * @param <T> The type of each result
+     */
+    private static class CollectingHandler<T> implements LdapResultHandler<T> {
+        /**
+         * Where to put the results.
+         */
+        private final Collection<T> results;
+
+        /**
+         * @param results Where to put the results
+         */
+        CollectingHandler(final Collection<T> results) {
+            this.results = results;
+        }
+
+        /**
+         * Add a result to the collection.
+         * @param result The result
+         */
+        public void handle(final T result) {
+            results.add(result);
+        }
+    }
+
+    /**
+     * Work out the type of an LDAP group from its name.  If the prefixes of
+     * several types match, the longest wins.
+     * @param cn Name of the group (with prefix)
+     * @return The type of the group, or null if it isn't synchronised
+     * to Alfresco
+     */
+    GroupType getGroupType(final String cn) {
+        GroupType match = null;
+        int matchLength = -1;
+
+        GroupType[] types = GroupType.values();
+
+        for (int x = 0; x < types.length; x++) {
+            String prefix = getPrefix(types[x]);
+
+            if (cn.startsWith(prefix) && prefix.length() > matchLength) {
+                match = types[x];
+                matchLength = prefix.length();
+            }
+        }
+
+        return match;
+    }
+
+    /**
+     * @param cn Name of an LDAP group (with prefix)
+     * @param gt The type of the group
+     * @return Name of the group without its prefix
+     */
+    String removePrefix(final String cn, final GroupType gt) {
+        return cn.substring(getPrefix(gt).length());
+    }
+
+    /**
+     * @param cn Name of an LDAP group
+     * @return True if it is the admins or deleters group, whose changes
+     * affect every site
+     */
+    boolean isSpecialGroup(final String cn) {
+        return cn.equalsIgnoreCase(ldapGroupAdmins) || cn.equalsIgnoreCase(ldapGroupDeleters);
+    }
+
+    /**
+     * @return Where groups are searched for, relative to the root context
+     */
+    String getGroupsContext() {
+        return ldapGroups;
+    }
+
+    /**
+     * @return Where users are searched for, relative to the root context
+     */
+    String getUsersContext() {
+        return ldapUsers;
+    }
+
+    /**
+     * @return Filter matching every user with a profile
+     */
+    String getUserFilter() {
+        return "objectClass=" + ldapProfileObjectClass;
+    }
+
+    /**
+     * @return Settings to connect to the LDAP server with
+     */
+    Properties getEnvironment() {
+        return ldapEnv;
+    }
+
+    /**
+     * Start or stop recording the groups and users touched by touchGroup()
+     * and touchUser(), so that the change feed can ignore the changes this
+     * connector makes itself.
+     * @param record True to record them
+     */
+    void setRecordTouches(final boolean record) {
+        recordTouches = record;
+
+        if (!record) {
+            touched.clear();
+        }
+    }
+
+    /**
+     * Check whether a changed group was touched by this connector, and forget
+     * the touch if so.
+     * @param cn Name of the group (with prefix)
+     * @return True if the change was the touch
+     */
+    boolean wasGroupTouched(final String cn) {
+        return touched.remove(touchKey("group", cn));
+    }
+
+    /**
+     * Check whether a changed user was touched by this connector, and forget
+     * the touch if so.
+     * @param username The user
+     * @return True if the change was the touch
+     */
+    boolean wasUserTouched(final String username) {
+        return touched.remove(touchKey("user", username));
+    }
+
+    /**
+     * @param kind "group" or "user"
+     * @param cn Name of the group or user, which LDAP compares ignoring case
+     * @return Key of the group or user in touched
+     */
+    private static String touchKey(final String kind, final String cn) {
+        return kind + ':' + cn.toLowerCase();
     }
 
     /**
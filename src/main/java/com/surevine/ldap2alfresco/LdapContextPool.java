@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * A bounded pool of authenticated LDAP contexts.
+ * 
+ * Contexts are created on demand up to a maximum number.  Idle contexts are
+ * reused most-recently-used first, and are checked with a cheap read of the
+ * root entry before being handed out so that connections dropped by the
+ * server or the network are replaced rather than reused.  Contexts which
+ * have been idle too long, or which have been open for longer than their
+ * maximum lifetime, are closed and replaced.  When every context is in use,
+ * callers wait for one to be released, up to a timeout.
+ * 
+ * All methods can be called from any thread.  Each context is only ever
+ * handed to one borrower at a time, and contexts are opened, validated and
+ * closed outside the pool's lock so a slow server doesn't hold up threads
+ * releasing other contexts.
+ */
+class LdapContextPool {
+
+    /**
+     * Attribute list asking the server to return no attributes.
+     */
+    private static final String[] NO_ATTRIBUTES = {"1.1"};
+
+    /**
+     * Environment used to create contexts.
+     */
+    private final Hashtable<?, ?> environment;
+
+    /**
+     * Maximum number of contexts open at once.
+     */
+    private final int maxSize;
+
+    /**
+     * How long to wait for a context when all are in use, in milliseconds.
+     */
+    private final long waitTimeout;
+
+    /**
+     * How long a context may sit idle before it is closed, in milliseconds,
+     * or zero for no limit.
+     */
+    private final long idleTimeout;
+
+    /**
+     * How long a context may be used for before it is closed, in
+     * milliseconds, or zero for no limit.
+     */
+    private final long maxLifetime;
+
+    /**
+     * Whether to check idle contexts still work before handing them out.
+     */
+    private final boolean validateOnBorrow;
+
+    /**
+     * Idle contexts, most recently used first.
+     */
+    private final LinkedList<PooledContext> idle = new LinkedList<PooledContext>();
+
+    /**
+     * Contexts currently handed out.
+     */
+    private final Map<LdapContext, PooledContext> borrowed = new IdentityHashMap<LdapContext, PooledContext>();
+
+    /**
+     * Number of contexts open or being opened.
+     */
+    private int size = 0;
+
+    /**
+     * Set once the pool has been closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * @param environment Environment used to create contexts
+     * @param maxSize Maximum number of contexts open at once
+     * @param waitTimeout How long to wait for a context when all are in use, in milliseconds
+     * @param idleTimeout How long a context may sit idle, in milliseconds, or zero for no limit
+     * @param maxLifetime How long a context may be used for, in milliseconds, or zero for no limit
+     * @param validateOnBorrow Whether to check idle contexts still work before handing them out
+     */
+    LdapContextPool(final Hashtable<?, ?> environment, final int maxSize, final long waitTimeout,
+            final long idleTimeout, final long maxLifetime, final boolean validateOnBorrow) {
+        this.environment = environment;
+        this.maxSize = Math.max(1, maxSize);
+        this.waitTimeout = waitTimeout;
+        this.idleTimeout = idleTimeout;
+        this.maxLifetime = maxLifetime;
+        this.validateOnBorrow = validateOnBorrow;
+    }
+
+    /**
+     * Take a context from the pool, opening a new one if none are idle and
+     * the pool is not full.  The context must be given back with release().
+     * @return A working context
+     * @throws LdapException If no context becomes available in time, or a
+     * new one cannot be opened
+     */
+    LdapContext borrow() throws LdapException {
+        long deadline = System.currentTimeMillis() + waitTimeout;
+
+        while (true) {
+            PooledContext candidate = null;
+            boolean reserved = false;
+            Collection<PooledContext> expired;
+
+            synchronized (this) {
+                if (closed) {
+                    throw new LdapException("LDAP connection pool has been closed");
+                }
+
+                expired = removeExpired();
+
+                if (!idle.isEmpty()) {
+                    candidate = idle.removeFirst();
+                } else if (size < maxSize) {
+                    // reserve a slot for a new context
+                    size++;
+                    reserved = true;
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+
+                    if (remaining <= 0) {
+                        throw new LdapException("Timed out waiting for one of " + maxSize + " LDAP connections");
+                    }
+
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new LdapException("Interrupted waiting for an LDAP connection", e);
+                    }
+                }
+            }
+
+            closeAll(expired);
+
+            if (reserved) {
+                candidate = open();
+            } else if (candidate != null && validateOnBorrow && !isValid(candidate.context)) {
+                discard(candidate);
+                candidate = null;
+            }
+
+            if (candidate != null) {
+                synchronized (this) {
+                    borrowed.put(candidate.context, candidate);
+                }
+
+                return candidate.context;
+            }
+        }
+    }
+
+    /**
+     * Give a context back to the pool.
+     * @param context A context obtained from borrow()
+     */
+    void release(final LdapContext context) {
+        PooledContext pooled;
+
+        synchronized (this) {
+            pooled = borrowed.remove(context);
+
+            if (pooled != null && !closed && !isExpired(pooled, System.currentTimeMillis())) {
+                pooled.lastUsed = System.currentTimeMillis();
+                idle.addFirst(pooled);
+                notifyAll();
+                return;
+            }
+        }
+
+        // not ours, expired, or the pool is closed
+        if (pooled != null) {
+            discard(pooled);
+        } else {
+            closeQuietly(context);
+        }
+    }
+
+    /**
+     * Close a borrowed context rather than giving it back, e.g. after it
+     * has failed.
+     * @param context A context obtained from borrow()
+     */
+    void invalidate(final LdapContext context) {
+        PooledContext pooled;
+
+        synchronized (this) {
+            pooled = borrowed.remove(context);
+        }
+
+        if (pooled != null) {
+            discard(pooled);
+        } else {
+            closeQuietly(context);
+        }
+    }
+
+    /**
+     * Close every idle context and stop handing out contexts.  Contexts
+     * currently borrowed are closed when they are released.
+     */
+    void close() {
+        Collection<PooledContext> toClose;
+
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayList<PooledContext>(idle);
+            idle.clear();
+            size -= toClose.size();
+            notifyAll();
+        }
+
+        closeAll(toClose);
+    }
+
+    /**
+     * Open a new context in a slot already reserved by incrementing size.
+     * @return The new context
+     * @throws LdapException If the context cannot be opened
+     */
+    private PooledContext open() throws LdapException {
+        try {
+            return new PooledContext(connect());
+        } catch (NamingException e) {
+            synchronized (this) {
+                size--;
+                notifyAll();
+            }
+            throw new LdapException("Cannot connect to LDAP server", e);
+        }
+    }
+
+    /**
+     * Connect to the LDAP server.  Overridden by tests to hand out stub
+     * contexts rather than connect.
+     * @return A new context
+     * @throws NamingException If the context cannot be opened
+     */
+    LdapContext connect() throws NamingException {
+        return new InitialLdapContext(environment, null);
+    }
+
+    /**
+     * Remove idle contexts which have expired.  Must be called while
+     * holding the lock; the returned contexts must then be closed.
+     * @return The expired contexts
+     */
+    private Collection<PooledContext> removeExpired() {
+        Collection<PooledContext> expired = new ArrayList<PooledContext>(0);
+        long now = System.currentTimeMillis();
+
+        Iterator<PooledContext> iter = idle.iterator();
+
+        while (iter.hasNext()) {
+            PooledContext pooled = iter.next();
+
+            if (isExpired(pooled, now) || (idleTimeout > 0 && now - pooled.lastUsed >= idleTimeout)) {
+                iter.remove();
+                expired.add(pooled);
+            }
+        }
+
+        if (!expired.isEmpty()) {
+            size -= expired.size();
+            notifyAll();
+        }
+
+        return expired;
+    }
+
+    /**
+     * Has a context passed its maximum lifetime?
+     * @param pooled The context
+     * @param now The current time
+     * @return True if the context should be closed
+     */
+    private boolean isExpired(final PooledContext pooled, final long now) {
+        return maxLifetime > 0 && now - pooled.created >= maxLifetime;
+    }
+
+    /**
+     * Check a context still works by reading the root entry.
+     * @param context The context
+     * @return True if the read succeeded
+     */
+    private boolean isValid(final LdapContext context) {
+        try {
+            context.getAttributes("", NO_ATTRIBUTES);
+            return true;
+        } catch (NamingException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Close a context which has already been removed from idle and
+     * borrowed, and free its slot.
+     * @param pooled The context
+     */
+    private void discard(final PooledContext pooled) {
+        synchronized (this) {
+            size--;
+            notifyAll();
+        }
+
+        closeQuietly(pooled.context);
+    }
+
+    /**
+     * Close contexts whose slots have already been freed.
+     * @param contexts The contexts
+     */
+    private static void closeAll(final Collection<PooledContext> contexts) {
+        Iterator<PooledContext> iter = contexts.iterator();
+
+        while (iter.hasNext()) {
+            closeQuietly(iter.next().context);
+        }
+    }
+
+    /**
+     * Close a context, ignoring any errors.
+     * @param context The context
+     */
+    private static void closeQuietly(final LdapContext context) {
+        try {
+            context.close();
+        } catch (Exception e) {
+            // If we get a problem closing the connection there's nothing we can do, so silently ignore
+        }
+    }
+
+    /**
+     * A context and its usage history.
+     */
+    private static class PooledContext {
+        /**
+         * The context.
+         */
+        private final LdapContext context;
+
+        /**
+         * When the context was opened.
+         */
+        private final long created;
+
+        /**
+         * When the context was last released.
+         */
+        private long lastUsed;
+
+        /**
+         * @param context The context
+         */
+        PooledContext(final LdapContext context) {
+            this.context = context;
+            this.created = System.currentTimeMillis();
+            this.lastUsed = created;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+/**
+ * Receives results one at a time from a streaming LdapConnector search, so
+ * that callers can walk very large result sets without holding them all in
+ * memory.  Results are passed on a page at a time once each page has been
+ * read, but the connector's LDAP connection is held until the search ends, so
+ * a handler should not call the connector itself, or a pooled connector would
+ * need a second connection.
+ * @param <T> The type of each result
+ */
+public interface LdapResultHandler<T> {
+
+    /**
+     * Process a single result.
+     * @param result The result
+     * @throws LdapException To abort the search
+     */
+    void handle(T result) throws LdapException;
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import java.util.Collection;
+
+import org.json.JSONObject;
+
+import com.surevine.alfresco.AlfrescoConnector;
+import com.surevine.alfresco.AlfrescoException;
+import com.surevine.alfresco.Authenticator;
+import com.surevine.alfresco.PropertyException;
+import com.surevine.alfresco.PropertyWrapper;
+
+/**
+ * An AlfrescoConnector whose calls to Alfresco wait for an adaptive
+ * concurrency limit shared with other connectors, and report back how
+ * long they took and whether they failed.  Calls the base class makes to
+ * its own overridden methods are made within the outer call's hold on the
+ * limit, so they never wait for it again.
+ */
+class LimitedAlfrescoConnector extends AlfrescoConnector {
+
+    /**
+     * The limit shared between connectors.
+     */
+    private final AdaptiveConcurrencyLimit limit;
+
+    /**
+     * @param properties Properties to configure the connector
+     * @param auth To authenticate with Alfresco
+     * @param limit The limit shared between connectors
+     * @throws AlfrescoException If the connection cannot be established
+     * @throws PropertyException If the properties are incomplete
+     */
+    LimitedAlfrescoConnector(final PropertyWrapper properties, final Authenticator auth, final AdaptiveConcurrencyLimit limit)
+            throws AlfrescoException, PropertyException {
+        super(properties, auth);
+        this.limit = limit;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<String> getSiteMemberList(final String site) throws AlfrescoException {
+        long started = acquire();
+        boolean failed = true;
+        try {
+            Collection<String> members = super.getSiteMemberList(site);
+            failed = false;
+            return members;
+        } finally {
+            limit.release("getSiteMemberList", started, failed);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<String> getMembershipOfGroup(final String group) throws AlfrescoException {
+        long started = acquire();
+        boolean failed = true;
+        try {
+            Collection<String> members = super.getMembershipOfGroup(group);
+            failed = false;
+            return members;
+        } finally {
+            limit.release("getMembershipOfGroup", started, failed);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addMemberToSite(final String site, final String user, final RoleType role) throws AlfrescoException {
+        long started = acquire();
+        boolean failed = true;
+        try {
+            super.addMemberToSite(site, user, role);
+            failed = false;
+        } finally {
+            limit.release("addMemberToSite", started, failed);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeMemberFromSite(final String site, final String user) throws AlfrescoException {
+        long started = acquire();
+        boolean failed = true;
+        try {
+            super.removeMemberFromSite(site, user);
+            failed = false;
+        } finally {
+            limit.release("removeMemberFromSite", started, failed);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeMemberFromSiteIfPresent(final String site, final String user) throws AlfrescoException {
+        long started = acquire();
+        boolean failed = true;
+        try {
+            super.removeMemberFromSiteIfPresent(site, user);
+            failed = false;
+        } finally {
+            limit.release("removeMemberFromSiteIfPresent", started, failed);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addMemberToGroup(final String user, final String group) throws AlfrescoException {
+        long started = acquire();
+        boolean failed = true;
+        try {
+            super.addMemberToGroup(user, group);
+            failed = false;
+        } finally {
+            limit.release("addMemberToGroup", started, failed);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeMemberFromGroupIfPresent(final String user, final String group) throws AlfrescoException {
+        long started = acquire();
+        boolean failed = true;
+        try {
+            super.removeMemberFromGroupIfPresent(user, group);
+            failed = false;
+        } finally {
+            limit.release("removeMemberFromGroupIfPresent", started, failed);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void updateRmConstraint(final String constraint, final String group, final Collection<String> members) throws AlfrescoException {
+        long started = acquire();
+        boolean failed = true;
+        try {
+            super.updateRmConstraint(constraint, group, members);
+            failed = false;
+        } finally {
+            limit.release("updateRmConstraint", started, failed);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void updateProfile(final String user, final JSONObject fields) throws AlfrescoException {
+        long started = acquire();
+        boolean failed = true;
+        try {
+            super.updateProfile(user, fields);
+            failed = false;
+        } finally {
+            limit.release("updateProfile", started, failed);
+        }
+    }
+
+    /**
+     * Wait until the limit allows another call.
+     * @return When the call started, to pass to the limit's release()
+     * @throws AlfrescoException If interrupted while waiting
+     */
+    private long acquire() throws AlfrescoException {
+        try {
+            return limit.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AlfrescoException("Interrupted waiting to call Alfresco", e);
+        }
+    }
+}
@@ -21,55 +21,146 @@
 */
 package com.surevine.ldap2alfresco;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import javax.naming.CommunicationException;
 import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
 import javax.naming.directory.DirContext;
-import javax.naming.directory.InitialDirContext;
+import javax.naming.ldap.LdapContext;
+
+import com.surevine.alfresco.PropertyException;
 import com.surevine.alfresco.PropertyWrapper;
 
 /**
  * A version of LdapConnector designed for longer-lived, which is to say non-batch, processing.
- * Instead of reusing the same connection to LDAP, this class re-establishes a new connection
- * every time it is called for.
+ * Instead of reusing the same connection to LDAP, this class borrows a connection from a
+ * bounded pool every time it is called for, and gives it back afterwards.
  * 
- * This is slower, but much more fault tolerant in an environment where an instance of this class might
- * survive for days at a time
+ * Pooled connections are checked before they are reused, closed after sitting idle for
+ * ldap.pool.idle.timeout seconds and recycled after ldap.pool.max.lifetime seconds, so this
+ * remains fault tolerant in an environment where an instance of this class might survive
+ * for days at a time, without paying for a new connection and bind on every call.  A
+ * connection which fails with a communication error while borrowed is closed when it is
+ * given back, rather than returned to the pool.
+ * 
+ * Because no connection is ever shared between operations in progress, an instance of
+ * this class is safe for use by many threads at once; it is the connector to use when
+ * synchronising from several threads or serving other callers concurrently.  No
+ * operation holds more than one connection at once, so the pool needs one connection
+ * per thread using the connector, as long as handlers passed to the forEach methods
+ * don't call the connector themselves.
  * @author simonw
  *
  */
 public class LongLivedLdapConnector extends LdapConnector {
+
+	/**
+	 * Default maximum number of pooled connections.
+	 */
+	private static final int DEFAULT_POOL_SIZE = 8;
+
+	/**
+	 * Default time to wait for a pooled connection, in seconds.
+	 */
+	private static final int DEFAULT_WAIT_TIMEOUT = 30;
+
+	/**
+	 * Default time a pooled connection may sit idle, in seconds.
+	 */
+	private static final int DEFAULT_IDLE_TIMEOUT = 300;
+
+	/**
+	 * Default time a pooled connection may be used for, in seconds.
+	 */
+	private static final int DEFAULT_MAX_LIFETIME = 3600;
+
+	/**
+	 * Number of milliseconds in a second.
+	 */
+	private static final long MILLISECONDS = 1000L;
+
+	/**
+	 * Pool of connections to LDAP.
+	 */
+	private final LdapContextPool pool;
+
+	/**
+	 * Borrowed contexts whose connection has been lost, which are closed
+	 * rather than given back to the pool.
+	 */
+	private final Set<DirContext> failed = Collections.synchronizedSet(
+			Collections.newSetFromMap(new IdentityHashMap<DirContext, Boolean>()));
 	
 	public LongLivedLdapConnector(final PropertyWrapper properties) throws LdapException {
+		this(properties, 1);
+	}
+
+	/**
+	 * @param properties The application properties
+	 * @param minPoolSize Fewest connections the pool may allow, e.g. one for each
+	 *            thread which will use the connector, which overrides a smaller
+	 *            ldap.pool.size
+	 * @throws LdapException If the properties are invalid
+	 */
+	public LongLivedLdapConnector(final PropertyWrapper properties, final int minPoolSize) throws LdapException {
 		super(properties);
+
+		try {
+			pool = new LdapContextPool(ldapEnv,
+					Math.max(minPoolSize, PropertyUtils.getInt(properties, "ldap.pool.size", DEFAULT_POOL_SIZE)),
+					PropertyUtils.getInt(properties, "ldap.pool.wait.timeout", DEFAULT_WAIT_TIMEOUT) * MILLISECONDS,
+					PropertyUtils.getInt(properties, "ldap.pool.idle.timeout", DEFAULT_IDLE_TIMEOUT) * MILLISECONDS,
+					PropertyUtils.getInt(properties, "ldap.pool.max.lifetime", DEFAULT_MAX_LIFETIME) * MILLISECONDS,
+					PropertyUtils.getBoolean(properties, "ldap.pool.validate", true));
+		} catch (PropertyException e) {
+			throw new LdapException("Cannot read LDAP connection pool settings", e);
+		}
 	}
 	
 	@Override
-    protected DirContext getDirectoryContext() throws LdapException
+    protected LdapContext getDirectoryContext() throws LdapException
     {
-   		// obtain initial directory context using the environment
-   		try 
-   		{
-    		return new InitialDirContext(ldapEnv);
-    	} 
-   		catch (NamingException e)
-    	{
-    		throw new LdapException("Cannot connect to LDAP server", e);
-    	}
+		return pool.borrow();
     }
 	
 	@Override
 	protected void releaseContext(DirContext ctx)
 	{
-		if (ctx!=null)
+		if (ctx instanceof LdapContext)
 		{
-			try 
+			if (failed.remove(ctx))
 			{
-				ctx.close();
+				pool.invalidate((LdapContext) ctx);
 			}
-			catch (Exception e)
+			else
 			{
-				//If we get a problem closing the connection there's nothing we can do, so silently ignore
+				pool.release((LdapContext) ctx);
 			}
 		}
 	}
-	
+
+	/**
+	 * Mark a borrowed context whose connection has been lost, so that
+	 * releaseContext() closes it.
+	 */
+	@Override
+	protected void contextFailed(final DirContext ctx, final NamingException e)
+	{
+		if (ctx != null && (e instanceof CommunicationException || e instanceof ServiceUnavailableException))
+		{
+			failed.add(ctx);
+		}
+	}
+
+	/**
+	 * Close all pooled connections.
+	 */
+	@Override
+	public void close()
+	{
+		pool.close();
+	}
 }
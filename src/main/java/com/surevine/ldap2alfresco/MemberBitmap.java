@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An immutable set of small non-negative integers, such as the IDs of the
+ * members of a group.  Each set is held in whichever of two encodings is
+ * smaller: a sorted array of IDs for sparse sets, or one bit per possible ID
+ * for dense ones.  Either way it takes a few bytes per member rather than
+ * the hundred or so of a HashSet entry.
+ */
+final class MemberBitmap {
+
+    /**
+     * The empty set.
+     */
+    static final MemberBitmap EMPTY = new MemberBitmap(new int[0], null, 0);
+
+    /**
+     * Encoding tag for a sorted array of IDs.
+     */
+    private static final byte SPARSE = 0;
+
+    /**
+     * Encoding tag for one bit per ID.
+     */
+    private static final byte DENSE = 1;
+
+    /**
+     * Number of bits in a word of the dense encoding.
+     */
+    private static final int WORD_BITS = 64;
+
+    /**
+     * The IDs in ascending order, or null if the set is dense.
+     */
+    private final int[] ids;
+
+    /**
+     * One bit per ID, or null if the set is sparse.
+     */
+    private final long[] words;
+
+    /**
+     * Number of IDs in the set.
+     */
+    private final int cardinality;
+
+    /**
+     * @param ids The IDs in ascending order, or null
+     * @param words One bit per ID, or null
+     * @param cardinality Number of IDs in the set
+     */
+    private MemberBitmap(final int[] ids, final long[] words, final int cardinality) {
+        this.ids = ids;
+        this.words = words;
+        this.cardinality = cardinality;
+    }
+
+    /**
+     * @param values IDs, in any order and possibly repeated
+     * @param count Number of entries of values to use
+     * @return Set of the IDs
+     */
+    static MemberBitmap of(final int[] values, final int count) {
+        int[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+
+        int unique = 0;
+
+        for (int x = 0; x < count; x++) {
+            if (unique == 0 || sorted[unique - 1] != sorted[x]) {
+                sorted[unique++] = sorted[x];
+            }
+        }
+
+        return fromSorted(sorted, unique);
+    }
+
+    /**
+     * @param id An ID
+     * @return True if the ID is in the set
+     */
+    boolean contains(final int id) {
+        if (id < 0) {
+            return false;
+        }
+
+        if (words != null) {
+            int word = id / WORD_BITS;
+            return word < words.length && (words[word] & (1L << (id % WORD_BITS))) != 0;
+        }
+
+        return Arrays.binarySearch(ids, id) >= 0;
+    }
+
+    /**
+     * @return Number of IDs in the set
+     */
+    int cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * @return The IDs in ascending order
+     */
+    int[] toArray() {
+        if (ids != null) {
+            return ids.clone();
+        }
+
+        int[] result = new int[cardinality];
+        int count = 0;
+
+        for (int word = 0; word < words.length; word++) {
+            long bits = words[word];
+
+            while (bits != 0) {
+                result[count++] = word * WORD_BITS + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @param other Another set
+     * @return The IDs in this set but not the other
+     */
+    MemberBitmap andNot(final MemberBitmap other) {
+        if (words != null && other.words != null) {
+            long[] result = new long[words.length];
+
+            for (int x = 0; x < words.length; x++) {
+                result[x] = x < other.words.length ? words[x] & ~other.words[x] : words[x];
+            }
+
+            return fromWords(result);
+        }
+
+        int[] mine = toArray();
+        int count = 0;
+
+        for (int x = 0; x < mine.length; x++) {
+            if (!other.contains(mine[x])) {
+                mine[count++] = mine[x];
+            }
+        }
+
+        return fromSorted(mine, count);
+    }
+
+    /**
+     * @param other Another set
+     * @return The IDs in both sets
+     */
+    MemberBitmap and(final MemberBitmap other) {
+        if (words != null && other.words != null) {
+            long[] result = new long[Math.min(words.length, other.words.length)];
+
+            for (int x = 0; x < result.length; x++) {
+                result[x] = words[x] & other.words[x];
+            }
+
+            return fromWords(result);
+        }
+
+        int[] mine = toArray();
+        int count = 0;
+
+        for (int x = 0; x < mine.length; x++) {
+            if (other.contains(mine[x])) {
+                mine[count++] = mine[x];
+            }
+        }
+
+        return fromSorted(mine, count);
+    }
+
+    /**
+     * @param other Another set
+     * @return The IDs in either set
+     */
+    MemberBitmap or(final MemberBitmap other) {
+        if (words != null && other.words != null) {
+            long[] result = Arrays.copyOf(words, Math.max(words.length, other.words.length));
+
+            for (int x = 0; x < other.words.length; x++) {
+                result[x] |= other.words[x];
+            }
+
+            return fromWords(result);
+        }
+
+        // merge the two sorted lists
+        int[] mine = toArray();
+        int[] theirs = other.toArray();
+        int[] result = new int[mine.length + theirs.length];
+        int x = 0;
+        int y = 0;
+        int count = 0;
+
+        while (x < mine.length || y < theirs.length) {
+            if (y == theirs.length || (x < mine.length && mine[x] < theirs[y])) {
+                result[count++] = mine[x++];
+            } else if (x == mine.length || theirs[y] < mine[x]) {
+                result[count++] = theirs[y++];
+            } else {
+                result[count++] = mine[x++];
+                y++;
+            }
+        }
+
+        return fromSorted(result, count);
+    }
+
+    /**
+     * Write the set in the form read by readFrom().
+     * @param out Where to write it
+     * @throws IOException On any error writing
+     */
+    void writeTo(final DataOutput out) throws IOException {
+        if (words != null) {
+            out.writeByte(DENSE);
+            out.writeInt(words.length);
+
+            for (int x = 0; x < words.length; x++) {
+                out.writeLong(words[x]);
+            }
+        } else {
+            out.writeByte(SPARSE);
+            out.writeInt(ids.length);
+
+            for (int x = 0; x < ids.length; x++) {
+                out.writeInt(ids[x]);
+            }
+        }
+    }
+
+    /**
+     * Read a set written by writeTo().
+     * @param in Buffer positioned at the start of the set, which is left
+     * positioned after it
+     * @return The set
+     * @throws IOException If the data is not a valid set
+     */
+    static MemberBitmap readFrom(final ByteBuffer in) throws IOException {
+        byte encoding = in.get();
+        int length = readLength(in, encoding);
+
+        if (encoding == DENSE) {
+            long[] data = new long[length];
+            in.asLongBuffer().get(data);
+            in.position(in.position() + length * 8);
+            return fromWords(data);
+        } else if (encoding == SPARSE) {
+            int[] data = new int[length];
+            in.asIntBuffer().get(data);
+            in.position(in.position() + length * 4);
+            return fromSorted(data, length);
+        }
+
+        throw new IOException("Invalid member bitmap encoding " + encoding);
+    }
+
+    /**
+     * Skip over a set written by writeTo() without decoding it.
+     * @param in Buffer positioned at the start of the set, which is left
+     * positioned after it
+     * @throws IOException If the data is not a valid set
+     */
+    static void skip(final ByteBuffer in) throws IOException {
+        byte encoding = in.get();
+        int length = readLength(in, encoding);
+
+        in.position(in.position() + length * (encoding == DENSE ? 8 : 4));
+    }
+
+    /**
+     * @param in Buffer positioned at the length of a set
+     * @param encoding The encoding of the set
+     * @return Number of words or IDs in the set
+     * @throws IOException If the length is invalid or the data is truncated
+     */
+    private static int readLength(final ByteBuffer in, final byte encoding) throws IOException {
+        if (encoding != DENSE && encoding != SPARSE) {
+            throw new IOException("Invalid member bitmap encoding " + encoding);
+        }
+
+        int length = in.getInt();
+        int size = encoding == DENSE ? 8 : 4;
+
+        if (length < 0 || length > in.remaining() / size) {
+            throw new IOException("Invalid member bitmap length " + length);
+        }
+
+        return length;
+    }
+
+    /**
+     * @param sorted Unique IDs in ascending order
+     * @param count Number of entries of sorted to use
+     * @return Set of the IDs, in the smaller encoding
+     */
+    private static MemberBitmap fromSorted(final int[] sorted, final int count) {
+        if (count == 0) {
+            return EMPTY;
+        }
+
+        int wordCount = sorted[count - 1] / WORD_BITS + 1;
+
+        // a word holds 64 IDs in the space of two array entries
+        if (wordCount * 2 < count) {
+            long[] data = new long[wordCount];
+
+            for (int x = 0; x < count; x++) {
+                data[sorted[x] / WORD_BITS] |= 1L << (sorted[x] % WORD_BITS);
+            }
+
+            return new MemberBitmap(null, data, count);
+        }
+
+        return new MemberBitmap(sorted.length == count ? sorted : Arrays.copyOf(sorted, count), null, count);
+    }
+
+    /**
+     * @param data One bit per ID
+     * @return Set of the IDs, in the smaller encoding
+     */
+    private static MemberBitmap fromWords(final long[] data) {
+        int count = 0;
+        int last = -1;
+
+        for (int x = 0; x < data.length; x++) {
+            if (data[x] != 0) {
+                count += Long.bitCount(data[x]);
+                last = x;
+            }
+        }
+
+        if (count == 0) {
+            return EMPTY;
+        }
+
+        long[] trimmed = last + 1 == data.length ? data : Arrays.copyOf(data, last + 1);
+
+        if (trimmed.length * 2 < count) {
+            return new MemberBitmap(null, trimmed, count);
+        }
+
+        return new MemberBitmap(null, trimmed, count).toSparse();
+    }
+
+    /**
+     * @return The same set in the sparse encoding
+     */
+    private MemberBitmap toSparse() {
+        return new MemberBitmap(toArray(), null, cardinality);
+    }
+}
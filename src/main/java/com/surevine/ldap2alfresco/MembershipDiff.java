@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.surevine.alfresco.AlfrescoConnector;
+
+/**
+ * The differences between the members a group should have, according to
+ * LDAP, and the members it has now, according to Alfresco or a snapshot of
+ * it.  Where members have roles, members who are in both but whose role
+ * should change are picked out as well.
+ *
+ * The differences are worked out with bitmap operations over member IDs,
+ * so they take time in proportion to the number of members rather than to
+ * the product of the sizes of the two memberships.
+ */
+class MembershipDiff {
+
+    /**
+     * Members to add.
+     */
+    private final MemberBitmap added;
+
+    /**
+     * Members to remove.
+     */
+    private final MemberBitmap removed;
+
+    /**
+     * Members who stay, but whose role should change.
+     */
+    private final MemberBitmap roleChanged;
+
+    /**
+     * Members who should be managers.
+     */
+    private final MemberBitmap managers;
+
+    /**
+     * Compare memberships without roles.
+     * @param desired Members the group should have
+     * @param current Members the group has now
+     */
+    MembershipDiff(final MemberBitmap desired, final MemberBitmap current) {
+        this(desired, current, null, null);
+    }
+
+    /**
+     * Compare memberships where some members are managers.
+     * @param desired Members the group should have
+     * @param current Members the group has now
+     * @param managers Users who should be managers of the groups they are in, or null if there are no roles
+     * @param currentManagers Users who are managers of the groups they are in now, or null if not known, in
+     *     which case every member who stays is treated as needing their role set
+     */
+    MembershipDiff(final MemberBitmap desired, final MemberBitmap current,
+            final MemberBitmap managers, final MemberBitmap currentManagers) {
+        added = desired.andNot(current);
+        removed = current.andNot(desired);
+        this.managers = managers;
+
+        MemberBitmap retained = desired.and(current);
+
+        if (managers == null) {
+            roleChanged = MemberBitmap.EMPTY;
+        } else if (currentManagers == null) {
+            roleChanged = retained;
+        } else {
+            // members who stay and have gained or lost the manager role
+            MemberBitmap flipped = managers.andNot(currentManagers).or(currentManagers.andNot(managers));
+            roleChanged = retained.and(flipped);
+        }
+    }
+
+    /**
+     * @return Members to add
+     */
+    MemberBitmap getAdded() {
+        return added;
+    }
+
+    /**
+     * @return Members to remove
+     */
+    MemberBitmap getRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return Members who stay, but whose role should change
+     */
+    MemberBitmap getRoleChanged() {
+        return roleChanged;
+    }
+
+    /**
+     * @return True if nothing needs to change
+     */
+    boolean isEmpty() {
+        return added.cardinality() == 0 && removed.cardinality() == 0 && roleChanged.cardinality() == 0;
+    }
+
+    /**
+     * The members to add, and those whose role should change, each with the
+     * role they should have, in order of ID.
+     * @param store To turn member IDs into usernames
+     * @param memberRole Role of members who aren't managers
+     * @param managerRole Role of managers
+     * @return Username to role
+     */
+    Map<String, AlfrescoConnector.RoleType> getAdditions(final MembershipStore store,
+            final AlfrescoConnector.RoleType memberRole, final AlfrescoConnector.RoleType managerRole) {
+        MemberBitmap users = added.or(roleChanged);
+        int[] ids = users.toArray();
+        Iterator<String> names = store.toNames(users).iterator();
+
+        Map<String, AlfrescoConnector.RoleType> additions = new LinkedHashMap<String, AlfrescoConnector.RoleType>();
+
+        for (int x = 0; x < ids.length; x++) {
+            boolean manager = managers != null && managers.contains(ids[x]);
+            additions.put(names.next(), manager ? managerRole : memberRole);
+        }
+
+        return additions;
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Group memberships held compactly: each username is given a dense integer
+ * ID, and each group is held as a MemberBitmap of its members' IDs, so
+ * working out who has been added to or removed from a group is a bitmap
+ * operation rather than a comparison of string sets.
+ * 
+ * The store can be written to a file and read back from a memory-mapped
+ * copy of it.  Groups read from a file stay in the mapped file until they
+ * are first used, so a large store costs little until it's needed.  Only
+ * the usernames still in a group are written, so reading the file back is
+ * also how the store drops IDs it no longer needs.  All methods are
+ * synchronised so the store can be shared between threads.
+ */
+class MembershipStore {
+
+    /**
+     * Character set used for names in the file.
+     */
+    private static final String CHARSET = "UTF-8";
+
+    /**
+     * ID of each username.
+     */
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+    /**
+     * Username of each ID.
+     */
+    private final List<String> names = new ArrayList<String>();
+
+    /**
+     * Members of each group which has been used or changed.
+     */
+    private final Map<String, MemberBitmap> groups = new HashMap<String, MemberBitmap>();
+
+    /**
+     * Encoded members of each group still in the mapped file.
+     */
+    private final Map<String, ByteBuffer> mappedGroups = new HashMap<String, ByteBuffer>();
+
+    /**
+     * @param username A username
+     * @return Its ID, which is allocated if it hasn't been seen before
+     */
+    synchronized int getId(final String username) {
+        Integer id = ids.get(username);
+
+        if (id == null) {
+            id = Integer.valueOf(names.size());
+            ids.put(username, id);
+            names.add(username);
+        }
+
+        return id.intValue();
+    }
+
+    /**
+     * @param usernames Some usernames
+     * @return Set of their IDs
+     */
+    synchronized MemberBitmap toBitmap(final Collection<String> usernames) {
+        int[] values = new int[usernames.size()];
+        int count = 0;
+
+        Iterator<String> iter = usernames.iterator();
+
+        while (iter.hasNext()) {
+            values[count++] = getId(iter.next());
+        }
+
+        return MemberBitmap.of(values, count);
+    }
+
+    /**
+     * @param members Set of IDs
+     * @return The usernames with those IDs
+     */
+    synchronized Collection<String> toNames(final MemberBitmap members) {
+        int[] values = members.toArray();
+        Collection<String> result = new ArrayList<String>(values.length);
+
+        for (int x = 0; x < values.length; x++) {
+            result.add(names.get(values[x]));
+        }
+
+        return result;
+    }
+
+    /**
+     * @param group Name of a group
+     * @return Its members, or null if the group isn't in the store
+     * @throws IOException If the group can't be read from the mapped file
+     */
+    synchronized MemberBitmap getGroup(final String group) throws IOException {
+        MemberBitmap members = groups.get(group);
+
+        if (members == null) {
+            ByteBuffer mapped = mappedGroups.remove(group);
+
+            if (mapped != null) {
+                members = readBitmap(mapped.duplicate());
+                groups.put(group, members);
+            }
+        }
+
+        return members;
+    }
+
+    /**
+     * @param group Name of a group
+     * @param members Its members
+     */
+    synchronized void putGroup(final String group, final MemberBitmap members) {
+        mappedGroups.remove(group);
+        groups.put(group, members);
+    }
+
+    /**
+     * @param group Name of a group to forget
+     */
+    synchronized void removeGroup(final String group) {
+        mappedGroups.remove(group);
+        groups.remove(group);
+    }
+
+    /**
+     * Forget every group, keeping the IDs of the usernames.
+     */
+    synchronized void clearGroups() {
+        mappedGroups.clear();
+        groups.clear();
+    }
+
+    /**
+     * @return Number of groups in the store
+     */
+    synchronized int getGroupCount() {
+        return groups.size() + mappedGroups.size();
+    }
+
+    /**
+     * @return Number of usernames with IDs
+     */
+    synchronized int getUserCount() {
+        return names.size();
+    }
+
+    /**
+     * Write the store in the form read by readFrom(), compacted so that only
+     * the usernames in at least one group are kept.  Since getId() only ever
+     * allocates IDs, the names of users who have left every group would
+     * otherwise be carried from one file to the next forever.  The IDs are
+     * renumbered in the file, in the same order, but not in the store
+     * itself, so bitmaps already handed out stay valid.
+     * @param out Where to write it
+     * @throws IOException On any error writing, or if a group can't be read
+     * from the mapped file
+     */
+    synchronized void writeTo(final DataOutput out) throws IOException {
+        // the new ID of each username in a group, or -1 to drop it
+        int[] remap = new int[names.size()];
+        Arrays.fill(remap, -1);
+
+        Iterator<String> groupIter = getGroupNames().iterator();
+
+        while (groupIter.hasNext()) {
+            int[] values = readGroup(groupIter.next()).toArray();
+
+            for (int x = 0; x < values.length; x++) {
+                remap[values[x]] = 0;
+            }
+        }
+
+        int kept = 0;
+
+        for (int x = 0; x < remap.length; x++) {
+            if (remap[x] == 0) {
+                remap[x] = kept++;
+            }
+        }
+
+        out.writeInt(kept);
+
+        for (int x = 0; x < remap.length; x++) {
+            if (remap[x] >= 0) {
+                writeString(out, names.get(x));
+            }
+        }
+
+        out.writeInt(getGroupCount());
+
+        // groups never read from the mapped file are decoded to renumber
+        // them, but left in the mapped file
+        groupIter = getGroupNames().iterator();
+
+        while (groupIter.hasNext()) {
+            String group = groupIter.next();
+            int[] values = readGroup(group).toArray();
+
+            for (int x = 0; x < values.length; x++) {
+                values[x] = remap[values[x]];
+            }
+
+            writeString(out, group);
+            MemberBitmap.of(values, values.length).writeTo(out);
+        }
+    }
+
+    /**
+     * @return Names of the groups in the store, whether used or still in the
+     * mapped file
+     */
+    private Collection<String> getGroupNames() {
+        Collection<String> result = new ArrayList<String>(getGroupCount());
+        result.addAll(groups.keySet());
+        result.addAll(mappedGroups.keySet());
+        return result;
+    }
+
+    /**
+     * @param group Name of a group in the store
+     * @return Its members, read from the mapped file without keeping them
+     * if the group hasn't been used
+     * @throws IOException If the group can't be read from the mapped file
+     */
+    private MemberBitmap readGroup(final String group) throws IOException {
+        MemberBitmap members = groups.get(group);
+
+        if (members == null) {
+            members = readBitmap(mappedGroups.get(group).duplicate());
+        }
+
+        return members;
+    }
+
+    /**
+     * Replace the contents of the store with a store written by writeTo().
+     * The usernames are read straight away, but each group is left in the
+     * buffer until it is first used, so the buffer must not change
+     * afterwards.  Since the IDs change, this must only be used before the
+     * store is shared.
+     * @param in Buffer positioned at the start of the store, typically a
+     * memory-mapped file
+     * @throws IOException If the data is not a valid store, in which case the
+     * store is left empty
+     */
+    synchronized void readFrom(final ByteBuffer in) throws IOException {
+        ids.clear();
+        names.clear();
+        clearGroups();
+
+        try {
+            int nameCount = readCount(in);
+
+            for (int x = 0; x < nameCount; x++) {
+                String name = readString(in);
+                ids.put(name, Integer.valueOf(x));
+                names.add(name);
+            }
+
+            int groupCount = readCount(in);
+
+            for (int x = 0; x < groupCount; x++) {
+                String group = readString(in);
+
+                // note where the group's bitmap is, and skip over it
+                int start = skipBitmap(in);
+                ByteBuffer data = in.duplicate();
+                data.position(start);
+                data.limit(in.position());
+
+                mappedGroups.put(group, data.slice());
+            }
+        } catch (IOException e) {
+            ids.clear();
+            names.clear();
+            clearGroups();
+            throw e;
+        }
+    }
+
+    /**
+     * Skip over a bitmap.
+     * @param in Buffer positioned at the start of a bitmap
+     * @return Position of the start of the bitmap
+     * @throws IOException If the data is not a valid bitmap
+     */
+    private static int skipBitmap(final ByteBuffer in) throws IOException {
+        int start = in.position();
+
+        try {
+            MemberBitmap.skip(in);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated membership store");
+        }
+
+        return start;
+    }
+
+    /**
+     * @param in Buffer positioned at the start of a bitmap
+     * @return The bitmap, checked against the usernames
+     * @throws IOException If the data is not a valid bitmap
+     */
+    private MemberBitmap readBitmap(final ByteBuffer in) throws IOException {
+        MemberBitmap members;
+
+        try {
+            members = MemberBitmap.readFrom(in);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated membership store");
+        }
+
+        int[] values = members.toArray();
+
+        if (values.length > 0 && (values[0] < 0 || values[values.length - 1] >= names.size())) {
+            throw new IOException("Membership store refers to unknown users");
+        }
+
+        return members;
+    }
+
+    /**
+     * @param in Buffer positioned at a count
+     * @return The count
+     * @throws IOException If the count is invalid
+     */
+    private static int readCount(final ByteBuffer in) throws IOException {
+        if (in.remaining() < 4) {
+            throw new IOException("Truncated membership store");
+        }
+
+        int count = in.getInt();
+
+        if (count < 0) {
+            throw new IOException("Invalid count in membership store: " + count);
+        }
+
+        return count;
+    }
+
+    /**
+     * @param out Where to write
+     * @param value String to write
+     * @throws IOException On any error writing
+     */
+    private static void writeString(final DataOutput out, final String value) throws IOException {
+        byte[] bytes = value.getBytes(CHARSET);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @param in Buffer positioned at a string written by writeString()
+     * @return The string
+     * @throws IOException If the string is invalid
+     */
+    private static String readString(final ByteBuffer in) throws IOException {
+        int length = readCount(in);
+
+        if (in.remaining() < length) {
+            throw new IOException("Truncated membership store");
+        }
+
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, CHARSET);
+    }
+}
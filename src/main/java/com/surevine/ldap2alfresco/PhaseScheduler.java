@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the phases of an update, each once all the phases it depends on
+ * have finished.  Phases that don't depend on each other can run at the same
+ * time, so a run takes about as long as its longest chain of phases rather
+ * than the sum of them all.  The time taken by each phase is logged.
+ * 
+ * If a phase fails, no more phases are started, the phases already running
+ * are allowed to finish and the first failure is thrown.
+ */
+class PhaseScheduler {
+
+    /**
+     * A phase of an update.
+     */
+    interface Phase {
+        /**
+         * Run the phase.
+         * @throws Exception On any failure, which stops the update
+         */
+        void run() throws Exception;
+    }
+
+    /**
+     * Logging instance.
+     */
+    private static final Logger LOGGER = Logger.getLogger(PhaseScheduler.class);
+
+    /**
+     * The phases, by name, in the order they were added.
+     */
+    private final Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+
+    /**
+     * Names of the phases each phase depends on.
+     */
+    private final Map<String, Collection<String>> dependencies = new HashMap<String, Collection<String>>();
+
+    /**
+     * Add a phase.  Phases must be added after the phases they depend on, so
+     * the order they are added in is always a valid order to run them in.
+     * @param name Name of the phase
+     * @param phase The phase
+     * @param dependsOn Names of the phases which must finish before it starts
+     */
+    void add(final String name, final Phase phase, final String... dependsOn) {
+        if (phases.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate phase: " + name);
+        }
+
+        Collection<String> deps = new ArrayList<String>(dependsOn.length);
+
+        for (int x = 0; x < dependsOn.length; x++) {
+            if (!phases.containsKey(dependsOn[x])) {
+                throw new IllegalArgumentException("Phase " + name + " depends on unknown phase " + dependsOn[x]);
+            }
+            deps.add(dependsOn[x]);
+        }
+
+        phases.put(name, phase);
+        dependencies.put(name, deps);
+    }
+
+    /**
+     * Run all the phases.
+     * @param threads Number of phases to run at once; 1 runs them one
+     * after another on this thread, in the order they were added
+     * @throws ExecutionException Wrapping the first failure of any phase
+     * @throws InterruptedException If interrupted while waiting for a phase
+     */
+    void run(final int threads) throws ExecutionException, InterruptedException {
+        long start = System.currentTimeMillis();
+
+        if (threads <= 1) {
+            Iterator<String> iter = phases.keySet().iterator();
+
+            while (iter.hasNext()) {
+                try {
+                    timed(iter.next()).call();
+                } catch (Exception e) {
+                    throw new ExecutionException(e);
+                }
+            }
+        } else {
+            runConcurrently(threads);
+        }
+
+        LOGGER.info("All phases took " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Run the phases on a pool of threads, starting each as soon as its
+     * dependencies have finished.
+     * @param threads Number of phases to run at once
+     * @throws ExecutionException Wrapping the first failure of any phase
+     * @throws InterruptedException If interrupted while waiting for a phase
+     */
+    private void runConcurrently(final int threads) throws ExecutionException, InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        CompletionService<String> completion = new ExecutorCompletionService<String>(workers);
+
+        List<String> waiting = new ArrayList<String>(phases.keySet());
+        Collection<String> finished = new HashSet<String>();
+        Collection<Future<String>> running = new ArrayList<Future<String>>();
+        ExecutionException failure = null;
+
+        try {
+            while (true) {
+                // start every phase whose dependencies have all finished
+                if (failure == null) {
+                    Iterator<String> iter = waiting.iterator();
+
+                    while (iter.hasNext()) {
+                        String name = iter.next();
+
+                        if (finished.containsAll(dependencies.get(name))) {
+                            running.add(completion.submit(timed(name)));
+                            iter.remove();
+                        }
+                    }
+                }
+
+                if (running.isEmpty()) {
+                    break;
+                }
+
+                Future<String> done = completion.take();
+                running.remove(done);
+
+                try {
+                    finished.add(done.get());
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @param name Name of a phase
+     * @return Task to run the phase and log how long it took, which
+     * returns the name of the phase
+     */
+    private Callable<String> timed(final String name) {
+        final Phase phase = phases.get(name);
+
+        return new Callable<String>() {
+            public String call() throws Exception {
+                long start = System.currentTimeMillis();
+
+                try {
+                    phase.run();
+                } finally {
+                    LOGGER.info("Phase " + name + " took " + (System.currentTimeMillis() - start) + " ms");
+                }
+
+                return name;
+            }
+        };
+    }
+}
@@ -46,4 +46,11 @@ public interface ProfileFieldConverter {
      * @param attributes Collection of attributes
      */
     public void toJson(JSONObject json, final Attributes attributes);
+
+    /**
+     * Name of the LDAP attribute this field is read from, so that
+     * searches need only return the attributes which are synchronised.
+     * @return The attribute name
+     */
+    public String getAttributeName();
 }
@@ -80,6 +80,14 @@ public class ProfileFieldTextConverter implements ProfileFieldConverter {
         allowMultiples = multiples;
     }
 
+    /**
+     * Name of the LDAP attribute this field is read from.
+     * @return The attribute name
+     */
+    public String getAttributeName() {
+        return attributeLabel;
+    }
+
     /**
      * Encode some attributes as Attributes.
      * @param json The JSON object to convert
@@ -23,9 +23,14 @@ package com.surevine.ldap2alfresco;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeSet;
 
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
@@ -34,6 +39,7 @@ import javax.naming.directory.BasicAttributes;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import com.surevine.alfresco.AlfrescoConnector;
@@ -51,6 +57,12 @@ public class ProfileUpdater {
      */
     private Collection<ProfileFieldConverter> profileFields;
 
+    /**
+     * Hashes of the profile fields last sent for each user, or null to send
+     * every profile.
+     */
+    private HashStore profileHashes;
+
     /**
      * Logging instance.
      */
@@ -66,6 +78,18 @@ public class ProfileUpdater {
         profileFields = getProfileFields(properties, "syncField");
     }
 
+    /**
+     * Construct a ProfileUpdater which doesn't send a user's profile fields
+     * to Alfresco again unless they have changed.
+     * @param properties Where to load the fields from
+     * @param profileHashes Hashes of the profile fields last sent for each user
+     * @throws PropertyException if profile fields are not defined correctly in the properties file
+     */
+    ProfileUpdater(final PropertyWrapper properties, final HashStore profileHashes) throws PropertyException {
+        this(properties);
+        this.profileHashes = profileHashes;
+    }
+
     /**
      * Update the profile fields into LDAP for a single user.
      * @param ldap To connect to LDAP
@@ -107,57 +131,264 @@ public class ProfileUpdater {
             final boolean allUsers,
             final String lastRun)
             throws LdapException, AlfrescoException {
+        updateFromLdapToAlfresco(ldap, alfresco, allUsers, lastRun, null);
+    }
+
+    /**
+     * Update Alfresco user profile fields from LDAP user attributes.  If any users
+     * cannot be updated they are logged and skipped.
+     * @param ldap To connect to LDAP
+     * @param alfresco To connect to Alfresco
+     * @param allUsers Set to true to update all records, not just records changed since the last run
+     * @param lastRun Timestamp of the last run (string representation as returned by LDAP server)
+     * @param journal Journal of the run, to skip users updated by the run being resumed, or null
+     * if not journalling
+     * @throws LdapException On any LDAP errors
+     * @throws AlfrescoException On any fatal Alfresco errors
+     */
+    public void updateFromLdapToAlfresco(
+            final LdapConnector ldap,
+            final AlfrescoConnector alfresco,
+            final boolean allUsers,
+            final String lastRun,
+            final RunJournal journal)
+            throws LdapException, AlfrescoException {
+
+        // stream the users a page at a time rather than loading them all,
+        // so that when the server honours ldap.page.size full runs over a
+        // large directory only hold one page of users at a time
+        final int[] count = {0};
+        final Collection<String> failedUsers = new ArrayList<String>();
+
+        LdapResultHandler<Attributes> handler = new LdapResultHandler<Attributes>() {
+            public void handle(final Attributes userAttributes) {
+                updateSingleUserToAlfresco(alfresco, userAttributes, journal, failedUsers);
+                count[0]++;
+            }
+        };
+
+        String[] attributeNames = getLdapAttributeNames();
+        long skippedBefore = profileHashes != null ? profileHashes.getSkipped() : 0;
+
+        try {
+            if (allUsers) {
+                ldap.forEachUser(attributeNames, handler);
+            } else {
+                ldap.forEachModifiedUser(lastRun, attributeNames, handler);
+            }
+        } finally {
+            saveProfileHashes();
+        }
 
-        // get groups
-        Collection<Attributes> users = null;
+        // the search holds an LDAP connection, so the users which failed are
+        // only marked for retry once it is over
+        recoverFromFailedUsers(ldap, failedUsers);
 
-        if (allUsers) {
-            users = ldap.getAllUsers();
+        if (profileHashes != null) {
+            LOGGER.info("Synchronised " + count[0] + " users, " + (profileHashes.getSkipped() - skippedBefore) + " unchanged");
         } else {
-            users = ldap.getModifiedUsers(lastRun);
+            LOGGER.info("Synchronised " + count[0] + " users");
         }
+    }
 
-        LOGGER.info("Found " + users.size() + " users to synchronise");
+    /**
+     * Update the Alfresco profile fields of some users from their LDAP
+     * attributes, e.g. as reported by the LDAP change feed.  If any users
+     * cannot be updated they are logged and skipped.
+     * @param ldap To connect to LDAP
+     * @param alfresco To connect to Alfresco
+     * @param users Attributes of the users, including those named by getLdapAttributeNames()
+     * @throws LdapException On any LDAP errors
+     */
+    public void updateUsers(
+            final LdapConnector ldap,
+            final AlfrescoConnector alfresco,
+            final Collection<Attributes> users)
+            throws LdapException {
 
-        Iterator<Attributes> userIter = users.iterator();
+        Collection<String> failedUsers = new ArrayList<String>();
+        Iterator<Attributes> iter = users.iterator();
 
-        while (userIter.hasNext()) {
-            // get the user
-            Attributes userAttributes = userIter.next();
+        try {
+            while (iter.hasNext()) {
+                updateSingleUserToAlfresco(alfresco, iter.next(), null, failedUsers);
+            }
+        } finally {
+            saveProfileHashes();
+        }
 
-            Attribute cn = userAttributes.get("cn");
+        recoverFromFailedUsers(ldap, failedUsers);
+    }
 
-            if (cn != null) {
-                String username;
+    /**
+     * Save the hashes of the profile fields sent, if they are kept.  They
+     * only ever describe what Alfresco has, so they are saved even if the
+     * update fails.
+     */
+    private void saveProfileHashes() {
+        if (profileHashes != null) {
+            profileHashes.save();
+        }
+    }
 
-                try {
-                    username = cn.get().toString();
-                } catch (NamingException e1) {
-                    username = null;
+    /**
+     * Names of the LDAP attributes read when synchronising profiles: the
+     * username plus the attribute behind each configured profile field.
+     * @return Attribute names
+     */
+    public String[] getLdapAttributeNames() {
+        Collection<String> names = new LinkedHashSet<String>();
+        names.add("cn");
+
+        Iterator<ProfileFieldConverter> fieldIter = profileFields.iterator();
+
+        while (fieldIter.hasNext()) {
+            names.add(fieldIter.next().getAttributeName());
+        }
+
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Update the Alfresco profile fields of a single user from their LDAP
+     * attributes.  If the user cannot be updated it is logged and skipped.
+     * @param alfresco To connect to Alfresco
+     * @param userAttributes The user's LDAP attributes
+     * @param journal Journal of the run, or null if not journalling
+     * @param failedUsers Receives the username if the user cannot be updated
+     */
+    private void updateSingleUserToAlfresco(
+            final AlfrescoConnector alfresco,
+            final Attributes userAttributes,
+            final RunJournal journal,
+            final Collection<String> failedUsers) {
+
+        Attribute cn = userAttributes.get("cn");
+
+        if (cn != null) {
+            String username;
+
+            try {
+                username = cn.get().toString();
+            } catch (NamingException e1) {
+                username = null;
+            }
+
+            // skip users updated by the run being resumed
+            if (username != null && journal != null && journal.isDone(RunJournal.USER, username)) {
+                username = null;
+            }
+
+            if (username != null) {
+                JSONObject fields = new JSONObject();
+
+                // encode each profile field in turn
+                Iterator<ProfileFieldConverter> fieldIter = profileFields.iterator();
+
+                while (fieldIter.hasNext()) {
+                    ProfileFieldConverter converter = fieldIter.next();
+                    converter.toJson(fields, userAttributes);
                 }
 
-                if (username != null) {
-                    LOGGER.info("Synchronising " + username);
+                // don't send the same profile fields again
+                long hash = 0;
 
-                    JSONObject fields = new JSONObject();
+                if (profileHashes != null) {
+                    hash = HashStore.hash(toCanonicalString(fields));
 
-                    // encode each profile field in turn
-                    Iterator<ProfileFieldConverter> fieldIter = profileFields.iterator();
+                    if (profileHashes.isUnchanged(username, hash)) {
+                        return;
+                    }
+                }
 
-                    while (fieldIter.hasNext()) {
-                        ProfileFieldConverter converter = fieldIter.next();
-                        converter.toJson(fields, userAttributes);
+                LOGGER.info("Synchronising " + username);
+
+                try {
+                    alfresco.updateProfile(username, fields);
+
+                    if (profileHashes != null) {
+                        profileHashes.put(username, hash);
                     }
 
-                    try {
-                        alfresco.updateProfile(username, fields);
-                    } catch (AlfrescoException e) {
-                        recoverFromExceptionUser(ldap, e, username);
+                    if (journal != null) {
+                        journal.done(RunJournal.USER, username);
+                    }
+                } catch (AlfrescoException e) {
+                    // Alfresco may have some of the new fields
+                    if (profileHashes != null) {
+                        profileHashes.remove(username);
                     }
+                    logException(Level.ERROR, e);
+                    failedUsers.add(username);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a JSON value in a canonical form for hashing, so that the same
+     * profile fields always have the same hash.  Object keys are sorted, as
+     * are the values of arrays, since LDAP returns the values of multi-valued
+     * attributes in no particular order.
+     * @param value A JSONObject, JSONArray or simple value
+     * @return The canonical form of the value
+     */
+    static String toCanonicalString(final Object value) {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            Collection<String> keys = new TreeSet<String>();
+            Iterator<?> objectKeyIter = object.keys();
+
+            while (objectKeyIter.hasNext()) {
+                keys.add(objectKeyIter.next().toString());
+            }
+
+            StringBuilder result = new StringBuilder("{");
+            Iterator<String> keyIter = keys.iterator();
+
+            while (keyIter.hasNext()) {
+                String key = keyIter.next();
+                result.append(JSONObject.quote(key)).append(':').append(toCanonicalString(object.opt(key)));
+
+                if (keyIter.hasNext()) {
+                    result.append(',');
+                }
+            }
+
+            return result.append('}').toString();
+        }
+
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            List<String> values = new ArrayList<String>(array.length());
+
+            for (int x = 0; x < array.length(); x++) {
+                values.add(toCanonicalString(array.opt(x)));
+            }
+
+            Collections.sort(values);
+
+            StringBuilder result = new StringBuilder("[");
+            Iterator<String> valueIter = values.iterator();
+
+            while (valueIter.hasNext()) {
+                result.append(valueIter.next());
+
+                if (valueIter.hasNext()) {
+                    result.append(',');
                 }
             }
+
+            return result.append(']').toString();
+        }
+
+        if (value instanceof String) {
+            return JSONObject.quote((String) value);
         }
+
+        return String.valueOf(value);
     }
+
     /**
      * Return a list of profile fields from the properties file.
      * @param properties Properties to look in
@@ -209,26 +440,26 @@ public class ProfileUpdater {
     }
 
     /**
-     * Attempt to recover from an exception by updating the timestamp of
-     * the user being processed so it gets processed next time.  If that
-     * fails then a new exception is thrown, which will cause processing
+     * Attempt to recover from failures by updating the timestamp of each
+     * user who could not be updated so they get processed next time.  If
+     * that fails then a new exception is thrown, which will cause processing
      * to be aborted, and the next run will identify the failure due to
      * the lock entry still being present and disallow an incremental
      * update.
      * @param ldap To connect to LDAP
-     * @param e The exception that caused the problem
-     * @param username The LDAP user being processed
-     * @throws LdapException If the LDAP user cannot be modified
+     * @param failedUsers The LDAP users who could not be updated
+     * @throws LdapException If an LDAP user cannot be modified
      */
-    private void recoverFromExceptionUser(
+    private void recoverFromFailedUsers(
             final LdapConnector ldap,
-            final Exception e,
-            final String username)
+            final Collection<String> failedUsers)
             throws LdapException {
-        logException(Level.ERROR, e);
+        Iterator<String> iter = failedUsers.iterator();
 
-        // mark user as modified so it gets tried again next time round
-        ldap.touchUser(username);
+        // mark users as modified so they get tried again next time round
+        while (iter.hasNext()) {
+            ldap.touchUser(iter.next());
+        }
     }
 
     /**
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import com.surevine.alfresco.PropertyException;
+import com.surevine.alfresco.PropertyWrapper;
+
+/**
+ * Helpers for reading optional settings from a PropertyWrapper, falling back
+ * to a default when the property is absent so that existing properties files
+ * keep working.
+ */
+final class PropertyUtils {
+
+    /**
+     * Not instantiable.
+     */
+    private PropertyUtils() {
+    }
+
+    /**
+     * Read an optional string property.
+     * @param properties Where to look
+     * @param key Name of the property
+     * @param defaultValue Value to return if the property is not set
+     * @return The trimmed property value, or the default
+     */
+    static String getString(final PropertyWrapper properties, final String key, final String defaultValue) {
+        try {
+            String value = properties.getProperty(key);
+
+            if (value != null && value.trim().length() > 0) {
+                return value.trim();
+            }
+        } catch (PropertyException e) {
+            // not set, so use the default
+        }
+
+        return defaultValue;
+    }
+
+    /**
+     * Read an optional integer property.
+     * @param properties Where to look
+     * @param key Name of the property
+     * @param defaultValue Value to return if the property is not set
+     * @return The property value, or the default
+     * @throws PropertyException If the property is set but is not an integer
+     */
+    static int getInt(final PropertyWrapper properties, final String key, final int defaultValue)
+            throws PropertyException {
+        String value = getString(properties, key, null);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new PropertyException("Property " + key + " must be an integer but was: " + value);
+        }
+    }
+
+    /**
+     * Read an optional boolean property ("true" or "yes" count as true).
+     * @param properties Where to look
+     * @param key Name of the property
+     * @param defaultValue Value to return if the property is not set
+     * @return The property value, or the default
+     */
+    static boolean getBoolean(final PropertyWrapper properties, final String key, final boolean defaultValue) {
+        String value = getString(properties, key, null);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        return value.equalsIgnoreCase("true") || value.equalsIgnoreCase("yes");
+    }
+}
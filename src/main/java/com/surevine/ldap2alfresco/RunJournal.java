@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A journal of the progress of an update, kept in a text file so that an
+ * update which doesn't complete can be resumed by the next run rather than
+ * started again from scratch.  The first line records how the update was
+ * started, and each following line records a phase, group or user which has
+ * been completed.  Users and deleters are flushed to the file in batches,
+ * so a few of them may be done again if the process stops, while phases and
+ * groups are flushed as soon as they are completed.
+ *
+ * If the journal can't be written it is deleted and journalling stops, so
+ * that the next run falls back to needing a full update.
+ */
+class RunJournal {
+
+    /**
+     * Kind of entry recording a completed phase of the update.
+     */
+    static final String PHASE = "phase";
+
+    /**
+     * Kind of entry recording a user whose profile has been updated.
+     */
+    static final String USER = "user";
+
+    /**
+     * Kind of entry recording a deleter who joined or left a site, so that a
+     * resumed update can still change their access to its deleted items.
+     */
+    static final String DELETER = "deleter";
+
+    /**
+     * Character set of the file.
+     */
+    private static final String CHARSET = "UTF-8";
+
+    /**
+     * Separates the fields of each line.
+     */
+    private static final char SEPARATOR = '\t';
+
+    /**
+     * Marks the first line of the file.
+     */
+    private static final String RUN = "run";
+
+    /**
+     * Maximum number of user and deleter entries written before the journal
+     * is flushed.
+     */
+    private static final int FLUSH_INTERVAL = 500;
+
+    /**
+     * Logging instance.
+     */
+    private static final Logger LOGGER = Logger.getLogger(RunJournal.class);
+
+    /**
+     * Where the journal is kept.
+     */
+    private final File file;
+
+    /**
+     * Entries recorded, as kind and name separated by SEPARATOR, in the
+     * order they were recorded.
+     */
+    private final Set<String> completed = new LinkedHashSet<String>();
+
+    /**
+     * Open journal, or null if not journalling.
+     */
+    private Writer out;
+
+    /**
+     * Number of entries written since the journal was last flushed.
+     */
+    private int unflushed;
+
+    /**
+     * Whether the update being resumed was a forced one.
+     */
+    private boolean force;
+
+    /**
+     * Timestamp of the run before the update being resumed, or null.
+     */
+    private String lastRun;
+
+    /**
+     * @param file Where the journal is kept
+     */
+    RunJournal(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return True if there is a journal left by an update which didn't complete
+     */
+    boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * Read the journal left by an update which didn't complete, and continue
+     * it.  Afterwards isForced() and getLastRun() describe how that update
+     * was started, and isDone() tells whether each part of it was completed.
+     * A partly written last line, left if the process stopped while writing
+     * it, is removed first.
+     * @return False if there is no journal, or it can't be read or continued
+     */
+    synchronized boolean resume() {
+        close();
+
+        BufferedReader in = null;
+
+        try {
+            removePartialLine();
+
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+
+            String line = in.readLine();
+
+            if (line == null || !line.startsWith(RUN + SEPARATOR)) {
+                LOGGER.warn("Ignoring unrecognised journal " + file);
+                return false;
+            }
+
+            String[] fields = line.split(String.valueOf(SEPARATOR), -1);
+            force = Boolean.parseBoolean(fields[1]);
+            lastRun = fields.length > 2 && fields[2].length() > 0 ? fields[2] : null;
+
+            while ((line = in.readLine()) != null) {
+                if (line.length() > 0) {
+                    completed.add(line);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read " + file, e);
+            return false;
+        } finally {
+            StateDirectory.close(in);
+        }
+
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), CHARSET));
+        } catch (IOException e) {
+            LOGGER.error("Cannot write " + file, e);
+            return false;
+        }
+
+        LOGGER.info("Resuming update with " + completed.size() + " parts already completed");
+
+        return true;
+    }
+
+    /**
+     * Start journalling a new update, discarding any older journal.
+     * @param forced Whether the update is a forced one
+     * @param timestamp Timestamp of the last run, or null
+     */
+    synchronized void begin(final boolean forced, final String timestamp) {
+        close();
+
+        force = forced;
+        lastRun = timestamp;
+
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), CHARSET));
+            out.write(RUN + SEPARATOR + forced + SEPARATOR + (timestamp == null ? "" : timestamp));
+            out.write('\n');
+            out.flush();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    /**
+     * @return Whether the update being journalled was started as a forced one
+     */
+    synchronized boolean isForced() {
+        return force;
+    }
+
+    /**
+     * @return Timestamp of the run before the update being journalled, or null
+     */
+    synchronized String getLastRun() {
+        return lastRun;
+    }
+
+    /**
+     * @param kind Kind of entry, e.g. PHASE or a group type
+     * @param name Name of the phase, group or user
+     * @return True if it was completed by the update being resumed
+     */
+    synchronized boolean isDone(final String kind, final String name) {
+        return completed.contains(kind + SEPARATOR + name);
+    }
+
+    /**
+     * Remove the entries already completed from a list.
+     * @param kind Kind of entry, e.g. PHASE or a group type
+     * @param names Names of the phases, groups or users
+     * @return The names which haven't been completed
+     */
+    synchronized Collection<String> getRemaining(final String kind, final Collection<String> names) {
+        if (completed.isEmpty()) {
+            return names;
+        }
+
+        Collection<String> remaining = new ArrayList<String>(names.size());
+        Iterator<String> iter = names.iterator();
+
+        while (iter.hasNext()) {
+            String name = iter.next();
+
+            if (!isDone(kind, name)) {
+                remaining.add(name);
+            }
+        }
+
+        return remaining;
+    }
+
+    /**
+     * @param kind Kind of entry, e.g. DELETER
+     * @return The names of the entries of that kind, in the order they were
+     *         recorded
+     */
+    synchronized List<String> getNames(final String kind) {
+        List<String> names = new ArrayList<String>();
+        String prefix = kind + SEPARATOR;
+        Iterator<String> iter = completed.iterator();
+
+        while (iter.hasNext()) {
+            String entry = iter.next();
+
+            if (entry.startsWith(prefix)) {
+                names.add(entry.substring(prefix.length()));
+            }
+        }
+
+        return names;
+    }
+
+    /**
+     * Record that a phase, group or user has been completed, or another
+     * entry such as a DELETER.  This does nothing if no update is being
+     * journalled.
+     * @param kind Kind of entry, e.g. PHASE or a group type
+     * @param name Name of the phase, group or user
+     */
+    synchronized void done(final String kind, final String name) {
+        if (out == null) {
+            return;
+        }
+
+        String entry = kind + SEPARATOR + name;
+
+        try {
+            out.write(entry);
+            out.write('\n');
+            completed.add(entry);
+
+            // the phases and groups are few and each is a lot of work, so
+            // they are flushed straight away
+            if ((!USER.equals(kind) && !DELETER.equals(kind)) || ++unflushed >= FLUSH_INTERVAL) {
+                out.flush();
+                unflushed = 0;
+            }
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    /**
+     * Remove a partly written last line from the journal.
+     * @throws FileNotFoundException If there is no journal
+     * @throws IOException If the journal can't be read or truncated
+     */
+    private void removePartialLine() throws IOException {
+        // opening the file to write would create it
+        if (!file.exists()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try {
+            long length = raf.length();
+
+            while (length > 0) {
+                raf.seek(length - 1);
+
+                if (raf.read() == '\n') {
+                    break;
+                }
+
+                length--;
+            }
+
+            if (length < raf.length()) {
+                LOGGER.warn("Ignoring partly written last line of " + file);
+                raf.setLength(length);
+            }
+        } finally {
+            StateDirectory.close(raf);
+        }
+    }
+
+    /**
+     * Stop journalling, leaving the journal in place to be resumed.
+     */
+    synchronized void close() {
+        StateDirectory.close(out);
+        out = null;
+        unflushed = 0;
+        completed.clear();
+    }
+
+    /**
+     * The update has completed, so delete the journal.
+     */
+    synchronized void finish() {
+        close();
+        file.delete();
+    }
+
+    /**
+     * Give up journalling after an error, deleting the journal so that a
+     * partial journal is never resumed.
+     * @param e The error
+     */
+    private void failed(final IOException e) {
+        LOGGER.error("Cannot write " + file + ", the update cannot be resumed if it fails", e);
+        finish();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Records in the run journal the sites whose changes have been made, and
+ * the deleters who joined or left them, so that a resumed update skips
+ * those sites but still changes the deleters' access to their deleted items.
+ * 
+ * Changes made straight away are journalled as soon as they succeed.
+ * Changes queued to be sent in batches are only journalled once they have
+ * been sent, and only for sites none of whose changes failed, as they may
+ * not have been made if the update doesn't complete.  All methods can be
+ * called from any thread.
+ */
+class SiteJournal {
+
+    /**
+     * The journal of the update.
+     */
+    private final RunJournal journal;
+
+    /**
+     * Gives the names of the deleters.
+     */
+    private final MembershipStore memberships;
+
+    /**
+     * Sites whose changes have been queued but not yet journalled.
+     */
+    private final Queue<QueuedSite> queued = new ConcurrentLinkedQueue<QueuedSite>();
+
+    /**
+     * Sites which a change sent in a batch failed to update.
+     */
+    private final Set<String> failed = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * @param journal The journal of the update
+     * @param memberships Gives the names of the deleters
+     */
+    SiteJournal(final RunJournal journal, final MembershipStore memberships) {
+        this.journal = journal;
+        this.memberships = memberships;
+    }
+
+    /**
+     * Journal a site whose changes have been made.  The deleters are
+     * journalled first, as a resumed update skips the site once it is done.
+     * @param site The site
+     * @param addedDeleters Deleters who joined the site
+     * @param removedDeleters Deleters who left the site
+     */
+    void done(final String site, final MemberBitmap addedDeleters, final MemberBitmap removedDeleters) {
+        journalDeleters(site, addedDeleters, '+');
+        journalDeleters(site, removedDeleters, '-');
+        journal.done(LdapConnector.GroupType.SITE.toString(), site);
+    }
+
+    /**
+     * Remember a site whose changes have been queued, to be journalled by
+     * sent().
+     * @param site The site
+     * @param addedDeleters Deleters joining the site
+     * @param removedDeleters Deleters leaving the site
+     */
+    void queued(final String site, final MemberBitmap addedDeleters, final MemberBitmap removedDeleters) {
+        queued.add(new QueuedSite(site, addedDeleters, removedDeleters));
+    }
+
+    /**
+     * Record that a queued change to a site failed, so the site isn't
+     * journalled.
+     * @param site The site
+     */
+    void failed(final String site) {
+        failed.add(site);
+    }
+
+    /**
+     * Journal every queued site none of whose changes failed, once all the
+     * queued changes have been sent.
+     */
+    void sent() {
+        QueuedSite site;
+
+        while ((site = queued.poll()) != null) {
+            if (!failed.contains(site.site)) {
+                done(site.site, site.addedDeleters, site.removedDeleters);
+            }
+        }
+    }
+
+    /**
+     * Forget the queued and failed sites, e.g. at the end of an update.
+     */
+    void clear() {
+        queued.clear();
+        failed.clear();
+    }
+
+    /**
+     * Journal the deleters who have joined or left a site.
+     * @param site The site
+     * @param deleters The deleters
+     * @param change '+' if they joined the site, '-' if they left it
+     */
+    private void journalDeleters(final String site, final MemberBitmap deleters, final char change) {
+        Iterator<String> iter = memberships.toNames(deleters).iterator();
+
+        while (iter.hasNext()) {
+            journal.done(RunJournal.DELETER, site + '\t' + change + iter.next());
+        }
+    }
+
+    /**
+     * A site whose changes have been queued.
+     */
+    private static final class QueuedSite {
+
+        /**
+         * The site.
+         */
+        private final String site;
+
+        /**
+         * Deleters joining the site.
+         */
+        private final MemberBitmap addedDeleters;
+
+        /**
+         * Deleters leaving the site.
+         */
+        private final MemberBitmap removedDeleters;
+
+        /**
+         * @param site The site
+         * @param addedDeleters Deleters joining the site
+         * @param removedDeleters Deleters leaving the site
+         */
+        QueuedSite(final String site, final MemberBitmap addedDeleters, final MemberBitmap removedDeleters) {
+            this.site = site;
+            this.addedDeleters = addedDeleters;
+            this.removedDeleters = removedDeleters;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The membership each Alfresco site had after it was last successfully
+ * synchronised, kept on disk between runs.  Incremental runs can diff LDAP
+ * against the snapshot instead of reading every modified site from
+ * Alfresco.
+ * 
+ * A site is only recorded once all the changes to it have been applied, or
+ * queued to be sent in a batch, and is dropped if any of them failed, so it
+ * is read from Alfresco next time.  Sites recorded since the snapshot was
+ * last saved are dropped too if the update fails before saving it, since
+ * their queued changes may never have been sent.
+ * Since Alfresco can also be changed by other means, the snapshot is
+ * refreshed by a periodic verification pass which reads every site from
+ * Alfresco.
+ * 
+ * The sites are held in a MembershipStore, which is read from a
+ * memory-mapped copy of the file.  All methods are synchronised so the
+ * snapshot can be shared by the site workers.
+ */
+class SiteSnapshot {
+
+    /**
+     * Identifies the file format.
+     */
+    private static final int FORMAT_VERSION = 2;
+
+    /**
+     * Logging instance.
+     */
+    private static final Logger LOGGER = Logger.getLogger(SiteSnapshot.class);
+
+    /**
+     * Where the snapshot is kept.
+     */
+    private final File file;
+
+    /**
+     * Members of each site.
+     */
+    private final MembershipStore store;
+
+    /**
+     * When the snapshot was last verified against Alfresco, in milliseconds
+     * since the epoch, or 0 if never.
+     */
+    private long lastVerified = 0;
+
+    /**
+     * Sites recorded since the snapshot was last saved or loaded.
+     */
+    private final Set<String> unsaved = new HashSet<String>();
+
+    /**
+     * Whether the file holds just what the store does, having been saved
+     * since the last change.
+     */
+    private boolean saved = false;
+
+    /**
+     * @param file Where the snapshot is kept
+     * @param store Holds the members of each site, and the IDs of the users
+     */
+    SiteSnapshot(final File file, final MembershipStore store) {
+        this.file = file;
+        this.store = store;
+    }
+
+    /**
+     * Read the snapshot from disk, replacing the contents of the store.  If
+     * it is missing or can't be read, the snapshot is left empty and
+     * unverified.  Since the IDs of the users change, this must be called
+     * before the store is used.
+     */
+    synchronized void load() {
+        store.clearGroups();
+        unsaved.clear();
+        lastVerified = 0;
+        saved = false;
+
+        RandomAccessFile in = null;
+
+        try {
+            in = new RandomAccessFile(file, "r");
+
+            // the mapping stays valid after the file is closed
+            MappedByteBuffer data = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+
+            if (data.remaining() < 12 || data.getInt() != FORMAT_VERSION) {
+                LOGGER.warn("Ignoring site snapshot " + file + " with unknown format");
+                return;
+            }
+
+            long verified = data.getLong();
+
+            store.readFrom(data);
+            lastVerified = verified;
+
+            LOGGER.info("Read snapshot of " + store.getGroupCount() + " sites and " + store.getUserCount() + " users from " + file);
+        } catch (FileNotFoundException e) {
+            LOGGER.info("No site snapshot at " + file);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read site snapshot " + file, e);
+        } catch (BufferUnderflowException e) {
+            LOGGER.warn("Ignoring truncated site snapshot " + file);
+        } finally {
+            StateDirectory.close(in);
+        }
+    }
+
+    /**
+     * Write the snapshot to disk, as described by {@link StateDirectory#write}.
+     */
+    synchronized void save() {
+        unsaved.clear();
+        saved = false;
+
+        try {
+            StateDirectory.write(file, new StateDirectory.Contents() {
+                public void writeTo(final OutputStream stream) throws IOException {
+                    DataOutputStream out = new DataOutputStream(stream);
+
+                    out.writeInt(FORMAT_VERSION);
+                    out.writeLong(lastVerified);
+                    store.writeTo(out);
+
+                    out.flush();
+                }
+            });
+
+            saved = true;
+        } catch (IOException e) {
+            LOGGER.error("Cannot write site snapshot " + file + ", it will be rebuilt from Alfresco", e);
+        }
+    }
+
+    /**
+     * @param site The site
+     * @return The members of the site, or null if it isn't in the snapshot
+     */
+    synchronized MemberBitmap getMembers(final String site) {
+        try {
+            return store.getGroup(site);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read site " + site + " from snapshot, it will be read from Alfresco", e);
+            store.removeGroup(site);
+            saved = false;
+            return null;
+        }
+    }
+
+    /**
+     * Record the members of a site after it has been synchronised.
+     * @param site The site
+     * @param members Its members
+     */
+    synchronized void setMembers(final String site, final MemberBitmap members) {
+        store.putGroup(site, members);
+        unsaved.add(site);
+        saved = false;
+    }
+
+    /**
+     * Forget the sites recorded since the snapshot was last saved, e.g. after
+     * an update has failed, so they are read from Alfresco next time.
+     */
+    synchronized void forgetUnsaved() {
+        Iterator<String> iter = unsaved.iterator();
+
+        while (iter.hasNext()) {
+            store.removeGroup(iter.next());
+        }
+
+        unsaved.clear();
+    }
+
+    /**
+     * Forget a site, so it is read from Alfresco next time.
+     * @param site The site
+     */
+    synchronized void remove(final String site) {
+        store.removeGroup(site);
+        saved = false;
+    }
+
+    /**
+     * Forget every site.
+     */
+    synchronized void clear() {
+        store.clearGroups();
+        unsaved.clear();
+        lastVerified = 0;
+        saved = false;
+    }
+
+    /**
+     * Read the snapshot back from disk if nothing has changed since it was
+     * saved, so the store only keeps the IDs of users who are in a site, as
+     * described by {@link MembershipStore#writeTo}.  Since the IDs of the
+     * users change, this must only be called between updates, once nothing
+     * else holds any.
+     */
+    synchronized void compact() {
+        if (saved) {
+            load();
+        }
+    }
+
+    /**
+     * @return When the snapshot was last verified against Alfresco, in
+     * milliseconds since the epoch, or 0 if never
+     */
+    synchronized long getLastVerified() {
+        return lastVerified;
+    }
+
+    /**
+     * Record that every site has just been verified against Alfresco.
+     * @param time When the verification pass started, in milliseconds since
+     * the epoch
+     */
+    synchronized void setLastVerified(final long time) {
+        lastVerified = time;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.surevine.alfresco.PropertyWrapper;
+
+/**
+ * The directory where state kept between runs is stored.  By default this is
+ * the directory holding the properties file, found on the classpath, or the
+ * current directory if the properties file isn't a plain file.  It can be
+ * set explicitly with the state.dir property.
+ */
+final class StateDirectory {
+
+    /**
+     * Files locked by tryLock() in this process.  Opening and closing another
+     * channel on one of them would release its lock on some platforms, so
+     * they are never opened again until released.
+     */
+    private static final Set<File> LOCKED = new HashSet<File>();
+
+    /**
+     * Writes the contents of a state file.
+     */
+    interface Contents {
+        /**
+         * @param out Where to write the contents, which the caller closes
+         * @throws IOException If the contents can't be written
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * The directory.
+     */
+    private final File directory;
+
+    /**
+     * @param properties The application properties
+     * @param propertiesFilename Name of the properties file, without extension
+     */
+    StateDirectory(final PropertyWrapper properties, final String propertiesFilename) {
+        String configured = PropertyUtils.getString(properties, "state.dir", null);
+
+        if (configured != null) {
+            directory = new File(configured).getAbsoluteFile();
+        } else {
+            directory = locate(propertiesFilename);
+        }
+    }
+
+    /**
+     * @param name Name of a file in the directory
+     * @return The file
+     */
+    File getFile(final String name) {
+        return new File(directory, name);
+    }
+
+    /**
+     * Write a state file to a temporary file and then replace the file with
+     * it, so a reader never sees a partly written file.  The temporary file
+     * is synced to disk before the rename, so a crash can't leave the file
+     * replaced by one whose contents never reached the disk.  If it can't be
+     * written, any older copy is deleted so that stale state is never used.
+     * @param file The file
+     * @param contents Writes the contents
+     * @throws IOException If the file can't be written
+     */
+    static void write(final File file, final Contents contents) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = null;
+
+        try {
+            FileOutputStream fileOut = new FileOutputStream(temp);
+            out = new BufferedOutputStream(fileOut);
+            contents.writeTo(out);
+
+            out.flush();
+            fileOut.getFD().sync();
+            out.close();
+            out = null;
+
+            replace(temp, file);
+        } catch (IOException e) {
+            close(out);
+            temp.delete();
+            file.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Lock a file against other processes, e.g. so that only one copy of the
+     * application uses the state kept in the directory.  The lock is held
+     * until it is released or the process exits.
+     * @param file The file, which is created if it doesn't exist
+     * @return The lock, or null if another process or another part of this
+     *         one holds it
+     * @throws IOException If the file can't be locked
+     */
+    static FileLock tryLock(final File file) throws IOException {
+        File key = file.getAbsoluteFile();
+
+        synchronized (LOCKED) {
+            if (LOCKED.contains(key)) {
+                return null;
+            }
+
+            FileChannel channel = new RandomAccessFile(key, "rw").getChannel();
+            FileLock lock = null;
+
+            try {
+                lock = channel.tryLock();
+            } finally {
+                if (lock == null) {
+                    close(channel);
+                }
+            }
+
+            if (lock != null) {
+                LOCKED.add(key);
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * @param file The file passed to tryLock()
+     * @param lock Lock from tryLock() to release quietly, or null
+     */
+    static void release(final File file, final FileLock lock) {
+        if (lock != null) {
+            synchronized (LOCKED) {
+                close(lock.channel());
+                LOCKED.remove(file.getAbsoluteFile());
+            }
+        }
+    }
+
+    /**
+     * @param stream Stream, reader or writer to close quietly, or null
+     */
+    static void close(final Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // nothing more to do
+            }
+        }
+    }
+
+    /**
+     * Replace a file with a newly written temporary file.
+     * @param temp The newly written file
+     * @param target The file to replace
+     * @throws IOException If the file can't be replaced
+     */
+    private static void replace(final File temp, final File target) throws IOException {
+        if (!temp.renameTo(target)) {
+            // some platforms won't rename over an existing file
+            if (!target.delete() || !temp.renameTo(target)) {
+                throw new IOException("Cannot replace " + target + " with " + temp);
+            }
+        }
+    }
+
+    /**
+     * @param propertiesFilename Name of the properties file, without extension
+     * @return The directory holding the properties file
+     */
+    private static File locate(final String propertiesFilename) {
+        URL url = StateDirectory.class.getClassLoader().getResource(propertiesFilename + ".properties");
+
+        if (url != null && "file".equals(url.getProtocol())) {
+            try {
+                return new File(url.toURI()).getAbsoluteFile().getParentFile();
+            } catch (URISyntaxException e) {
+                // fall back to the current directory
+            }
+        }
+
+        return new File(".").getAbsoluteFile();
+    }
+}
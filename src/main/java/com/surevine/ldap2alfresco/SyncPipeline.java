@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A three stage pipeline with bounded queues between the stages.
+ * 
+ * The caller's thread is the first stage, and feeds items in with put().  A
+ * pool of threads takes each item and transforms it into a result (e.g.
+ * reads the current state from Alfresco and works out what has to change),
+ * and a second pool takes each result and consumes it (e.g. applies the
+ * changes).  Because the queues are bounded, a fast stage blocks until the
+ * next one catches up, so memory use stays bounded while every stage is kept
+ * busy.
+ * 
+ * If any stage fails, the pipeline stops and the first failure is rethrown
+ * from put() or finish().
+ * @param <I> Type of the items fed in
+ * @param <O> Type of the transformed results
+ */
+class SyncPipeline<I, O> {
+
+    /**
+     * Second stage of the pipeline.
+     * @param <I> Type of the items fed in
+     * @param <O> Type of the transformed results
+     */
+    interface Transform<I, O> {
+        /**
+         * Transform an item.
+         * @param item The item
+         * @return The result, or null if there is nothing to pass on
+         * @throws Exception To stop the pipeline
+         */
+        O process(I item) throws Exception;
+    }
+
+    /**
+     * Last stage of the pipeline.
+     * @param <O> Type of the transformed results
+     */
+    interface Sink<O> {
+        /**
+         * Consume a result.
+         * @param result The result
+         * @throws Exception To stop the pipeline
+         */
+        void process(O result) throws Exception;
+    }
+
+    /**
+     * How long to wait on a full queue before checking for failures, in milliseconds.
+     */
+    private static final long POLL_INTERVAL = 100;
+
+    /**
+     * Marks the end of the items in a queue.
+     */
+    private static final Object END = new Object();
+
+    /**
+     * Items waiting to be transformed.
+     */
+    private final BlockingQueue<Object> input;
+
+    /**
+     * Results waiting to be consumed.
+     */
+    private final BlockingQueue<Object> output;
+
+    /**
+     * Threads running the second stage.
+     */
+    private final Collection<Thread> transformers = new ArrayList<Thread>();
+
+    /**
+     * Threads running the last stage.
+     */
+    private final Collection<Thread> sinks = new ArrayList<Thread>();
+
+    /**
+     * The first failure in any stage.
+     */
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    /**
+     * @param name Name of the pipeline, used to name its threads
+     * @param transformThreads Number of threads running the second stage
+     * @param sinkThreads Number of threads running the last stage
+     * @param queueSize Capacity of each queue
+     * @param transform The second stage
+     * @param sink The last stage
+     */
+    SyncPipeline(final String name, final int transformThreads, final int sinkThreads, final int queueSize,
+            final Transform<I, O> transform, final Sink<O> sink) {
+        input = new ArrayBlockingQueue<Object>(Math.max(1, queueSize));
+        output = new ArrayBlockingQueue<Object>(Math.max(1, queueSize));
+
+        for (int x = 1; x <= Math.max(1, transformThreads); x++) {
+            transformers.add(new Thread(new Runnable() {
+                @SuppressWarnings("unchecked")
+                public void run() {
+                    try {
+                        Object item;
+
+                        while ((item = input.take()) != END) {
+                            O result = transform.process((I) item);
+
+                            if (result != null) {
+                                offer(output, result);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        fail(t);
+                    }
+                }
+            }, name + "-read-" + x));
+        }
+
+        for (int x = 1; x <= Math.max(1, sinkThreads); x++) {
+            sinks.add(new Thread(new Runnable() {
+                @SuppressWarnings("unchecked")
+                public void run() {
+                    try {
+                        Object result;
+
+                        while ((result = output.take()) != END) {
+                            sink.process((O) result);
+                        }
+                    } catch (Throwable t) {
+                        fail(t);
+                    }
+                }
+            }, name + "-apply-" + x));
+        }
+
+        startAll(transformers);
+        startAll(sinks);
+    }
+
+    /**
+     * Feed an item into the pipeline, waiting if the first queue is full.
+     * @param item The item
+     * @throws PipelineException If any stage has failed
+     */
+    void put(final I item) throws PipelineException {
+        try {
+            offer(input, item);
+        } catch (InterruptedException e) {
+            abort();
+            Thread.currentThread().interrupt();
+            throw new PipelineException(e);
+        }
+    }
+
+    /**
+     * Wait for every item fed in to pass through the pipeline, and stop its
+     * threads.
+     * @throws PipelineException If any stage failed
+     */
+    void finish() throws PipelineException {
+        try {
+            endAll(input, transformers);
+            endAll(output, sinks);
+        } catch (InterruptedException e) {
+            abort();
+            Thread.currentThread().interrupt();
+            throw new PipelineException(e);
+        }
+
+        checkFailure();
+    }
+
+    /**
+     * Stop the pipeline without waiting for items to pass through it.
+     */
+    void abort() {
+        interruptAll(transformers);
+        interruptAll(sinks);
+    }
+
+    /**
+     * Put an item on a queue, waiting while it's full unless a stage fails.
+     * @param queue The queue
+     * @param item The item
+     * @throws InterruptedException If interrupted while waiting
+     * @throws PipelineException If any stage has failed
+     */
+    private void offer(final BlockingQueue<Object> queue, final Object item)
+            throws InterruptedException, PipelineException {
+        do {
+            checkFailure();
+        } while (!queue.offer(item, POLL_INTERVAL, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Tell every thread of a stage there are no more items, and wait for
+     * them to finish.
+     * @param queue The queue the stage reads from
+     * @param threads The threads of the stage
+     * @throws InterruptedException If interrupted while waiting
+     * @throws PipelineException If any stage has failed
+     */
+    private void endAll(final BlockingQueue<Object> queue, final Collection<Thread> threads)
+            throws InterruptedException, PipelineException {
+        for (int x = 0; x < threads.size(); x++) {
+            offer(queue, END);
+        }
+
+        Iterator<Thread> iter = threads.iterator();
+
+        while (iter.hasNext()) {
+            iter.next().join();
+        }
+    }
+
+    /**
+     * Record a failure and stop every stage.
+     * @param t The failure
+     */
+    private void fail(final Throwable t) {
+        if (failure.compareAndSet(null, t)) {
+            abort();
+        }
+    }
+
+    /**
+     * @throws PipelineException If any stage has failed
+     */
+    private void checkFailure() throws PipelineException {
+        Throwable t = failure.get();
+
+        if (t != null) {
+            throw new PipelineException(t);
+        }
+    }
+
+    /**
+     * @param threads Threads to start
+     */
+    private static void startAll(final Collection<Thread> threads) {
+        Iterator<Thread> iter = threads.iterator();
+
+        while (iter.hasNext()) {
+            Thread thread = iter.next();
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * @param threads Threads to interrupt
+     */
+    private static void interruptAll(final Collection<Thread> threads) {
+        Iterator<Thread> iter = threads.iterator();
+
+        while (iter.hasNext()) {
+            iter.next().interrupt();
+        }
+    }
+
+    /**
+     * Thrown when a stage of the pipeline fails, wrapping what it threw.
+     */
+    static class PipelineException extends Exception {
+        /**
+         * Required for serialisable classes.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * @param cause What the stage threw
+         */
+        PipelineException(final Throwable cause) {
+            super(cause);
+        }
+    }
+}
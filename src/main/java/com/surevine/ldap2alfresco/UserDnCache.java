@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least-recently-used cache of the DNs of LDAP users, keyed by
+ * username.  Entries expire after a fixed time so that users who are moved
+ * in the directory are eventually looked up again, and can be invalidated
+ * explicitly when an operation finds the cached DN no longer exists.
+ * All methods are synchronised so the cache can be shared between threads.
+ */
+class UserDnCache {
+
+    /**
+     * Maximum number of entries held, or zero to disable the cache.
+     */
+    private final int maxSize;
+
+    /**
+     * How long an entry stays valid, in milliseconds.
+     */
+    private final long timeToLive;
+
+    /**
+     * The entries, in least-recently-used order.
+     */
+    private final Map<String, CachedDn> entries;
+
+    /**
+     * Number of lookups answered from the cache.
+     */
+    private long hits = 0;
+
+    /**
+     * Number of lookups which had to go to the directory.
+     */
+    private long misses = 0;
+
+    /**
+     * @param maxSize Maximum number of entries held, or zero to disable the cache
+     * @param timeToLive How long an entry stays valid, in milliseconds
+     */
+    UserDnCache(final int maxSize, final long timeToLive) {
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+        this.entries = new LinkedHashMap<String, CachedDn>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, CachedDn> eldest) {
+                return size() > UserDnCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Look up the DN of a user.
+     * @param username The user
+     * @return The full DN, or null if it is not cached or has expired
+     */
+    synchronized String get(final String username) {
+        CachedDn entry = entries.get(username);
+
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+
+        if (System.currentTimeMillis() >= entry.expires) {
+            entries.remove(username);
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return entry.dn;
+    }
+
+    /**
+     * Remember the DN of a user.
+     * @param username The user
+     * @param dn The full DN
+     */
+    synchronized void put(final String username, final String dn) {
+        if (maxSize > 0) {
+            entries.put(username, new CachedDn(dn, System.currentTimeMillis() + timeToLive));
+        }
+    }
+
+    /**
+     * Forget the DN of a user.
+     * @param username The user
+     */
+    synchronized void invalidate(final String username) {
+        entries.remove(username);
+    }
+
+    /**
+     * Forget every DN.
+     */
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return Number of lookups answered from the cache
+     */
+    synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Number of lookups which had to go to the directory
+     */
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * A DN and when it expires.
+     */
+    private static class CachedDn {
+        /**
+         * The full DN.
+         */
+        private final String dn;
+
+        /**
+         * Time after which the DN must be looked up again.
+         */
+        private final long expires;
+
+        /**
+         * @param dn The full DN
+         * @param expires Time after which the DN must be looked up again
+         */
+        CachedDn(final String dn, final long expires) {
+            this.dn = dn;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A list of usernames kept in a text file between runs, one per line.
+ */
+class UserListFile {
+
+    /**
+     * Character set of the file.
+     */
+    private static final String CHARSET = "UTF-8";
+
+    /**
+     * Logging instance.
+     */
+    private static final Logger LOGGER = Logger.getLogger(UserListFile.class);
+
+    /**
+     * Where the list is kept.
+     */
+    private final File file;
+
+    /**
+     * @param file Where the list is kept
+     */
+    UserListFile(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return The usernames, or null if the file doesn't exist or can't be read
+     */
+    Collection<String> read() {
+        BufferedReader in = null;
+
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+
+            Collection<String> users = new HashSet<String>();
+            String line;
+
+            while ((line = in.readLine()) != null) {
+                if (line.length() > 0) {
+                    users.add(line);
+                }
+            }
+
+            return users;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read " + file, e);
+            return null;
+        } finally {
+            StateDirectory.close(in);
+        }
+    }
+
+    /**
+     * Replace the list, as described by {@link StateDirectory#write}.
+     * @param users The usernames
+     */
+    void write(final Collection<String> users) {
+        try {
+            StateDirectory.write(file, new StateDirectory.Contents() {
+                public void writeTo(final OutputStream stream) throws IOException {
+                    Writer out = new OutputStreamWriter(stream, CHARSET);
+                    Iterator<String> iter = users.iterator();
+
+                    while (iter.hasNext()) {
+                        out.write(iter.next());
+                        out.write('\n');
+                    }
+
+                    out.flush();
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.error("Cannot write " + file, e);
+        }
+    }
+}
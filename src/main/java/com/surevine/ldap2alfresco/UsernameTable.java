@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+/**
+ * A table of canonical username strings.
+ * 
+ * The same usernames appear as members of hundreds of groups, so rather than
+ * allocating a new string for every member value, callers look names up by
+ * the range of characters they occupy in the member's DN.  A string is only
+ * allocated the first time a name is seen; afterwards the existing instance
+ * is returned, so every group shares one copy of each name.
+ * 
+ * The table is intended to live for a single run, and is cleared between
+ * runs so that it doesn't grow without bound in long-lived processes.  All
+ * methods are synchronised so the table can be shared between threads.
+ */
+class UsernameTable {
+
+    /**
+     * Initial number of slots (must be a power of two).
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * Open-addressed slots holding the names.
+     */
+    private String[] slots = new String[INITIAL_CAPACITY];
+
+    /**
+     * Number of names held.
+     */
+    private int size = 0;
+
+    /**
+     * Return the canonical copy of the name occupying a range of characters.
+     * @param source Text containing the name
+     * @param start Index of the first character of the name
+     * @param end Index after the last character of the name
+     * @return The canonical string
+     */
+    synchronized String intern(final CharSequence source, final int start, final int end) {
+        int hash = hash(source, start, end);
+        int mask = slots.length - 1;
+        int index = hash & mask;
+
+        while (slots[index] != null) {
+            if (matches(slots[index], source, start, end)) {
+                return slots[index];
+            }
+
+            index = (index + 1) & mask;
+        }
+
+        String name = source.subSequence(start, end).toString();
+        slots[index] = name;
+        size++;
+
+        if (size * 2 > slots.length) {
+            grow();
+        }
+
+        return name;
+    }
+
+    /**
+     * Return the canonical copy of a name.
+     * @param name The name
+     * @return The canonical string
+     */
+    String intern(final String name) {
+        return intern(name, 0, name.length());
+    }
+
+    /**
+     * @return Number of distinct names held
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Forget every name.
+     */
+    synchronized void clear() {
+        slots = new String[INITIAL_CAPACITY];
+        size = 0;
+    }
+
+    /**
+     * Double the number of slots.
+     */
+    private void grow() {
+        String[] old = slots;
+        slots = new String[old.length * 2];
+        int mask = slots.length - 1;
+
+        for (int x = 0; x < old.length; x++) {
+            if (old[x] != null) {
+                int index = old[x].hashCode() & mask;
+
+                while (slots[index] != null) {
+                    index = (index + 1) & mask;
+                }
+
+                slots[index] = old[x];
+            }
+        }
+    }
+
+    /**
+     * Hash a range of characters the same way as String.hashCode(), so
+     * names already held can be rehashed without recomputing ranges.
+     * @param source Text containing the name
+     * @param start Index of the first character of the name
+     * @param end Index after the last character of the name
+     * @return The hash
+     */
+    private static int hash(final CharSequence source, final int start, final int end) {
+        int hash = 0;
+
+        for (int x = start; x < end; x++) {
+            hash = 31 * hash + source.charAt(x);
+        }
+
+        return hash;
+    }
+
+    /**
+     * Does a name equal a range of characters?
+     * @param name The name
+     * @param source Text containing the range
+     * @param start Index of the first character of the range
+     * @param end Index after the last character of the range
+     * @return True if they are equal
+     */
+    private static boolean matches(final String name, final CharSequence source, final int start, final int end) {
+        if (name.length() != end - start) {
+            return false;
+        }
+
+        for (int x = start; x < end; x++) {
+            if (name.charAt(x - start) != source.charAt(x)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
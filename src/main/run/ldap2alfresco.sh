@@ -21,10 +21,13 @@
 #-------------------------------------------------------------------------------
 #!/bin/sh
 #
-#	ldap2alfresco.sh [force]
+#	ldap2alfresco.sh [force|daemon|watch]
 #
 # Does an incremental synchronisation from LDAP groups to Alfresco
 # sites, or optionally a full sychronisation with the 'force' parameter.
+# With 'daemon' it keeps running, doing an incremental synchronisation
+# every update.daemon.interval seconds, and with 'watch' it keeps running,
+# applying changes as they are made in LDAP.
 #
 # All settings are read from ldap2alfresco.properties in the CLASSPATH (which
 # is set by default to be the current directory).
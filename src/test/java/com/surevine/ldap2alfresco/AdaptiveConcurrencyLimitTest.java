@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests AdaptiveConcurrencyLimit rising while calls are quick, falling on
+ * errors and slow calls, and recovering afterwards.  Latencies are given by
+ * backdating the start of each call rather than by making calls slow.
+ */
+public class AdaptiveConcurrencyLimitTest {
+
+    /**
+     * Latency of a normal call.
+     */
+    private static final long QUICK = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /**
+     * Latency of a call well beyond the tolerance.
+     */
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * Highest the limit can be.
+     */
+    private static final int MAX_LIMIT = 4;
+
+    /**
+     * The limit under test.
+     */
+    private AdaptiveConcurrencyLimit limit;
+
+    /**
+     * Start each test with a new limit.
+     */
+    @Before
+    public void setUp() {
+        limit = new AdaptiveConcurrencyLimit(MAX_LIMIT, 2.0);
+    }
+
+    /**
+     * The limit starts at one and rises to the maximum while the calls are
+     * quick and held back by it.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void risesToMaximum() throws Exception {
+        assertEquals(1, limit.getLimit());
+
+        // a call at a time never reaches a limit above one
+        call(QUICK, false);
+        call(QUICK, false);
+        call(QUICK, false);
+
+        assertEquals(2, limit.getLimit());
+
+        riseTo(MAX_LIMIT);
+        callsAtOnce(MAX_LIMIT, QUICK, false);
+
+        assertEquals(MAX_LIMIT, limit.getLimit());
+        assertEquals(MAX_LIMIT, limit.getMaxLimit());
+        assertEquals(0, limit.getDecreases());
+        assertEquals(1, new AdaptiveConcurrencyLimit(0, 2.0).getMaxLimit());
+    }
+
+    /**
+     * An error halves the limit.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void halvesOnError() throws Exception {
+        riseTo(MAX_LIMIT);
+
+        call(QUICK, true);
+
+        assertEquals(MAX_LIMIT / 2, limit.getLimit());
+        assertEquals(1, limit.getDecreases());
+    }
+
+    /**
+     * A call much slower than the quickest seen lowers the limit a little.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void lowersOnRiseInLatency() throws Exception {
+        riseTo(MAX_LIMIT);
+
+        call(SLOW, false);
+
+        assertEquals(MAX_LIMIT - 1, limit.getLimit());
+        assertEquals(1, limit.getDecreases());
+    }
+
+    /**
+     * Each operation has its own latency, so a slow operation isn't a rise
+     * in latency on its own.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void comparesLatencyByOperation() throws Exception {
+        riseTo(MAX_LIMIT);
+
+        long started = limit.acquire();
+        limit.release("slow", started - SLOW, false);
+
+        assertEquals(MAX_LIMIT, limit.getLimit());
+        assertEquals(0, limit.getDecreases());
+    }
+
+    /**
+     * The limit is only lowered once for calls which fail at the same time,
+     * and again once a round trip has passed.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void lowersOncePerRoundTrip() throws Exception {
+        riseTo(MAX_LIMIT);
+
+        call(SLOW, true);
+        call(SLOW, true);
+
+        assertEquals(MAX_LIMIT / 2, limit.getLimit());
+        assertEquals(1, limit.getDecreases());
+
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(SLOW) * 2);
+        call(SLOW, true);
+
+        assertEquals(1, limit.getLimit());
+        assertEquals(2, limit.getDecreases());
+
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(SLOW) * 2);
+        call(SLOW, true);
+
+        // never below one
+        assertEquals(1, limit.getLimit());
+        assertEquals(3, limit.getDecreases());
+    }
+
+    /**
+     * Once the calls are quick again the limit rises back to the maximum.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void recoversAfterLowering() throws Exception {
+        riseTo(MAX_LIMIT);
+
+        call(QUICK, true);
+
+        assertEquals(MAX_LIMIT / 2, limit.getLimit());
+
+        riseTo(MAX_LIMIT);
+
+        assertEquals(MAX_LIMIT, limit.getLimit());
+        assertEquals(1, limit.getDecreases());
+    }
+
+    /**
+     * A call made within another on the same thread doesn't wait or count.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void countsNestedCallsOnce() throws Exception {
+        long outer = limit.acquire();
+        long inner = limit.acquire();
+
+        limit.release("inner", inner - SLOW, true);
+
+        assertEquals(0, limit.getDecreases());
+
+        limit.release("outer", outer - QUICK, false);
+
+        assertEquals(2, limit.getLimit());
+    }
+
+    /**
+     * A call waits while the limit is reached.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void waitsWhileLimitReached() throws Exception {
+        final CountDownLatch acquired = new CountDownLatch(1);
+        long started = limit.acquire();
+
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    long started = limit.acquire();
+                    acquired.countDown();
+                    limit.release("op", started, false);
+                } catch (InterruptedException e) {
+                    // the test fails waiting for the call
+                }
+            }
+        };
+
+        waiter.start();
+
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+
+        limit.release("op", started, false);
+
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        waiter.join();
+    }
+
+    /**
+     * A call interrupted while waiting is given up without being counted,
+     * so it neither goes past the limit nor leaves the thread holding a
+     * call.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void interruptedCallIsNotCounted() throws Exception {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        long started = limit.acquire();
+
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    limit.acquire();
+                    error.set(new AssertionError("Call allowed past the limit"));
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+
+                    // the failed call left nothing held, so this call waits
+                    // for the limit rather than being treated as nested
+                    try {
+                        limit.release("op", limit.acquire(), false);
+                    } catch (InterruptedException again) {
+                        error.set(again);
+                    }
+                }
+            }
+        };
+
+        waiter.start();
+        Thread.sleep(100);
+        waiter.interrupt();
+
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+
+        // still waiting for the one call allowed
+        waiter.join(100);
+        assertTrue(waiter.isAlive());
+
+        limit.release("op", started - QUICK, false);
+        waiter.join(5000);
+
+        assertFalse(waiter.isAlive());
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+    }
+
+    /**
+     * Make a call on this thread.
+     * @param latency How long the call should appear to have taken
+     * @param failed Whether the call failed
+     * @throws InterruptedException If interrupted while waiting for the limit
+     */
+    private void call(final long latency, final boolean failed) throws InterruptedException {
+        limit.acquire();
+        limit.release("op", System.nanoTime() - latency, failed);
+    }
+
+    /**
+     * Make quick calls, as many at once as the limit allows, until it reaches
+     * a given value.
+     * @param target The limit to reach
+     * @throws Exception On any failure
+     */
+    private void riseTo(final int target) throws Exception {
+        for (int round = 0; round < 100 && limit.getLimit() < target; round++) {
+            callsAtOnce(limit.getLimit(), QUICK, false);
+        }
+
+        assertEquals(target, limit.getLimit());
+    }
+
+    /**
+     * Make calls on several threads which are all in progress at once.  There
+     * must be no more calls than the limit, or they will never all start.
+     * @param calls Number of calls
+     * @param latency How long the calls should appear to have taken
+     * @param failed Whether the calls failed
+     * @throws Exception On any failure
+     */
+    private void callsAtOnce(final int calls, final long latency, final boolean failed) throws Exception {
+        final CyclicBarrier allStarted = new CyclicBarrier(calls);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[calls];
+
+        for (int x = 0; x < calls; x++) {
+            threads[x] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        limit.acquire();
+                        allStarted.await(5, TimeUnit.SECONDS);
+                        limit.release("op", System.nanoTime() - latency, failed);
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[x].start();
+        }
+
+        for (int x = 0; x < calls; x++) {
+            threads[x].join();
+        }
+
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+    }
+}
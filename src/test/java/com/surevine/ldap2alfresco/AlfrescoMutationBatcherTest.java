@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.surevine.alfresco.AlfrescoConnector;
+import com.surevine.alfresco.AlfrescoConnector.RoleType;
+import com.surevine.alfresco.AlfrescoException;
+
+/**
+ * Tests AlfrescoMutationBatcher coalescing, ordering, flushing and failure
+ * reporting.  Changes are recorded by the batcher rather than sent, so no
+ * Alfresco server is needed.
+ */
+public class AlfrescoMutationBatcherTest {
+
+    /**
+     * Longer than any test takes, so batches are never flushed for their age.
+     */
+    private static final long NEVER = 60 * 60 * 1000L;
+
+    /**
+     * Handler for changes which aren't expected to fail.
+     */
+    private static final AlfrescoMutationBatcher.FailureHandler UNEXPECTED = new AlfrescoMutationBatcher.FailureHandler() {
+        public void failed(final AlfrescoMutationBatcher.Mutation mutation, final AlfrescoException e) {
+            fail("Unexpected failure of " + mutation);
+        }
+    };
+
+    /**
+     * The batcher under test, shut down after each test.
+     */
+    private RecordingBatcher batcher;
+
+    /**
+     * Stop the batcher's threads.
+     */
+    @After
+    public void tearDown() {
+        if (batcher != null) {
+            batcher.shutdown();
+        }
+    }
+
+    /**
+     * Later changes to the same user's membership of the same site replace
+     * earlier ones, but changes to a group of the same name, or to another
+     * user, do not.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void coalescesBySiteOrGroupAndUser() throws Exception {
+        batcher = new RecordingBatcher(1, 100, NEVER);
+
+        batcher.addMemberToSite("alpha", "ann", RoleType.COLLABORATOR, UNEXPECTED);
+        batcher.addMemberToSite("alpha", "ann", RoleType.MANAGER, UNEXPECTED);
+        batcher.removeMemberFromSite("alpha", "ann", UNEXPECTED);
+        batcher.addMemberToGroup("ann", "alpha", UNEXPECTED);
+        batcher.addMemberToSite("alpha", "bob", RoleType.MANAGER, UNEXPECTED);
+        batcher.flush();
+
+        assertEquals(Arrays.asList(
+                "ADD_GROUP_MEMBER ann alpha",
+                "ADD_SITE_MEMBER bob alpha as MANAGER",
+                "REMOVE_SITE_MEMBER ann alpha"), batcher.getSent());
+        assertEquals(5, batcher.getQueued());
+        assertEquals(2, batcher.getCoalesced());
+        assertEquals(1, batcher.getBatches());
+    }
+
+    /**
+     * Every addition in a batch is made before any removal, whichever order
+     * they were queued in.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void sendsAdditionsBeforeRemovals() throws Exception {
+        batcher = new RecordingBatcher(1, 100, NEVER);
+
+        batcher.removeMemberFromSiteIfPresent("alpha", "ann", UNEXPECTED);
+        batcher.addMemberToSite("alpha", "bob", RoleType.MANAGER, UNEXPECTED);
+        batcher.removeMemberFromGroupIfPresent("cat", "deleters", UNEXPECTED);
+        batcher.addMemberToGroup("dan", "deleters", UNEXPECTED);
+        batcher.flush();
+
+        assertEquals(Arrays.asList(
+                "ADD_SITE_MEMBER bob alpha as MANAGER",
+                "ADD_GROUP_MEMBER dan deleters",
+                "REMOVE_SITE_MEMBER_IF_PRESENT ann alpha",
+                "REMOVE_GROUP_MEMBER_IF_PRESENT cat deleters"), batcher.getSent());
+    }
+
+    /**
+     * Sent on several threads, the additions are all finished before the
+     * first removal is made.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void sendsAdditionsBeforeRemovalsOnSeveralThreads() throws Exception {
+        batcher = new RecordingBatcher(4, 100, NEVER);
+
+        for (int x = 0; x < 20; x++) {
+            batcher.removeMemberFromSite("alpha", "old" + x, UNEXPECTED);
+            batcher.addMemberToSite("alpha", "new" + x, RoleType.COLLABORATOR, UNEXPECTED);
+        }
+        batcher.flush();
+
+        List<String> sent = batcher.getSent();
+
+        assertEquals(40, sent.size());
+
+        for (int x = 0; x < 20; x++) {
+            assertTrue(sent.get(x), sent.get(x).startsWith("ADD_SITE_MEMBER"));
+            assertTrue(sent.get(x + 20), sent.get(x + 20).startsWith("REMOVE_SITE_MEMBER"));
+        }
+    }
+
+    /**
+     * A batch is sent as soon as it holds the set number of changes.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void flushesWhenFull() throws Exception {
+        batcher = new RecordingBatcher(1, 3, NEVER);
+
+        batcher.addMemberToSite("alpha", "ann", RoleType.COLLABORATOR, UNEXPECTED);
+        batcher.addMemberToSite("alpha", "bob", RoleType.COLLABORATOR, UNEXPECTED);
+
+        // replacing a change doesn't make the batch any bigger
+        batcher.addMemberToSite("alpha", "bob", RoleType.MANAGER, UNEXPECTED);
+
+        assertEquals(0, batcher.getSent().size());
+        assertEquals(0, batcher.getBatches());
+
+        batcher.addMemberToSite("alpha", "cat", RoleType.COLLABORATOR, UNEXPECTED);
+
+        assertEquals(3, batcher.getSent().size());
+        assertEquals(1, batcher.getBatches());
+
+        // nothing left to send
+        batcher.flush();
+
+        assertEquals(1, batcher.getBatches());
+    }
+
+    /**
+     * A batch is sent when a change is queued after its oldest change has
+     * waited the set time.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void flushesWhenOld() throws Exception {
+        batcher = new RecordingBatcher(1, 100, 50);
+
+        batcher.addMemberToSite("alpha", "ann", RoleType.COLLABORATOR, UNEXPECTED);
+
+        assertEquals(0, batcher.getSent().size());
+
+        Thread.sleep(200);
+
+        // there's no timer, so nothing is sent until the next change
+        assertEquals(0, batcher.getSent().size());
+
+        batcher.addMemberToSite("alpha", "bob", RoleType.COLLABORATOR, UNEXPECTED);
+
+        assertEquals(2, batcher.getSent().size());
+        assertEquals(1, batcher.getBatches());
+    }
+
+    /**
+     * Every failed change is reported to its own handler, even after one
+     * handler has thrown, and the first exception thrown is rethrown from
+     * the flush.  Changes which succeed are not reported.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void reportsEveryFailureAndRethrowsTheFirst() throws Exception {
+        batcher = new RecordingBatcher(1, 100, NEVER, "ann", "bob", "cat");
+
+        RecordingHandler quiet = new RecordingHandler(null);
+        LdapException first = new LdapException("first");
+        RecordingHandler throwsFirst = new RecordingHandler(first);
+        RecordingHandler throwsSecond = new RecordingHandler(new LdapException("second"));
+
+        batcher.addMemberToSite("alpha", "ann", RoleType.COLLABORATOR, quiet);
+        batcher.addMemberToSite("alpha", "bob", RoleType.COLLABORATOR, throwsFirst);
+        batcher.addMemberToSite("alpha", "dan", RoleType.COLLABORATOR, UNEXPECTED);
+        batcher.removeMemberFromSite("alpha", "cat", throwsSecond);
+
+        try {
+            batcher.flush();
+            fail("Expected the first handler's exception");
+        } catch (LdapException e) {
+            assertSame(first, e);
+        }
+
+        assertEquals(Collections.singletonList("ann"), quiet.getUsers());
+        assertEquals(Collections.singletonList("bob"), throwsFirst.getUsers());
+        assertEquals(Collections.singletonList("cat"), throwsSecond.getUsers());
+        assertEquals(4, batcher.getSent().size());
+    }
+
+    /**
+     * A batcher which records the changes it is asked to make, and fails
+     * those for some users.
+     */
+    private static class RecordingBatcher extends AlfrescoMutationBatcher {
+
+        /**
+         * Users whose changes fail.
+         */
+        private final Collection<String> failing;
+
+        /**
+         * Each change made, in the order they were made.
+         */
+        private final List<String> sent = new ArrayList<String>();
+
+        /**
+         * @param threads Number of threads to send changes on
+         * @param maxBatch Number of changes which triggers a flush
+         * @param maxDelay Age of the oldest change which triggers a flush, in milliseconds
+         * @param failing Users whose changes fail
+         */
+        RecordingBatcher(final int threads, final int maxBatch, final long maxDelay, final String... failing) {
+            super(new FakePool(threads), maxBatch, maxDelay);
+            this.failing = new HashSet<String>(Arrays.asList(failing));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        AlfrescoException apply(final Mutation mutation, final AlfrescoConnector connector) {
+            synchronized (sent) {
+                sent.add(mutation.toString());
+            }
+
+            if (failing.contains(mutation.getUser())) {
+                return new AlfrescoException("Cannot change " + mutation);
+            }
+            return null;
+        }
+
+        /**
+         * @return Each change made, in the order they were made
+         */
+        List<String> getSent() {
+            synchronized (sent) {
+                return new ArrayList<String>(sent);
+            }
+        }
+    }
+
+    /**
+     * A pool which claims to have some connectors but hands out none, as
+     * RecordingBatcher doesn't use them.
+     */
+    private static class FakePool extends AlfrescoConnectorPool {
+
+        /**
+         * Number of connectors the pool claims to have.
+         */
+        private final int size;
+
+        /**
+         * @param size Number of connectors the pool claims to have
+         */
+        FakePool(final int size) {
+            super(Collections.<AlfrescoConnector>emptyList());
+            this.size = size;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        AlfrescoConnector borrow() {
+            return null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        void release(final AlfrescoConnector connector) {
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Records the users whose changes it is told have failed, and
+     * optionally throws.
+     */
+    private static class RecordingHandler implements AlfrescoMutationBatcher.FailureHandler {
+
+        /**
+         * Thrown when told about a failure, or null.
+         */
+        private final LdapException toThrow;
+
+        /**
+         * Users whose changes failed.
+         */
+        private final List<String> users = new ArrayList<String>();
+
+        /**
+         * @param toThrow Thrown when told about a failure, or null
+         */
+        RecordingHandler(final LdapException toThrow) {
+            this.toThrow = toThrow;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void failed(final AlfrescoMutationBatcher.Mutation mutation, final AlfrescoException e)
+                throws LdapException {
+            assertTrue(e.getMessage(), e.getMessage().endsWith(mutation.toString()));
+            users.add(mutation.getUser());
+
+            if (toThrow != null) {
+                throw toThrow;
+            }
+        }
+
+        /**
+         * @return Users whose changes failed
+         */
+        List<String> getUsers() {
+            return users;
+        }
+    }
+}
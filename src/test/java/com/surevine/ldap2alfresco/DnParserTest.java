@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests DnParser on escaped and quoted values, and the UsernameTable it
+ * interns them into.
+ */
+public class DnParserTest {
+
+    /**
+     * Table the values are interned into.
+     */
+    private UsernameTable names;
+
+    /**
+     * Start each test with an empty table.
+     */
+    @Before
+    public void setUp() {
+        names = new UsernameTable();
+    }
+
+    /**
+     * Plain values are found whatever the case of the type and the spacing.
+     */
+    @Test
+    public void findsPlainValues() {
+        assertEquals("bob", DnParser.getFirstValue("cn=bob,ou=people,dc=example,dc=com", "cn", names));
+        assertEquals("people", DnParser.getFirstValue("cn=bob, OU = people ,dc=example", "ou", names));
+        assertEquals("example", DnParser.getFirstValue("cn=bob;dc=example;dc=com", "dc", names));
+        assertNull(DnParser.getFirstValue("cn=bob,ou=people", "uid", names));
+        assertNull(DnParser.getFirstValue("", "cn", names));
+    }
+
+    /**
+     * An escaped comma is part of the value, not a separator.
+     */
+    @Test
+    public void keepsEscapedCommas() {
+        assertEquals("Smith, Bob", DnParser.getFirstValue("cn=Smith\\, Bob,ou=people", "cn", names));
+        assertEquals("people", DnParser.getFirstValue("cn=Smith\\, Bob,ou=people", "ou", names));
+    }
+
+    /**
+     * An escaped plus is part of the value, while an unescaped one separates
+     * the attributes of a multi-valued RDN.
+     */
+    @Test
+    public void keepsEscapedPlusSigns() {
+        assertEquals("a+b", DnParser.getFirstValue("cn=a\\+b,ou=people", "cn", names));
+        assertEquals("bob", DnParser.getFirstValue("cn=a+uid=bob,ou=people", "uid", names));
+        assertEquals("a", DnParser.getFirstValue("cn=a+uid=bob,ou=people", "cn", names));
+    }
+
+    /**
+     * Hex escapes are decoded, including multi-byte UTF-8 characters.
+     */
+    @Test
+    public void decodesHexEscapes() {
+        assertEquals("Smith, Bob", DnParser.getFirstValue("cn=Smith\\2C Bob,ou=people", "cn", names));
+        assertEquals("Lu\u010di\u0107", DnParser.getFirstValue("cn=Lu\\C4\\8Di\\C4\\87,ou=people", "cn", names));
+        assertEquals("caf\u00e9", DnParser.getFirstValue("cn=caf\\c3\\a9", "cn", names));
+    }
+
+    /**
+     * Quoted values may contain separators, and trailing spaces are only kept
+     * when escaped.
+     */
+    @Test
+    public void handlesQuotesAndSpaces() {
+        assertEquals("Smith, Bob", DnParser.getFirstValue("cn=\"Smith, Bob\",ou=people", "cn", names));
+        assertEquals("people", DnParser.getFirstValue("cn=\"Smith, Bob\",ou=people", "ou", names));
+        assertEquals("bob", DnParser.getFirstValue("cn=bob  ,ou=people", "cn", names));
+        assertEquals("bob ", DnParser.getFirstValue("cn=bob\\ ,ou=people", "cn", names));
+    }
+
+    /**
+     * The same value from different DNs, escaped or not, is the same string.
+     */
+    @Test
+    public void returnsCanonicalStrings() {
+        String first = DnParser.getFirstValue("cn=a\\,b,ou=one", "cn", names);
+        String second = DnParser.getFirstValue("uid=x,cn=a\\2Cb,ou=two", "cn", names);
+        String third = DnParser.getFirstValue("cn=\"a,b\"", "cn", names);
+
+        assertEquals("a,b", first);
+        assertSame(first, second);
+        assertSame(first, third);
+        assertEquals(1, names.size());
+    }
+
+    /**
+     * The table keeps one copy of each name as it grows, and forgets them
+     * when cleared.
+     */
+    @Test
+    public void internsEachNameOnce() {
+        String[] first = new String[5000];
+
+        for (int x = 0; x < first.length; x++) {
+            first[x] = names.intern(new String("user" + x));
+        }
+
+        assertEquals(first.length, names.size());
+
+        for (int x = 0; x < first.length; x++) {
+            assertSame(first[x], names.intern("user" + x));
+            assertSame(first[x], names.intern("cn=user" + x + ",ou=people", 3, 3 + first[x].length()));
+        }
+
+        names.clear();
+
+        assertEquals(0, names.size());
+        assertNotSame(first[0], names.intern(new String("user0")));
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests HashStore remembering hashes between runs, and the hashes it makes.
+ */
+public class HashStoreTest {
+
+    /**
+     * The hashes file.
+     */
+    private File file;
+
+    /**
+     * Pick a hashes file which doesn't exist yet.
+     * @throws IOException On any failure
+     */
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("hashes", ".txt");
+        file.delete();
+    }
+
+    /**
+     * Remove the hashes file.
+     */
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * Hashes saved by one run are loaded by the next.
+     */
+    @Test
+    public void savesAndLoadsHashes() {
+        HashStore store = new HashStore(file);
+        store.load();
+        store.put("alpha", 1L);
+        store.put("key\twith a tab", -1L);
+        store.put("bravo", Long.MAX_VALUE);
+        store.save();
+
+        HashStore loaded = new HashStore(file);
+        loaded.load();
+
+        assertTrue(loaded.isUnchanged("alpha", 1L));
+        assertTrue(loaded.isUnchanged("key\twith a tab", -1L));
+        assertTrue(loaded.isUnchanged("bravo", Long.MAX_VALUE));
+        assertFalse(loaded.isUnchanged("alpha", 2L));
+        assertFalse(loaded.isUnchanged("charlie", 1L));
+        assertEquals(3, loaded.getSkipped());
+    }
+
+    /**
+     * A key is only unchanged once its hash has been put, and not once it
+     * has been removed.
+     */
+    @Test
+    public void putAndRemove() {
+        HashStore store = new HashStore(file);
+        store.load();
+
+        assertFalse(store.isUnchanged("alpha", 1L));
+
+        store.put("alpha", 1L);
+
+        assertTrue(store.isUnchanged("alpha", 1L));
+        assertFalse(store.isUnchanged("alpha", 2L));
+
+        store.put("alpha", 2L);
+
+        assertTrue(store.isUnchanged("alpha", 2L));
+        assertFalse(store.isUnchanged("alpha", 1L));
+
+        store.remove("alpha");
+
+        assertFalse(store.isUnchanged("alpha", 2L));
+        assertEquals(2, store.getSkipped());
+    }
+
+    /**
+     * The file is only written if a hash has changed.
+     */
+    @Test
+    public void onlySavesChanges() {
+        HashStore store = new HashStore(file);
+        store.load();
+        store.save();
+
+        assertFalse(file.exists());
+
+        store.put("alpha", 1L);
+        store.save();
+        file.delete();
+
+        // putting the same hash again isn't a change
+        store.put("alpha", 1L);
+        store.remove("bravo");
+        store.save();
+
+        assertFalse(file.exists());
+
+        store.remove("alpha");
+        store.save();
+
+        assertTrue(file.exists());
+    }
+
+    /**
+     * A file which can't be read is ignored, so everything is sent again.
+     * @throws IOException On any failure
+     */
+    @Test
+    public void ignoresCorruptFile() throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        out.write("alpha\t1\nbravo\tnot a number\n".getBytes("UTF-8"));
+        out.close();
+
+        HashStore store = new HashStore(file);
+        store.load();
+
+        assertFalse(store.isUnchanged("alpha", 1L));
+    }
+
+    /**
+     * A member list has the same hash whatever the order of its members, or
+     * if some are repeated, but a different hash if the members differ.
+     */
+    @Test
+    public void hashesMemberListsAsSets() {
+        long hash = HashStore.hash(Arrays.asList("alice", "bob", "carol"));
+
+        assertEquals(hash, HashStore.hash(Arrays.asList("carol", "alice", "bob")));
+        assertEquals(hash, HashStore.hash(Arrays.asList("bob", "alice", "carol", "alice")));
+        assertFalse(hash == HashStore.hash(Arrays.asList("alice", "bob")));
+        assertFalse(hash == HashStore.hash(Arrays.asList("alice", "bob", "dave")));
+
+        // members are separated, so can't run together
+        assertFalse(HashStore.hash(Arrays.asList("ab", "c")) == HashStore.hash(Arrays.asList("a", "bc")));
+        assertFalse(HashStore.hash(Collections.<String>emptyList()) == HashStore.hash(Arrays.asList("")));
+    }
+
+    /**
+     * Equal strings have equal hashes.
+     */
+    @Test
+    public void hashesStrings() {
+        assertEquals(HashStore.hash("{\"a\":1}"), HashStore.hash(new String("{\"a\":1}")));
+        assertFalse(HashStore.hash("{\"a\":1}") == HashStore.hash("{\"a\":2}"));
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.ldap.LdapContext;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.surevine.alfresco.PropertyWrapper;
+
+/**
+ * Tests LdapChangeFeed gathering the changes it is told about and handing
+ * them over once LDAP has been quiet for a while.  Changes are passed to the
+ * feed directly rather than by a persistent search, so no LDAP server is
+ * needed.
+ */
+public class LdapChangeFeedTest {
+
+    /**
+     * Longer than any test takes, so take() never stops waiting for it.
+     */
+    private static final long NEVER = 60 * 60 * 1000L;
+
+    /**
+     * How long LDAP must be quiet before changes are handed over.
+     */
+    private static final long QUIET = 100;
+
+    /**
+     * The connector whose changes are reported.
+     */
+    private LdapConnector ldap;
+
+    /**
+     * The feed under test, which is never started.
+     */
+    private LdapChangeFeed feed;
+
+    /**
+     * Start each test with a new feed.
+     * @throws Exception On any failure
+     */
+    @Before
+    public void setUp() throws Exception {
+        ldap = new StubConnector();
+        feed = new LdapChangeFeed(ldap, new String[] {"cn"}, NEVER);
+    }
+
+    /**
+     * Changed groups are handed over by type, without their prefix, once
+     * no more changes have arrived for the quiet period.  Groups which
+     * aren't synchronised are ignored.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void returnsChangesOnceQuiet() throws Exception {
+        feed.groupChanged("alf_site_alpha");
+        feed.groupChanged("alf_om_bravo");
+        feed.groupChanged("unrelated");
+        feed.userChanged("ann", attributes("ann", "1"));
+
+        long started = System.currentTimeMillis();
+        LdapChangeFeed.Changes changes = feed.take(QUIET, System.currentTimeMillis() + NEVER);
+
+        assertTrue(System.currentTimeMillis() - started >= QUIET - 10);
+        assertEquals(Collections.singleton("alpha"), names(changes, LdapConnector.GroupType.SITE));
+        assertEquals(Collections.singleton("bravo"), names(changes, LdapConnector.GroupType.OPEN));
+        assertTrue(changes.getGroups(LdapConnector.GroupType.CLOSED).isEmpty());
+        assertEquals(Collections.singleton("ann"), usernames(changes));
+        assertFalse(changes.isPollNeeded());
+    }
+
+    /**
+     * Changes keep arriving while LDAP is busy, so take() waits for them
+     * all, and merges repeated changes to the same group or user.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void mergesChangesUntilQuiet() throws Exception {
+        Thread changer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int x = 0; x < 5; x++) {
+                        feed.groupChanged("alf_site_alpha");
+                        feed.groupChanged("alf_site_" + x);
+                        feed.userChanged("ann", attributes("ann", String.valueOf(x)));
+                        Thread.sleep(QUIET / 4);
+                    }
+                } catch (InterruptedException e) {
+                    // the test fails on the missing changes
+                }
+            }
+        };
+
+        changer.start();
+        Thread.sleep(10);
+
+        LdapChangeFeed.Changes changes = feed.take(QUIET, System.currentTimeMillis() + NEVER);
+        changer.join();
+
+        assertEquals(new HashSet<String>(Arrays.asList("alpha", "0", "1", "2", "3", "4")),
+                names(changes, LdapConnector.GroupType.SITE));
+
+        // only the latest attributes of the user are kept
+        assertEquals(1, changes.getUsers().size());
+        assertEquals("4", changes.getUsers().iterator().next().get("description").get());
+    }
+
+    /**
+     * Once the poll deadline passes, take() hands over whatever it has,
+     * asking for a full incremental update, even if LDAP isn't quiet or
+     * nothing has changed.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void stopsWaitingAtPollDeadline() throws Exception {
+        LdapChangeFeed.Changes changes = feed.take(QUIET, System.currentTimeMillis() + 50);
+
+        assertTrue(changes.isPollNeeded());
+        assertTrue(names(changes, LdapConnector.GroupType.SITE).isEmpty());
+
+        feed.groupChanged("alf_site_alpha");
+
+        long started = System.currentTimeMillis();
+        changes = feed.take(NEVER, started + 100);
+
+        assertTrue(System.currentTimeMillis() - started < NEVER / 2);
+        assertTrue(changes.isPollNeeded());
+        assertEquals(Collections.singleton("alpha"), names(changes, LdapConnector.GroupType.SITE));
+
+        // the changes were handed over, so don't come back
+        changes = feed.take(QUIET, System.currentTimeMillis() + 50);
+
+        assertTrue(changes.getGroups(LdapConnector.GroupType.SITE).isEmpty());
+    }
+
+    /**
+     * Changes to the admins or deleters, and missed changes, ask for a full
+     * incremental update, which is handed over without waiting for LDAP to
+     * be quiet.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void asksForPollWhenNeeded() throws Exception {
+        feed.groupChanged("Administrators");
+
+        LdapChangeFeed.Changes changes = feed.take(NEVER, System.currentTimeMillis() + NEVER);
+
+        assertTrue(changes.isPollNeeded());
+        assertFalse(changes.isEmpty());
+
+        feed.changesMissed();
+
+        assertTrue(feed.take(NEVER, System.currentTimeMillis() + NEVER).isPollNeeded());
+    }
+
+    /**
+     * Changes the connector made itself, by touching a group or user, are
+     * not reported, but later changes to the same group or user are.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void dropsOwnTouches() throws Exception {
+        ldap.setRecordTouches(true);
+        ldap.touchGroup("alpha", LdapConnector.GroupType.SITE);
+        ldap.touchUser("ann");
+
+        feed.groupChanged("ALF_SITE_ALPHA");
+        feed.userChanged("ann", attributes("ann", "touched"));
+        feed.groupChanged("alf_site_bravo");
+
+        LdapChangeFeed.Changes changes = feed.take(QUIET, System.currentTimeMillis() + NEVER);
+
+        assertEquals(Collections.singleton("bravo"), names(changes, LdapConnector.GroupType.SITE));
+        assertTrue(changes.getUsers().isEmpty());
+
+        feed.groupChanged("alf_site_alpha");
+        feed.userChanged("ann", attributes("ann", "edited"));
+
+        changes = feed.take(QUIET, System.currentTimeMillis() + NEVER);
+
+        assertEquals(Collections.singleton("alpha"), names(changes, LdapConnector.GroupType.SITE));
+        assertEquals(Collections.singleton("ann"), usernames(changes));
+    }
+
+    /**
+     * Stopping the feed wakes up take().
+     * @throws Exception On any failure
+     */
+    @Test
+    public void stopEndsTake() throws Exception {
+        Thread stopper = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    // stop straight away
+                }
+                feed.stop();
+            }
+        };
+
+        stopper.start();
+
+        try {
+            feed.take(QUIET, System.currentTimeMillis() + NEVER);
+            fail("take() returned after the feed was stopped");
+        } catch (InterruptedException e) {
+            assertEquals("Change feed stopped", e.getMessage());
+        }
+
+        stopper.join();
+    }
+
+    /**
+     * @param username A user
+     * @param description Something to tell versions of the user apart
+     * @return Attributes of the user
+     */
+    private static Attributes attributes(final String username, final String description) {
+        Attributes attributes = new BasicAttributes("cn", username);
+        attributes.put("description", description);
+        return attributes;
+    }
+
+    /**
+     * @param changes Some changes
+     * @param gt A type of group
+     * @return Names of the changed groups of that type
+     */
+    private static Collection<String> names(final LdapChangeFeed.Changes changes, final LdapConnector.GroupType gt) {
+        return new HashSet<String>(changes.getGroups(gt));
+    }
+
+    /**
+     * @param changes Some changes
+     * @return Names of the changed users
+     * @throws Exception If a user has no name
+     */
+    private static Collection<String> usernames(final LdapChangeFeed.Changes changes) throws Exception {
+        Collection<String> result = new HashSet<String>();
+        Iterator<Attributes> iter = changes.getUsers().iterator();
+
+        while (iter.hasNext()) {
+            result.add(iter.next().get("cn").get().toString());
+        }
+
+        return result;
+    }
+
+    /**
+     * A connector whose touches succeed without a server.
+     */
+    private static class StubConnector extends LdapConnector {
+
+        /**
+         * @throws Exception If the test properties can't be read
+         */
+        StubConnector() throws Exception {
+            super(new PropertyWrapper("ldap2alfresco-test"));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected LdapContext getDirectoryContext() {
+            return (LdapContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] {LdapContext.class}, new InvocationHandler() {
+                        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                            if (method.getName().equals("modifyAttributes")) {
+                                return null;
+                            }
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected String getFullDnForUser(final String userName) {
+            return "cn=" + userName + ",ou=people,dc=test,dc=org,dc=uk";
+        }
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.ldap.LdapContext;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests LdapContextPool checking, expiring and waiting for contexts.  The
+ * pool hands out stub contexts, so no LDAP server is needed.
+ */
+public class LdapContextPoolTest {
+
+    /**
+     * Longer than any test takes, so contexts never expire and borrowers
+     * never give up.
+     */
+    private static final long NEVER = 60 * 60 * 1000L;
+
+    /**
+     * The pool under test, closed after each test.
+     */
+    private StubPool pool;
+
+    /**
+     * Close the pool.
+     */
+    @After
+    public void tearDown() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    /**
+     * A released context is handed out again, the most recently released
+     * first.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void reusesMostRecentlyReleased() throws Exception {
+        pool = new StubPool(2, NEVER, 0, 0, true);
+
+        LdapContext first = pool.borrow();
+        LdapContext second = pool.borrow();
+
+        pool.release(first);
+        pool.release(second);
+
+        assertSame(second, pool.borrow());
+        assertSame(first, pool.borrow());
+        assertEquals(2, pool.getOpened().size());
+    }
+
+    /**
+     * With validation on, an idle context which no longer works is closed
+     * and replaced rather than handed out.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void replacesBrokenContextOnBorrow() throws Exception {
+        pool = new StubPool(1, NEVER, 0, 0, true);
+
+        LdapContext broken = pool.borrow();
+        pool.release(broken);
+        pool.getStub(broken).broken = true;
+
+        LdapContext replacement = pool.borrow();
+
+        assertNotSame(broken, replacement);
+        assertTrue(pool.getStub(broken).closed);
+        assertEquals(1, pool.getStub(broken).validations);
+
+        // a newly opened context isn't checked
+        assertEquals(0, pool.getStub(replacement).validations);
+
+        // the broken context's slot was freed for its replacement
+        assertEquals(2, pool.getOpened().size());
+    }
+
+    /**
+     * With validation off, idle contexts are handed out unchecked.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void skipsValidationWhenOff() throws Exception {
+        pool = new StubPool(1, NEVER, 0, 0, false);
+
+        LdapContext broken = pool.borrow();
+        pool.release(broken);
+        pool.getStub(broken).broken = true;
+
+        assertSame(broken, pool.borrow());
+        assertEquals(0, pool.getStub(broken).validations);
+    }
+
+    /**
+     * A context left idle too long is closed and replaced.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void closesIdleContexts() throws Exception {
+        pool = new StubPool(1, NEVER, 50, 0, true);
+
+        LdapContext stale = pool.borrow();
+        pool.release(stale);
+
+        Thread.sleep(100);
+
+        LdapContext fresh = pool.borrow();
+
+        assertNotSame(stale, fresh);
+        assertTrue(pool.getStub(stale).closed);
+
+        // used again straight away, so not idle for long
+        pool.release(fresh);
+
+        assertSame(fresh, pool.borrow());
+    }
+
+    /**
+     * A context open longer than its maximum lifetime is closed when it is
+     * released, and when found idle.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void closesContextsPastMaxLifetime() throws Exception {
+        pool = new StubPool(2, NEVER, 0, 50, true);
+
+        LdapContext busy = pool.borrow();
+        LdapContext idle = pool.borrow();
+        pool.release(idle);
+
+        Thread.sleep(100);
+
+        pool.release(busy);
+
+        assertTrue(pool.getStub(busy).closed);
+
+        LdapContext fresh = pool.borrow();
+
+        assertTrue(pool.getStub(idle).closed);
+        assertNotSame(busy, fresh);
+        assertNotSame(idle, fresh);
+        assertEquals(3, pool.getOpened().size());
+    }
+
+    /**
+     * When every context is in use, a borrower waits for one to be
+     * released.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void waitsForReleasedContext() throws Exception {
+        pool = new StubPool(1, NEVER, 0, 0, true);
+
+        final LdapContext held = pool.borrow();
+        final CountDownLatch borrowed = new CountDownLatch(1);
+        final AtomicReference<Object> result = new AtomicReference<Object>();
+
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result.set(pool.borrow());
+                } catch (LdapException e) {
+                    result.set(e);
+                }
+                borrowed.countDown();
+            }
+        };
+
+        waiter.start();
+
+        assertFalse(borrowed.await(100, TimeUnit.MILLISECONDS));
+
+        pool.release(held);
+
+        assertTrue(borrowed.await(5, TimeUnit.SECONDS));
+        assertSame(held, result.get());
+        waiter.join();
+    }
+
+    /**
+     * A borrower gives up once no context has been released in time.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void timesOutWaitingForContext() throws Exception {
+        pool = new StubPool(1, 100, 0, 0, true);
+
+        LdapContext held = pool.borrow();
+        long started = System.currentTimeMillis();
+
+        try {
+            pool.borrow();
+            fail("Borrowed more contexts than the pool holds");
+        } catch (LdapException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Timed out"));
+        }
+
+        assertTrue(System.currentTimeMillis() - started >= 100);
+
+        // an invalidated context frees its slot
+        pool.invalidate(held);
+
+        assertTrue(pool.getStub(held).closed);
+        assertNotSame(held, pool.borrow());
+    }
+
+    /**
+     * A pool which opens stub contexts.
+     */
+    private static class StubPool extends LdapContextPool {
+
+        /**
+         * Every context opened, in the order they were opened.
+         */
+        private final List<LdapContext> opened = new ArrayList<LdapContext>();
+
+        /**
+         * @param maxSize Maximum number of contexts open at once
+         * @param waitTimeout How long to wait for a context, in milliseconds
+         * @param idleTimeout How long a context may sit idle, in milliseconds, or zero for no limit
+         * @param maxLifetime How long a context may be used for, in milliseconds, or zero for no limit
+         * @param validateOnBorrow Whether to check idle contexts still work before handing them out
+         */
+        StubPool(final int maxSize, final long waitTimeout, final long idleTimeout, final long maxLifetime,
+                final boolean validateOnBorrow) {
+            super(new Hashtable<String, String>(), maxSize, waitTimeout, idleTimeout, maxLifetime, validateOnBorrow);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        LdapContext connect() {
+            LdapContext context = (LdapContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] {LdapContext.class}, new StubContext());
+
+            synchronized (opened) {
+                opened.add(context);
+            }
+
+            return context;
+        }
+
+        /**
+         * @return Every context opened, in the order they were opened
+         */
+        List<LdapContext> getOpened() {
+            synchronized (opened) {
+                return new ArrayList<LdapContext>(opened);
+            }
+        }
+
+        /**
+         * @param context A context opened by the pool
+         * @return Its state
+         */
+        StubContext getStub(final LdapContext context) {
+            return (StubContext) Proxy.getInvocationHandler(context);
+        }
+    }
+
+    /**
+     * A context which only answers the pool's validation read, and can be
+     * made to fail it.
+     */
+    private static class StubContext implements InvocationHandler {
+
+        /**
+         * Whether the connection has been dropped.
+         */
+        private volatile boolean broken = false;
+
+        /**
+         * Whether the context has been closed.
+         */
+        private volatile boolean closed = false;
+
+        /**
+         * Number of times the context has been checked.
+         */
+        private volatile int validations = 0;
+
+        /**
+         * {@inheritDoc}
+         */
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws NamingException {
+            String name = method.getName();
+
+            if (name.equals("close")) {
+                closed = true;
+                return null;
+            } else if (name.equals("hashCode")) {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            } else if (name.equals("equals")) {
+                return Boolean.valueOf(proxy == args[0]);
+            } else if (name.equals("toString")) {
+                return "StubContext@" + Integer.toHexString(System.identityHashCode(proxy));
+            } else if (name.equals("getAttributes")) {
+                validations++;
+
+                if (broken) {
+                    throw new CommunicationException("Connection dropped");
+                }
+                return new BasicAttributes();
+            }
+
+            throw new UnsupportedOperationException(name);
+        }
+    }
+}
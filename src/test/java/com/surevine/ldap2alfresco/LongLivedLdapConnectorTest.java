@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapContext;
+import javax.naming.spi.InitialContextFactory;
+import javax.naming.spi.InitialContextFactoryBuilder;
+import javax.naming.spi.NamingManager;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.surevine.alfresco.PropertyWrapper;
+
+/**
+ * Drives a LongLivedLdapConnector from several threads at once against a
+ * fake directory, which notices if a connection is ever used by two threads
+ * at the same time.
+ */
+public class LongLivedLdapConnectorTest {
+
+    /**
+     * Number of threads using the connector at once.
+     */
+    private static final int THREADS = 8;
+
+    /**
+     * Number of times each thread goes round its calls.
+     */
+    private static final int ROUNDS = 50;
+
+    /**
+     * Site groups in the fake directory, without their prefix.
+     */
+    private static final Collection<String> SITES = Arrays.asList("alpha", "bravo", "charlie", "delta");
+
+    /**
+     * The fake directory, which every InitialLdapContext connects to.
+     */
+    private static final FakeDirectory DIRECTORY = new FakeDirectory();
+
+    /**
+     * Make new JNDI contexts connect to the fake directory.
+     * @throws NamingException If JNDI has already been set up some other way
+     */
+    @BeforeClass
+    public static void installDirectory() throws NamingException {
+        if (!NamingManager.hasInitialContextFactoryBuilder()) {
+            NamingManager.setInitialContextFactoryBuilder(DIRECTORY);
+        }
+    }
+
+    /**
+     * Forget the connections made by earlier tests.
+     */
+    @Before
+    public void resetDirectory() {
+        DIRECTORY.reset();
+    }
+
+    /**
+     * With a connection for each thread, no connection is ever used by two
+     * threads at once and every call gets its answer.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void sharesConnectionsBetweenThreads() throws Exception {
+        LongLivedLdapConnector ldap = new LongLivedLdapConnector(new PropertyWrapper("ldap2alfresco-test"), THREADS);
+
+        runThreads(ldap);
+        ldap.close();
+
+        assertEquals("connections used by two threads at once", 0, DIRECTORY.overlaps.get());
+        assertEquals(THREADS * ROUNDS, DIRECTORY.touches.get());
+        assertTrue("more connections than threads", DIRECTORY.opened.get() <= THREADS);
+        assertEquals("connections left open", DIRECTORY.opened.get(), DIRECTORY.closed.get());
+    }
+
+    /**
+     * With fewer connections than threads, threads wait for each other's
+     * connections rather than sharing them.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void waitsForConnectionsWhenThePoolIsFull() throws Exception {
+        // ldap.pool.size in the test properties is 2
+        LongLivedLdapConnector ldap = new LongLivedLdapConnector(new PropertyWrapper("ldap2alfresco-test"), 1);
+
+        runThreads(ldap);
+        ldap.close();
+
+        assertEquals("connections used by two threads at once", 0, DIRECTORY.overlaps.get());
+        assertEquals(THREADS * ROUNDS, DIRECTORY.touches.get());
+        assertTrue("more connections than the pool allows", DIRECTORY.opened.get() <= 2);
+        assertEquals("connections left open", DIRECTORY.opened.get(), DIRECTORY.closed.get());
+    }
+
+    /**
+     * Search, look up and modify the directory from THREADS threads at once,
+     * checking every answer.
+     * @param ldap The connector
+     * @throws Exception If any thread fails
+     */
+    private void runThreads(final LdapConnector ldap) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+
+        try {
+            for (int x = 0; x < THREADS; x++) {
+                results.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        start.await();
+
+                        for (int round = 0; round < ROUNDS; round++) {
+                            assertEquals(new HashSet<String>(SITES),
+                                    new HashSet<String>(ldap.getAllGroups(LdapConnector.GroupType.SITE)));
+                            assertFalse(ldap.lockExists());
+                            ldap.touchGroup("alpha", LdapConnector.GroupType.SITE);
+                        }
+
+                        return null;
+                    }
+                }));
+            }
+
+            start.countDown();
+
+            Iterator<Future<Void>> iter = results.iterator();
+
+            while (iter.hasNext()) {
+                iter.next().get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A directory holding the site groups, whose connections are fake
+     * LdapContexts.
+     */
+    private static final class FakeDirectory implements InitialContextFactoryBuilder, InitialContextFactory {
+
+        /**
+         * Number of connections opened.
+         */
+        private final AtomicInteger opened = new AtomicInteger();
+
+        /**
+         * Number of connections closed.
+         */
+        private final AtomicInteger closed = new AtomicInteger();
+
+        /**
+         * Number of times a connection was used while another thread was
+         * using it.
+         */
+        private final AtomicInteger overlaps = new AtomicInteger();
+
+        /**
+         * Number of entries modified.
+         */
+        private final AtomicInteger touches = new AtomicInteger();
+
+        /**
+         * Forget all the counts.
+         */
+        void reset() {
+            opened.set(0);
+            closed.set(0);
+            overlaps.set(0);
+            touches.set(0);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public InitialContextFactory createInitialContextFactory(final Hashtable<?, ?> environment) {
+            return this;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Context getInitialContext(final Hashtable<?, ?> environment) {
+            opened.incrementAndGet();
+
+            return (Context) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] {LdapContext.class}, new FakeConnection());
+        }
+
+        /**
+         * A single connection to the directory.
+         */
+        private final class FakeConnection implements InvocationHandler {
+
+            /**
+             * Thread using the connection, if any.
+             */
+            private final AtomicReference<Thread> user = new AtomicReference<Thread>();
+
+            /**
+             * {@inheritDoc}
+             */
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                String name = method.getName();
+
+                if (name.equals("close")) {
+                    closed.incrementAndGet();
+                    return null;
+                } else if (name.equals("hashCode")) {
+                    return Integer.valueOf(System.identityHashCode(proxy));
+                } else if (name.equals("equals")) {
+                    return Boolean.valueOf(proxy == args[0]);
+                } else if (name.equals("toString")) {
+                    return "FakeConnection@" + Integer.toHexString(System.identityHashCode(proxy));
+                }
+
+                Thread current = Thread.currentThread();
+
+                if (!user.compareAndSet(null, current)) {
+                    overlaps.incrementAndGet();
+                }
+
+                try {
+                    // give other threads a chance to use the connection too
+                    Thread.sleep(1);
+
+                    if (name.equals("search")) {
+                        return search();
+                    } else if (name.equals("lookup")) {
+                        throw new NameNotFoundException(String.valueOf(args[0]));
+                    } else if (name.equals("modifyAttributes")) {
+                        touches.incrementAndGet();
+                        return null;
+                    }
+
+                    throw new UnsupportedOperationException(name);
+                } finally {
+                    user.compareAndSet(current, null);
+                }
+            }
+
+            /**
+             * @return Every site group
+             */
+            private NamingEnumeration<SearchResult> search() {
+                final Iterator<String> iter = SITES.iterator();
+
+                return new NamingEnumeration<SearchResult>() {
+                    public boolean hasMore() {
+                        return iter.hasNext();
+                    }
+
+                    public SearchResult next() {
+                        String cn = "alf_site_" + iter.next();
+                        return new SearchResult("cn=" + cn, null, new BasicAttributes("cn", cn));
+                    }
+
+                    public boolean hasMoreElements() {
+                        return hasMore();
+                    }
+
+                    public SearchResult nextElement() {
+                        return next();
+                    }
+
+                    public void close() {
+                        // nothing to free
+                    }
+                };
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests MemberBitmap in both its sparse and dense encodings, and with sets
+ * which span the boundaries between the 64 bit words of the dense one.
+ */
+public class MemberBitmapTest {
+
+    /**
+     * The IDs are sorted and repeats dropped.
+     */
+    @Test
+    public void sortsAndRemovesRepeats() {
+        MemberBitmap set = bitmap(64, 5, 3, 5, 64);
+
+        assertEquals(3, set.cardinality());
+        assertArrayEquals(new int[] {3, 5, 64}, set.toArray());
+    }
+
+    /**
+     * An empty set is the shared empty set.
+     */
+    @Test
+    public void emptySetIsShared() {
+        assertSame(MemberBitmap.EMPTY, bitmap());
+        assertSame(MemberBitmap.EMPTY, range(0, 200).andNot(range(0, 200)));
+        assertEquals(0, MemberBitmap.EMPTY.cardinality());
+    }
+
+    /**
+     * Membership is right either side of each word boundary.
+     */
+    @Test
+    public void containsAcrossWordBoundaries() {
+        MemberBitmap dense = range(0, 200);
+        MemberBitmap sparse = bitmap(63, 64, 127, 128);
+
+        for (int id = 60; id < 132; id++) {
+            assertTrue(dense.contains(id));
+            assertEquals(id == 63 || id == 64 || id == 127 || id == 128, sparse.contains(id));
+        }
+
+        assertFalse(dense.contains(200));
+        assertFalse(dense.contains(1000));
+        assertFalse(dense.contains(-1));
+        assertFalse(sparse.contains(-1));
+    }
+
+    /**
+     * The intersection of two dense sets of different lengths.
+     */
+    @Test
+    public void andOfDenseSets() {
+        MemberBitmap result = range(0, 200).and(range(60, 140));
+
+        assertEquals(80, result.cardinality());
+        assertArrayEquals(toArray(60, 140), result.toArray());
+        assertArrayEquals(toArray(60, 140), range(60, 140).and(range(0, 200)).toArray());
+    }
+
+    /**
+     * The difference of two dense sets, leaving parts of words at either end.
+     */
+    @Test
+    public void andNotOfDenseSets() {
+        MemberBitmap result = range(0, 200).andNot(range(60, 140));
+
+        assertEquals(120, result.cardinality());
+        assertArrayEquals(concat(toArray(0, 60), toArray(140, 200)), result.toArray());
+
+        // the longer set's extra words are kept
+        assertArrayEquals(toArray(140, 200), range(0, 200).andNot(range(0, 140)).toArray());
+        assertEquals(0, range(0, 140).andNot(range(0, 200)).cardinality());
+    }
+
+    /**
+     * The union of two overlapping dense sets of different lengths.
+     */
+    @Test
+    public void orOfDenseSets() {
+        MemberBitmap result = range(0, 130).or(range(120, 300));
+
+        assertEquals(300, result.cardinality());
+        assertArrayEquals(toArray(0, 300), result.toArray());
+        assertArrayEquals(toArray(0, 300), range(120, 300).or(range(0, 130)).toArray());
+    }
+
+    /**
+     * Operations between a sparse and a dense set, in both directions.
+     */
+    @Test
+    public void operationsBetweenSparseAndDenseSets() {
+        MemberBitmap dense = range(0, 200);
+        MemberBitmap sparse = bitmap(63, 64, 1000);
+
+        assertArrayEquals(new int[] {63, 64}, sparse.and(dense).toArray());
+        assertArrayEquals(new int[] {63, 64}, dense.and(sparse).toArray());
+
+        assertArrayEquals(new int[] {1000}, sparse.andNot(dense).toArray());
+        assertArrayEquals(concat(toArray(0, 63), toArray(65, 200)), dense.andNot(sparse).toArray());
+
+        assertEquals(201, dense.or(sparse).cardinality());
+        assertArrayEquals(concat(toArray(0, 200), new int[] {1000}), sparse.or(dense).toArray());
+    }
+
+    /**
+     * Operations between two sparse sets.
+     */
+    @Test
+    public void operationsBetweenSparseSets() {
+        MemberBitmap first = bitmap(1, 63, 64, 500);
+        MemberBitmap second = bitmap(64, 65, 500, 9000);
+
+        assertArrayEquals(new int[] {64, 500}, first.and(second).toArray());
+        assertArrayEquals(new int[] {1, 63}, first.andNot(second).toArray());
+        assertArrayEquals(new int[] {1, 63, 64, 65, 500, 9000}, first.or(second).toArray());
+        assertEquals(6, first.or(second).cardinality());
+    }
+
+    /**
+     * Both encodings are read back as written.
+     * @throws IOException On any failure
+     */
+    @Test
+    public void readsBackWhatItWrites() throws IOException {
+        MemberBitmap[] sets = {MemberBitmap.EMPTY, bitmap(63, 64, 1000), range(0, 200)};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        for (int x = 0; x < sets.length; x++) {
+            sets[x].writeTo(out);
+        }
+
+        out.close();
+
+        ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray());
+
+        // skipping a set leaves the buffer at the next one
+        MemberBitmap.skip(in);
+
+        for (int x = 1; x < sets.length; x++) {
+            assertArrayEquals(sets[x].toArray(), MemberBitmap.readFrom(in).toArray());
+        }
+
+        assertEquals(0, in.remaining());
+    }
+
+    /**
+     * @param ids Some IDs
+     * @return Set of the IDs
+     */
+    private static MemberBitmap bitmap(final int... ids) {
+        return MemberBitmap.of(ids, ids.length);
+    }
+
+    /**
+     * @param from First ID
+     * @param to One past the last ID
+     * @return Set of the IDs, which is dense if there are enough of them
+     */
+    private static MemberBitmap range(final int from, final int to) {
+        int[] ids = toArray(from, to);
+        return MemberBitmap.of(ids, ids.length);
+    }
+
+    /**
+     * @param from First ID
+     * @param to One past the last ID
+     * @return The IDs in ascending order
+     */
+    private static int[] toArray(final int from, final int to) {
+        int[] ids = new int[to - from];
+
+        for (int x = 0; x < ids.length; x++) {
+            ids[x] = from + x;
+        }
+
+        return ids;
+    }
+
+    /**
+     * @param first Some IDs
+     * @param second Some more IDs
+     * @return All of them, in order
+     */
+    private static int[] concat(final int[] first, final int[] second) {
+        int[] result = new int[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.surevine.alfresco.AlfrescoConnector.RoleType;
+
+/**
+ * Tests MembershipDiff with and without roles, and with and without knowing
+ * who the managers were on the last run.
+ */
+public class MembershipDiffTest {
+
+    /**
+     * Gives the users the IDs 0 (alice) to 4 (eve).
+     */
+    private MembershipStore store;
+
+    /**
+     * Create the users.
+     */
+    @Before
+    public void setUp() {
+        store = new MembershipStore();
+        store.toBitmap(Arrays.asList("alice", "bob", "carol", "dave", "eve"));
+    }
+
+    /**
+     * Members are added and removed, and nobody's role changes without roles.
+     */
+    @Test
+    public void findsAddedAndRemovedMembers() {
+        MembershipDiff diff = new MembershipDiff(bitmap(0, 1, 2), bitmap(1, 2, 3));
+
+        assertArrayEquals(new int[] {0}, diff.getAdded().toArray());
+        assertArrayEquals(new int[] {3}, diff.getRemoved().toArray());
+        assertEquals(0, diff.getRoleChanged().cardinality());
+        assertFalse(diff.isEmpty());
+    }
+
+    /**
+     * Nothing changes when the group is already as it should be.
+     */
+    @Test
+    public void isEmptyWhenNothingChanges() {
+        assertTrue(new MembershipDiff(bitmap(0, 1), bitmap(0, 1)).isEmpty());
+        assertTrue(new MembershipDiff(bitmap(0, 1), bitmap(0, 1), bitmap(0), bitmap(0)).isEmpty());
+    }
+
+    /**
+     * With the last run's managers known, only members who stay and gained or
+     * lost the manager role have their role changed.
+     */
+    @Test
+    public void changesRolesOfMembersWhoseRoleChanged() {
+        // alice stays a manager, bob becomes one, carol stops being one,
+        // dave stays a collaborator and eve is a new manager
+        MembershipDiff diff = new MembershipDiff(bitmap(0, 1, 2, 3, 4), bitmap(0, 1, 2, 3),
+                bitmap(0, 1, 4), bitmap(0, 2));
+
+        assertArrayEquals(new int[] {4}, diff.getAdded().toArray());
+        assertEquals(0, diff.getRemoved().cardinality());
+        assertArrayEquals(new int[] {1, 2}, diff.getRoleChanged().toArray());
+    }
+
+    /**
+     * A member who leaves isn't given a role, even if they were a manager.
+     */
+    @Test
+    public void doesNotChangeRolesOfRemovedMembers() {
+        MembershipDiff diff = new MembershipDiff(bitmap(0), bitmap(0, 1), bitmap(0), bitmap(1));
+
+        assertArrayEquals(new int[] {1}, diff.getRemoved().toArray());
+        assertArrayEquals(new int[] {0}, diff.getRoleChanged().toArray());
+    }
+
+    /**
+     * Without the last run's managers every member who stays has their role
+     * set.
+     */
+    @Test
+    public void changesRolesOfEveryoneWhenManagersAreUnknown() {
+        MembershipDiff diff = new MembershipDiff(bitmap(0, 1, 2, 4), bitmap(0, 1, 2, 3),
+                bitmap(0, 4), null);
+
+        assertArrayEquals(new int[] {4}, diff.getAdded().toArray());
+        assertArrayEquals(new int[] {3}, diff.getRemoved().toArray());
+        assertArrayEquals(new int[] {0, 1, 2}, diff.getRoleChanged().toArray());
+        assertFalse(new MembershipDiff(bitmap(0), bitmap(0), bitmap(0), null).isEmpty());
+    }
+
+    /**
+     * New members and those whose role changed are added with their role, in
+     * order of ID.
+     */
+    @Test
+    public void givesAdditionsTheirRoles() {
+        MembershipDiff diff = new MembershipDiff(bitmap(0, 1, 2, 3, 4), bitmap(0, 1, 2, 3),
+                bitmap(0, 1, 4), bitmap(0, 2));
+
+        Map<String, RoleType> expected = new LinkedHashMap<String, RoleType>();
+        expected.put("bob", RoleType.MANAGER);
+        expected.put("carol", RoleType.COLLABORATOR);
+        expected.put("eve", RoleType.MANAGER);
+
+        Map<String, RoleType> additions = diff.getAdditions(store, RoleType.COLLABORATOR, RoleType.MANAGER);
+
+        assertEquals(expected, additions);
+        assertEquals(Arrays.asList("bob", "carol", "eve"), Arrays.asList(additions.keySet().toArray()));
+    }
+
+    /**
+     * Without roles every new member is added with the member role.
+     */
+    @Test
+    public void addsMembersWithoutRoles() {
+        MembershipDiff diff = new MembershipDiff(bitmap(0, 3), bitmap(0));
+
+        Map<String, RoleType> additions = diff.getAdditions(store, RoleType.CONSUMER, RoleType.MANAGER);
+
+        assertEquals(1, additions.size());
+        assertEquals(RoleType.CONSUMER, additions.get("dave"));
+    }
+
+    /**
+     * @param ids Some user IDs
+     * @return Set of the IDs
+     */
+    private static MemberBitmap bitmap(final int... ids) {
+        return MemberBitmap.of(ids, ids.length);
+    }
+}
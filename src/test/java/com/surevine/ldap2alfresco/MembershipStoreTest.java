@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.junit.Test;
+
+/**
+ * Tests MembershipStore, the username IDs and group bitmaps it is built from.
+ */
+public class MembershipStoreTest {
+
+    /**
+     * Each username keeps the ID it was first given.
+     */
+    @Test
+    public void givesEachUsernameOneId() {
+        MembershipStore store = new MembershipStore();
+
+        assertEquals(0, store.getId("alice"));
+        assertEquals(1, store.getId("bob"));
+        assertEquals(0, store.getId("alice"));
+        assertEquals(2, store.getUserCount());
+    }
+
+    /**
+     * Usernames are turned into a bitmap and back.
+     */
+    @Test
+    public void convertsBetweenNamesAndBitmaps() {
+        MembershipStore store = new MembershipStore();
+        Collection<String> names = Arrays.asList("carol", "alice", "bob", "alice");
+
+        MemberBitmap members = store.toBitmap(names);
+
+        assertEquals(3, members.cardinality());
+        assertEquals(Arrays.asList("carol", "alice", "bob"), store.toNames(members));
+    }
+
+    /**
+     * Groups written out are read back, with the same usernames and IDs.
+     * @throws IOException On any failure
+     */
+    @Test
+    public void readsBackWhatItWrites() throws IOException {
+        MembershipStore store = new MembershipStore();
+        store.putGroup("small", store.toBitmap(Arrays.asList("alice", "bob")));
+
+        // enough members across enough words to be held densely
+        String[] many = new String[200];
+
+        for (int x = 0; x < many.length; x++) {
+            many[x] = "user" + x;
+        }
+
+        store.putGroup("large", store.toBitmap(Arrays.asList(many)));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        store.writeTo(out);
+        out.close();
+
+        MembershipStore copy = new MembershipStore();
+        copy.readFrom(ByteBuffer.wrap(bytes.toByteArray()));
+
+        assertEquals(store.getUserCount(), copy.getUserCount());
+        assertEquals(2, copy.getGroupCount());
+        assertEquals(Arrays.asList("alice", "bob"), copy.toNames(copy.getGroup("small")));
+        assertArrayEquals(store.getGroup("large").toArray(), copy.getGroup("large").toArray());
+        assertEquals(store.getId("user150"), copy.getId("user150"));
+        assertNull(copy.getGroup("missing"));
+    }
+
+    /**
+     * Only the usernames still in a group are written, and the groups,
+     * including one left in the mapped file, are renumbered to match.  The
+     * store itself keeps its IDs.
+     * @throws IOException On any failure
+     */
+    @Test
+    public void writesOnlyUsersInAGroup() throws IOException {
+        MembershipStore store = new MembershipStore();
+        store.putGroup("old", store.toBitmap(Arrays.asList("alice", "bob", "carol")));
+        store.putGroup("new", store.toBitmap(Arrays.asList("carol", "dave")));
+
+        // read back, so "old" is left in the mapped file
+        MembershipStore mapped = new MembershipStore();
+        mapped.readFrom(ByteBuffer.wrap(write(store)));
+        mapped.putGroup("new", mapped.toBitmap(Arrays.asList("dave", "erin")));
+        mapped.removeGroup("gone");
+        mapped.getId("frank");
+
+        MembershipStore copy = new MembershipStore();
+        copy.readFrom(ByteBuffer.wrap(write(mapped)));
+
+        assertEquals(6, mapped.getUserCount());
+        assertEquals(5, copy.getUserCount());
+        assertEquals(Arrays.asList("alice", "bob", "carol"), copy.toNames(copy.getGroup("old")));
+        assertEquals(Arrays.asList("dave", "erin"), copy.toNames(copy.getGroup("new")));
+        assertEquals(3, copy.getId("dave"));
+        assertEquals(5, copy.getId("frank"));
+
+        // a user who leaves every group is dropped
+        copy.putGroup("old", copy.toBitmap(Arrays.asList("alice", "carol")));
+        copy.removeGroup("new");
+
+        MembershipStore compacted = new MembershipStore();
+        compacted.readFrom(ByteBuffer.wrap(write(copy)));
+
+        assertEquals(2, compacted.getUserCount());
+        assertEquals(Arrays.asList("alice", "carol"), compacted.toNames(compacted.getGroup("old")));
+        assertEquals(1, compacted.getGroupCount());
+    }
+
+    /**
+     * A truncated store is rejected, and leaves the store empty.
+     * @throws IOException On any failure writing the store
+     */
+    @Test
+    public void rejectsTruncatedData() throws IOException {
+        MembershipStore store = new MembershipStore();
+        store.putGroup("site", store.toBitmap(Arrays.asList("alice", "bob")));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        store.writeTo(out);
+        out.close();
+
+        byte[] data = bytes.toByteArray();
+        MembershipStore copy = new MembershipStore();
+
+        try {
+            copy.readFrom(ByteBuffer.wrap(Arrays.copyOf(data, data.length - 3)));
+            fail("Truncated store was read");
+        } catch (IOException e) {
+            assertEquals(0, copy.getUserCount());
+            assertEquals(0, copy.getGroupCount());
+        }
+    }
+
+    /**
+     * @param store A store
+     * @return The store as written by writeTo()
+     * @throws IOException On any failure
+     */
+    private static byte[] write(final MembershipStore store) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        store.writeTo(out);
+        out.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests PhaseScheduler running phases after their dependencies, at the same
+ * time where they can, and stopping once a phase fails.
+ */
+public class PhaseSchedulerTest {
+
+    /**
+     * The scheduler under test.
+     */
+    private PhaseScheduler scheduler;
+
+    /**
+     * What each phase did, in the order it happened.
+     */
+    private final List<String> events = new ArrayList<String>();
+
+    /**
+     * Start each test with a new scheduler.
+     */
+    @Before
+    public void setUp() {
+        scheduler = new PhaseScheduler();
+        events.clear();
+    }
+
+    /**
+     * On one thread the phases run one after another in the order they
+     * were added.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void runsInOrderOnOneThread() throws Exception {
+        scheduler.add("a", new Recorder("a", 0));
+        scheduler.add("b", new Recorder("b", 0));
+        scheduler.add("c", new Recorder("c", 0), "a");
+
+        scheduler.run(1);
+
+        assertEquals(Arrays.asList("start a", "end a", "start b", "end b", "start c", "end c"), events);
+    }
+
+    /**
+     * On several threads, phases which don't depend on each other run at the
+     * same time, and each phase only starts once every phase it depends on
+     * has finished.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void runsDependenciesFirstOnSeveralThreads() throws Exception {
+        // a and b each wait for the other, so only finish if run together
+        final CyclicBarrier together = new CyclicBarrier(2);
+
+        scheduler.add("a", new Recorder("a", 50) {
+            public void run() throws Exception {
+                together.await(5, TimeUnit.SECONDS);
+                super.run();
+            }
+        });
+        scheduler.add("b", new Recorder("b", 10) {
+            public void run() throws Exception {
+                together.await(5, TimeUnit.SECONDS);
+                super.run();
+            }
+        });
+        scheduler.add("c", new Recorder("c", 10), "a", "b");
+        scheduler.add("d", new Recorder("d", 0), "b");
+        scheduler.add("e", new Recorder("e", 0), "c", "d");
+
+        scheduler.run(4);
+
+        assertEquals(10, events.size());
+        assertBefore("end a", "start c");
+        assertBefore("end b", "start c");
+        assertBefore("end b", "start d");
+        assertBefore("end c", "start e");
+        assertBefore("end d", "start e");
+    }
+
+    /**
+     * Once a phase fails no more phases are started, the phases already
+     * running finish, and the first failure is thrown.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void stopsAfterFirstFailure() throws Exception {
+        final CountDownLatch failed = new CountDownLatch(1);
+        final Exception first = new Exception("first");
+        final Exception second = new Exception("second");
+
+        scheduler.add("bad", new PhaseScheduler.Phase() {
+            public void run() throws Exception {
+                failed.countDown();
+                throw first;
+            }
+        });
+        scheduler.add("slow", new Recorder("slow", 200) {
+            public void run() throws Exception {
+                failed.await(5, TimeUnit.SECONDS);
+                super.run();
+            }
+        });
+        scheduler.add("slowBad", new PhaseScheduler.Phase() {
+            public void run() throws Exception {
+                failed.await(5, TimeUnit.SECONDS);
+                Thread.sleep(200);
+                throw second;
+            }
+        });
+        scheduler.add("after", new Recorder("after", 0), "slow");
+
+        try {
+            scheduler.run(3);
+            fail("Expected the first failure");
+        } catch (ExecutionException e) {
+            assertSame(first, e.getCause());
+        }
+
+        assertEquals(Arrays.asList("start slow", "end slow"), events);
+    }
+
+    /**
+     * On one thread the phases after a failure aren't run.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void stopsAfterFailureOnOneThread() throws Exception {
+        final Exception failure = new Exception("failed");
+
+        scheduler.add("bad", new PhaseScheduler.Phase() {
+            public void run() throws Exception {
+                throw failure;
+            }
+        });
+        scheduler.add("after", new Recorder("after", 0));
+
+        try {
+            scheduler.run(1);
+            fail("Expected the failure");
+        } catch (ExecutionException e) {
+            assertSame(failure, e.getCause());
+        }
+
+        assertTrue(events.isEmpty());
+    }
+
+    /**
+     * A phase can't be added twice.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicatePhase() {
+        scheduler.add("a", new Recorder("a", 0));
+        scheduler.add("a", new Recorder("a", 0));
+    }
+
+    /**
+     * A phase can't depend on one which hasn't been added.
+     */
+    @Test
+    public void rejectsUnknownDependency() {
+        scheduler.add("a", new Recorder("a", 0));
+
+        try {
+            scheduler.add("b", new Recorder("b", 0), "a", "c");
+            fail("Expected an unknown dependency to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("unknown phase c"));
+        }
+
+        // the rejected phase wasn't added, so it can be added again
+        scheduler.add("b", new Recorder("b", 0), "a");
+    }
+
+    /**
+     * Fail unless one event happened before another.
+     * @param earlier The event which should be first
+     * @param later The event which should be second
+     */
+    private void assertBefore(final String earlier, final String later) {
+        synchronized (events) {
+            int earlierAt = events.indexOf(earlier);
+            int laterAt = events.indexOf(later);
+
+            assertFalse(earlier + " missing", earlierAt < 0);
+            assertFalse(later + " missing", laterAt < 0);
+            assertTrue(earlier + " after " + later + " in " + events, earlierAt < laterAt);
+        }
+    }
+
+    /**
+     * A phase which records when it starts and ends, and takes a while.
+     */
+    private class Recorder implements PhaseScheduler.Phase {
+
+        /**
+         * Name of the phase.
+         */
+        private final String name;
+
+        /**
+         * How long the phase takes, in milliseconds.
+         */
+        private final long millis;
+
+        /**
+         * @param name Name of the phase
+         * @param millis How long the phase takes, in milliseconds
+         */
+        Recorder(final String name, final long millis) {
+            this.name = name;
+            this.millis = millis;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void run() throws Exception {
+            synchronized (events) {
+                events.add("start " + name);
+            }
+
+            Thread.sleep(millis);
+
+            synchronized (events) {
+                events.add("end " + name);
+            }
+        }
+    }
+}
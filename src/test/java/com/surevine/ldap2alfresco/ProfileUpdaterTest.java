@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Tests the canonical form ProfileUpdater hashes profile fields in.
+ */
+public class ProfileUpdaterTest {
+
+    /**
+     * Object keys are written in order, whatever order they were put in.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void sortsKeys() throws Exception {
+        JSONObject first = new JSONObject();
+        first.put("telephone", "123");
+        first.put("askMeAbout", "ldap");
+        first.put("biography", "none");
+
+        JSONObject second = new JSONObject();
+        second.put("biography", "none");
+        second.put("telephone", "123");
+        second.put("askMeAbout", "ldap");
+
+        assertEquals("{\"askMeAbout\":\"ldap\",\"biography\":\"none\",\"telephone\":\"123\"}",
+                ProfileUpdater.toCanonicalString(first));
+        assertEquals(ProfileUpdater.toCanonicalString(first), ProfileUpdater.toCanonicalString(second));
+    }
+
+    /**
+     * The values of arrays are written in order, including arrays of objects
+     * within objects, since LDAP returns multiple values in no set order.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void sortsArrayValues() throws Exception {
+        JSONObject first = new JSONObject();
+        first.put("skills", new JSONArray().put("ldap").put("alfresco").put("java"));
+        first.put("phones", new JSONArray()
+                .put(new JSONObject().put("number", "2").put("type", "work"))
+                .put(new JSONObject().put("type", "home").put("number", "1")));
+
+        JSONObject second = new JSONObject();
+        second.put("phones", new JSONArray()
+                .put(new JSONObject().put("number", "1").put("type", "home"))
+                .put(new JSONObject().put("type", "work").put("number", "2")));
+        second.put("skills", new JSONArray().put("java").put("ldap").put("alfresco"));
+
+        assertEquals("{\"phones\":[{\"number\":\"1\",\"type\":\"home\"},{\"number\":\"2\",\"type\":\"work\"}],"
+                + "\"skills\":[\"alfresco\",\"java\",\"ldap\"]}", ProfileUpdater.toCanonicalString(first));
+        assertEquals(ProfileUpdater.toCanonicalString(first), ProfileUpdater.toCanonicalString(second));
+    }
+
+    /**
+     * Different values, or a string in place of a number, give a different
+     * canonical form.
+     * @throws Exception On any failure
+     */
+    @Test
+    public void distinguishesValues() throws Exception {
+        String canonical = ProfileUpdater.toCanonicalString(new JSONObject().put("a", "1"));
+
+        assertFalse(canonical.equals(ProfileUpdater.toCanonicalString(new JSONObject().put("a", 1))));
+        assertFalse(canonical.equals(ProfileUpdater.toCanonicalString(new JSONObject().put("a", "2"))));
+        assertFalse(canonical.equals(ProfileUpdater.toCanonicalString(new JSONObject().put("b", "1"))));
+        assertEquals("\"a \\\"quoted\\\" value\"", ProfileUpdater.toCanonicalString("a \"quoted\" value"));
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests RunJournal, and that a run can be resumed from what it wrote before
+ * it stopped.
+ */
+public class RunJournalTest {
+
+    /**
+     * The journal file.
+     */
+    private File file;
+
+    /**
+     * Pick a journal file which doesn't exist yet.
+     * @throws IOException On any failure
+     */
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("journal", ".txt");
+        file.delete();
+    }
+
+    /**
+     * Remove the journal file.
+     */
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * A resumed run knows how the run began and what it completed.
+     */
+    @Test
+    public void resumesWhatWasWritten() {
+        RunJournal journal = new RunJournal(file);
+        journal.begin(true, "20260101000000Z");
+        journal.done(RunJournal.PHASE, "users");
+        journal.done(RunJournal.USER, "alice");
+        journal.done(RunJournal.USER, "bob");
+        journal.done(RunJournal.DELETER, "site");
+        journal.close();
+
+        RunJournal resumed = new RunJournal(file);
+
+        assertTrue(resumed.exists());
+        assertTrue(resumed.resume());
+        assertTrue(resumed.isForced());
+        assertEquals("20260101000000Z", resumed.getLastRun());
+        assertTrue(resumed.isDone(RunJournal.PHASE, "users"));
+        assertTrue(resumed.isDone(RunJournal.DELETER, "site"));
+        assertFalse(resumed.isDone(RunJournal.DELETER, "alice"));
+        assertEquals(Arrays.asList("alice", "bob"), resumed.getNames(RunJournal.USER));
+        assertEquals(Arrays.asList("carol"),
+                resumed.getRemaining(RunJournal.USER, Arrays.asList("alice", "carol", "bob")));
+        resumed.close();
+    }
+
+    /**
+     * A run begun without a last run time resumes without one.
+     */
+    @Test
+    public void resumesWithoutLastRun() {
+        RunJournal journal = new RunJournal(file);
+        journal.begin(false, null);
+        journal.close();
+
+        assertTrue(journal.resume());
+        assertFalse(journal.isForced());
+        assertNull(journal.getLastRun());
+        assertTrue(journal.getNames(RunJournal.USER).isEmpty());
+        journal.close();
+    }
+
+    /**
+     * Phases are written out as soon as they are done, so they survive the
+     * process stopping without the journal being closed.
+     */
+    @Test
+    public void writesPhasesStraightAway() {
+        RunJournal journal = new RunJournal(file);
+        journal.begin(false, null);
+        journal.done(RunJournal.PHASE, "users");
+
+        RunJournal resumed = new RunJournal(file);
+
+        assertTrue(resumed.resume());
+        assertTrue(resumed.isDone(RunJournal.PHASE, "users"));
+        resumed.close();
+        journal.close();
+    }
+
+    /**
+     * A partly written last line is ignored, and what is done next goes on a
+     * line of its own.
+     * @throws IOException On any failure
+     */
+    @Test
+    public void ignoresTruncatedLastLine() throws IOException {
+        RunJournal journal = new RunJournal(file);
+        journal.begin(false, "20260101000000Z");
+        journal.done(RunJournal.USER, "alice");
+        journal.done(RunJournal.USER, "bob");
+        journal.close();
+
+        // lose the end of bob's line, as if the process stopped part way
+        // through writing it
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 2);
+        raf.close();
+
+        RunJournal resumed = new RunJournal(file);
+
+        assertTrue(resumed.resume());
+        assertTrue(resumed.isDone(RunJournal.USER, "alice"));
+        assertFalse(resumed.isDone(RunJournal.USER, "bob"));
+        assertFalse(resumed.isDone(RunJournal.USER, "b"));
+
+        resumed.done(RunJournal.USER, "carol");
+        resumed.close();
+
+        assertTrue(resumed.resume());
+        assertEquals(Arrays.asList("alice", "carol"), resumed.getNames(RunJournal.USER));
+        resumed.close();
+    }
+
+    /**
+     * There is nothing to resume without a journal, and trying doesn't
+     * create one.
+     */
+    @Test
+    public void cannotResumeWithoutJournal() {
+        RunJournal journal = new RunJournal(file);
+
+        assertFalse(journal.exists());
+        assertFalse(journal.resume());
+        assertFalse(journal.exists());
+    }
+
+    /**
+     * A file which doesn't start like a journal isn't resumed.
+     * @throws IOException On any failure
+     */
+    @Test
+    public void cannotResumeUnrecognisedJournal() throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        out.write("something else\n".getBytes("UTF-8"));
+        out.close();
+
+        assertFalse(new RunJournal(file).resume());
+    }
+
+    /**
+     * Finishing a run deletes its journal, and later entries are ignored.
+     */
+    @Test
+    public void finishDeletesJournal() {
+        RunJournal journal = new RunJournal(file);
+        journal.begin(false, null);
+        journal.done(RunJournal.USER, "alice");
+        journal.finish();
+
+        assertFalse(journal.exists());
+
+        journal.done(RunJournal.USER, "bob");
+
+        assertFalse(journal.exists());
+        assertFalse(journal.isDone(RunJournal.USER, "bob"));
+    }
+}
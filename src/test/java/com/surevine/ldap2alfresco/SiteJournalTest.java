@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests SiteJournal journalling sites and their deleters, so that a resumed
+ * run skips them.
+ */
+public class SiteJournalTest {
+
+    /**
+     * Kind of journal entry for sites.
+     */
+    private static final String SITE = LdapConnector.GroupType.SITE.toString();
+
+    /**
+     * The journal file.
+     */
+    private File file;
+
+    /**
+     * The journal of the run.
+     */
+    private RunJournal journal;
+
+    /**
+     * Gives usernames IDs.
+     */
+    private MembershipStore memberships;
+
+    /**
+     * The site journal under test.
+     */
+    private SiteJournal sites;
+
+    /**
+     * Begin a run with a journal file which doesn't exist yet.
+     * @throws IOException On any failure
+     */
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("journal", ".txt");
+        file.delete();
+
+        journal = new RunJournal(file);
+        journal.begin(false, "20260101000000Z");
+        memberships = new MembershipStore();
+        sites = new SiteJournal(journal, memberships);
+    }
+
+    /**
+     * Remove the journal file.
+     */
+    @After
+    public void tearDown() {
+        journal.close();
+        file.delete();
+    }
+
+    /**
+     * A site whose changes were made straight away is journalled with its
+     * deleters.
+     */
+    @Test
+    public void journalsSitesDone() {
+        sites.done("alpha", memberships.toBitmap(Arrays.asList("ann")), memberships.toBitmap(Arrays.asList("bob")));
+
+        RunJournal resumed = resume();
+
+        assertTrue(resumed.isDone(SITE, "alpha"));
+        assertEquals(Arrays.asList("alpha\t+ann", "alpha\t-bob"), resumed.getNames(RunJournal.DELETER));
+    }
+
+    /**
+     * A queued site is only journalled once its changes have been sent, and
+     * is then skipped by a resumed run, whether or not deleters joined or
+     * left it.
+     */
+    @Test
+    public void journalsQueuedSitesOnceSent() {
+        MemberBitmap none = memberships.toBitmap(Collections.<String>emptyList());
+
+        sites.queued("alpha", memberships.toBitmap(Arrays.asList("ann")), none);
+        sites.queued("bravo", none, none);
+
+        assertFalse(journal.isDone(SITE, "alpha"));
+        assertFalse(journal.isDone(SITE, "bravo"));
+
+        sites.sent();
+
+        RunJournal resumed = resume();
+
+        assertTrue(resumed.isDone(SITE, "alpha"));
+        assertTrue(resumed.isDone(SITE, "bravo"));
+        assertEquals(Arrays.asList("alpha\t+ann"), resumed.getNames(RunJournal.DELETER));
+    }
+
+    /**
+     * A queued site with a failed change isn't journalled, nor are its
+     * deleters, so a resumed run updates it again.
+     */
+    @Test
+    public void skipsFailedSites() {
+        MemberBitmap none = memberships.toBitmap(Collections.<String>emptyList());
+
+        sites.queued("alpha", none, none);
+        sites.queued("bravo", memberships.toBitmap(Arrays.asList("ann")), none);
+        sites.failed("bravo");
+        sites.sent();
+
+        RunJournal resumed = resume();
+
+        assertTrue(resumed.isDone(SITE, "alpha"));
+        assertFalse(resumed.isDone(SITE, "bravo"));
+        assertTrue(resumed.getNames(RunJournal.DELETER).isEmpty());
+    }
+
+    /**
+     * Sites queued by a run which is then abandoned aren't journalled by the
+     * next.
+     */
+    @Test
+    public void forgetsQueuedSitesWhenCleared() {
+        MemberBitmap none = memberships.toBitmap(Collections.<String>emptyList());
+
+        sites.queued("alpha", none, none);
+        sites.failed("bravo");
+        sites.clear();
+
+        sites.queued("bravo", none, none);
+        sites.sent();
+
+        RunJournal resumed = resume();
+
+        assertFalse(resumed.isDone(SITE, "alpha"));
+        assertTrue(resumed.isDone(SITE, "bravo"));
+    }
+
+    /**
+     * Stop the run and read its journal back, as the next run would.
+     * @return The journal of the stopped run
+     */
+    private RunJournal resume() {
+        journal.close();
+
+        RunJournal resumed = new RunJournal(file);
+
+        assertTrue(resumed.resume());
+        return resumed;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+/**
+ * Tests SyncPipeline passing items through its stages, and stopping and
+ * reporting the failure when a stage fails.
+ */
+public class SyncPipelineTest {
+
+    /**
+     * Longest a test may take, in milliseconds, so a hung pipeline fails the
+     * test rather than hanging the build.
+     */
+    private static final long TIMEOUT = 10000;
+
+    /**
+     * Number of items fed into each pipeline.
+     */
+    private static final int ITEMS = 200;
+
+    /**
+     * Every item is transformed and its result consumed, except where the
+     * transform has nothing to pass on.
+     * @throws Exception On any failure
+     */
+    @Test(timeout = TIMEOUT)
+    public void passesItemsThroughEveryStage() throws Exception {
+        final Collection<Integer> consumed = Collections.synchronizedSet(new HashSet<Integer>());
+
+        SyncPipeline<Integer, Integer> pipeline = new SyncPipeline<Integer, Integer>("test", 3, 2, 2,
+                new SyncPipeline.Transform<Integer, Integer>() {
+                    public Integer process(final Integer item) {
+                        // nothing to pass on for every tenth item
+                        return item % 10 == 0 ? null : Integer.valueOf(item * 2);
+                    }
+                },
+                new SyncPipeline.Sink<Integer>() {
+                    public void process(final Integer result) {
+                        consumed.add(result);
+                    }
+                });
+
+        Collection<Integer> expected = new HashSet<Integer>();
+
+        for (int x = 1; x <= ITEMS; x++) {
+            pipeline.put(Integer.valueOf(x));
+
+            if (x % 10 != 0) {
+                expected.add(Integer.valueOf(x * 2));
+            }
+        }
+        pipeline.finish();
+
+        assertEquals(expected, consumed);
+    }
+
+    /**
+     * A failure in the transform stage stops the pipeline and is thrown from
+     * put() or finish().
+     * @throws Exception On any failure
+     */
+    @Test(timeout = TIMEOUT)
+    public void rethrowsTransformFailure() throws Exception {
+        final Exception failure = new Exception("transform failed");
+
+        SyncPipeline<Integer, Integer> pipeline = new SyncPipeline<Integer, Integer>("test", 2, 2, 2,
+                new SyncPipeline.Transform<Integer, Integer>() {
+                    public Integer process(final Integer item) throws Exception {
+                        if (item.intValue() == 5) {
+                            throw failure;
+                        }
+                        return item;
+                    }
+                },
+                new SyncPipeline.Sink<Integer>() {
+                    public void process(final Integer result) {
+                    }
+                });
+
+        assertFails(pipeline, failure);
+    }
+
+    /**
+     * A failure in the last stage stops the pipeline and is thrown from
+     * put() or finish(), even while the transform stage is waiting for room
+     * in the full queue to the last stage.
+     * @throws Exception On any failure
+     */
+    @Test(timeout = TIMEOUT)
+    public void rethrowsSinkFailure() throws Exception {
+        final Exception failure = new Exception("sink failed");
+
+        SyncPipeline<Integer, Integer> pipeline = new SyncPipeline<Integer, Integer>("test", 1, 1, 1,
+                new SyncPipeline.Transform<Integer, Integer>() {
+                    public Integer process(final Integer item) {
+                        return item;
+                    }
+                },
+                new SyncPipeline.Sink<Integer>() {
+                    public void process(final Integer result) throws Exception {
+                        throw failure;
+                    }
+                });
+
+        assertFails(pipeline, failure);
+    }
+
+    /**
+     * finish() returns with the failure, rather than waiting for stages
+     * which have stopped, however soon after the failure it is called.
+     * @throws Exception On any failure
+     */
+    @Test(timeout = TIMEOUT)
+    public void finishDoesNotHangAfterFailure() throws Exception {
+        final Exception failure = new Exception("transform failed");
+
+        SyncPipeline<Integer, Integer> pipeline = new SyncPipeline<Integer, Integer>("test", 4, 4, 1,
+                new SyncPipeline.Transform<Integer, Integer>() {
+                    public Integer process(final Integer item) throws Exception {
+                        throw failure;
+                    }
+                },
+                new SyncPipeline.Sink<Integer>() {
+                    public void process(final Integer result) {
+                        fail("Nothing should reach the last stage");
+                    }
+                });
+
+        pipeline.put(Integer.valueOf(1));
+
+        try {
+            pipeline.finish();
+            fail("Expected the transform failure");
+        } catch (SyncPipeline.PipelineException e) {
+            assertSame(failure, e.getCause());
+        }
+
+        // and again, once everything has stopped
+        try {
+            pipeline.finish();
+            fail("Expected the transform failure");
+        } catch (SyncPipeline.PipelineException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    /**
+     * Feed items into a pipeline until it fails, and check it fails with the
+     * expected exception.
+     * @param pipeline The pipeline
+     * @param failure The exception a stage throws
+     */
+    private static void assertFails(final SyncPipeline<Integer, Integer> pipeline, final Exception failure) {
+        try {
+            for (int x = 1; x <= ITEMS; x++) {
+                pipeline.put(Integer.valueOf(x));
+            }
+            pipeline.finish();
+            fail("Expected " + failure.getMessage());
+        } catch (SyncPipeline.PipelineException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+}
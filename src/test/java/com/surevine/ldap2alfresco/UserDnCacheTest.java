@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2008-2010 Surevine Limited.
+ *   
+ * Although intended for deployment and use alongside Alfresco this module should
+ * be considered 'Not a Contribution' as defined in Alfresco'sstandard contribution agreement, see
+ * http://www.alfresco.org/resource/AlfrescoContributionAgreementv2.pdf
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+*/
+package com.surevine.ldap2alfresco;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Tests UserDnCache evicting, expiring and forgetting DNs, and counting
+ * hits and misses.
+ */
+public class UserDnCacheTest {
+
+    /**
+     * Longer than any test takes, so entries never expire.
+     */
+    private static final long FOREVER = 60 * 60 * 1000L;
+
+    /**
+     * Once full, the least recently used DN is dropped to make room.
+     */
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        UserDnCache cache = new UserDnCache(2, FOREVER);
+
+        cache.put("alice", "cn=alice");
+        cache.put("bob", "cn=bob");
+
+        // alice is now more recently used than bob
+        assertEquals("cn=alice", cache.get("alice"));
+
+        cache.put("carol", "cn=carol");
+
+        assertNull(cache.get("bob"));
+        assertEquals("cn=alice", cache.get("alice"));
+        assertEquals("cn=carol", cache.get("carol"));
+    }
+
+    /**
+     * A DN is looked up again once it has been cached for its time to live.
+     * @throws InterruptedException If interrupted while waiting
+     */
+    @Test
+    public void expiresEntries() throws InterruptedException {
+        UserDnCache cache = new UserDnCache(10, 50);
+
+        cache.put("alice", "cn=alice");
+
+        assertEquals("cn=alice", cache.get("alice"));
+
+        Thread.sleep(100);
+
+        assertNull(cache.get("alice"));
+
+        // and can be cached again
+        cache.put("alice", "cn=alice,ou=moved");
+
+        assertEquals("cn=alice,ou=moved", cache.get("alice"));
+    }
+
+    /**
+     * Invalidating a user forgets only their DN, and clearing forgets every
+     * DN.
+     */
+    @Test
+    public void invalidatesEntries() {
+        UserDnCache cache = new UserDnCache(10, FOREVER);
+
+        cache.put("alice", "cn=alice");
+        cache.put("bob", "cn=bob");
+        cache.invalidate("alice");
+        cache.invalidate("nobody");
+
+        assertNull(cache.get("alice"));
+        assertEquals("cn=bob", cache.get("bob"));
+
+        cache.clear();
+
+        assertNull(cache.get("bob"));
+    }
+
+    /**
+     * A maximum size of zero caches nothing.
+     */
+    @Test
+    public void zeroSizeDisablesCache() {
+        UserDnCache cache = new UserDnCache(0, FOREVER);
+
+        cache.put("alice", "cn=alice");
+
+        assertNull(cache.get("alice"));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    /**
+     * Every lookup counts as a hit or a miss, including lookups of expired
+     * and invalidated DNs.
+     * @throws InterruptedException If interrupted while waiting
+     */
+    @Test
+    public void countsHitsAndMisses() throws InterruptedException {
+        UserDnCache cache = new UserDnCache(10, 50);
+
+        cache.get("alice");
+        cache.put("alice", "cn=alice");
+        cache.get("alice");
+        cache.get("alice");
+        cache.put("bob", "cn=bob");
+        cache.invalidate("bob");
+        cache.get("bob");
+
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        Thread.sleep(100);
+        cache.get("alice");
+
+        assertEquals(2, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+}